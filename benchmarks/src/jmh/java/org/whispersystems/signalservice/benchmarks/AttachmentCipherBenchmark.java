@@ -0,0 +1,136 @@
+package org.whispersystems.signalservice.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.whispersystems.libsignal.InvalidMessageException;
+import org.whispersystems.signalservice.api.crypto.AttachmentCipherInputStream;
+import org.whispersystems.signalservice.api.crypto.AttachmentCipherOutputStream;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Attachment encryption and decryption throughput, by attachment size.
+ *
+ * Run with -prof gc to check that decryption allocation doesn't grow with the
+ * number of reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AttachmentCipherBenchmark {
+
+  private static final int BUFFER_SIZE       = 32 * 1024;
+  private static final int SMALL_BUFFER_SIZE = 1000;
+
+  @Param({"1024", "65536", "1048576", "16777216"})
+  public int size;
+
+  private byte[] key;
+  private byte[] plaintext;
+  private byte[] digest;
+  private File   ciphertextFile;
+  private File   plaintextFile;
+  private byte[] readBuffer;
+  private byte[] smallReadBuffer;
+
+  @Setup
+  public void setup() throws IOException {
+    key             = Util.getSecretBytes(64);
+    plaintext       = Util.getSecretBytes(size);
+    ciphertextFile  = File.createTempFile("attachment", ".benchmark");
+    plaintextFile   = File.createTempFile("attachment", ".plaintext");
+    readBuffer      = new byte[BUFFER_SIZE];
+    smallReadBuffer = new byte[SMALL_BUFFER_SIZE];
+
+    OutputStream                 fileStream    = new FileOutputStream(ciphertextFile);
+    AttachmentCipherOutputStream encryptStream = new AttachmentCipherOutputStream(key, fileStream);
+
+    encryptStream.write(plaintext);
+    encryptStream.flush();
+    encryptStream.close();
+
+    digest = encryptStream.getTransmittedDigest();
+  }
+
+  @TearDown
+  public void tearDown() {
+    ciphertextFile.delete();
+    plaintextFile.delete();
+  }
+
+  @Benchmark
+  public byte[] encrypt() throws IOException {
+    AttachmentCipherOutputStream encryptStream = new AttachmentCipherOutputStream(key, new NullOutputStream());
+
+    for (int offset = 0; offset < plaintext.length; offset += BUFFER_SIZE) {
+      encryptStream.write(plaintext, offset, Math.min(BUFFER_SIZE, plaintext.length - offset));
+    }
+
+    encryptStream.flush();
+    encryptStream.close();
+
+    return encryptStream.getTransmittedDigest();
+  }
+
+  @Benchmark
+  public long decrypt() throws IOException, InvalidMessageException {
+    return decrypt(readBuffer);
+  }
+
+  /**
+   * Reads smaller than the stream's internal buffer, so most plaintext passes
+   * through its overflow buffer.
+   */
+  @Benchmark
+  public long decryptSmallReads() throws IOException, InvalidMessageException {
+    return decrypt(smallReadBuffer);
+  }
+
+  @Benchmark
+  public long decryptToChannel() throws IOException, InvalidMessageException {
+    try (FileInputStream  in  = new FileInputStream(ciphertextFile);
+         FileOutputStream out = new FileOutputStream(plaintextFile))
+    {
+      AttachmentCipherInputStream.decryptAttachment(in.getChannel(), size, key, digest, out.getChannel());
+      return out.getChannel().size();
+    }
+  }
+
+  private long decrypt(byte[] buffer) throws IOException, InvalidMessageException {
+    InputStream decryptStream = AttachmentCipherInputStream.createForAttachment(ciphertextFile, size, key, digest);
+    long        total         = 0;
+    int         read;
+
+    try {
+      while ((read = decryptStream.read(buffer)) != -1) {
+        total += read;
+      }
+    } finally {
+      decryptStream.close();
+    }
+
+    return total;
+  }
+
+  private static class NullOutputStream extends OutputStream {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) {}
+  }
+}
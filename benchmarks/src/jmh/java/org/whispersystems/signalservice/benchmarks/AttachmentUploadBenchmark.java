@@ -0,0 +1,72 @@
+package org.whispersystems.signalservice.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.whispersystems.signalservice.internal.crypto.PaddingInputStream;
+import org.whispersystems.signalservice.internal.push.http.AttachmentCipherOutputStreamFactory;
+import org.whispersystems.signalservice.internal.push.http.DigestingRequestBody;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import okio.BufferedSink;
+import okio.Okio;
+
+/**
+ * Encrypting an attachment into an upload request body, from a file on disk into
+ * a sink that discards everything. Run with -prof gc to see allocation per upload.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AttachmentUploadBenchmark {
+
+  @Param({"65536", "1048576", "16777216"})
+  public int size;
+
+  private byte[] key;
+  private File   plaintextFile;
+
+  @Setup
+  public void setup() throws IOException {
+    key           = Util.getSecretBytes(64);
+    plaintextFile = File.createTempFile("attachment", ".benchmark");
+
+    try (OutputStream out = new FileOutputStream(plaintextFile)) {
+      out.write(Util.getSecretBytes(size));
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    plaintextFile.delete();
+  }
+
+  @Benchmark
+  public byte[] writeRequestBody() throws IOException {
+    try (InputStream in = new PaddingInputStream(new FileInputStream(plaintextFile), size)) {
+      long                 paddedSize = PaddingInputStream.getPaddedSize(size);
+      DigestingRequestBody body       = new DigestingRequestBody(in, new AttachmentCipherOutputStreamFactory(key),
+                                                                 "application/octet-stream", paddedSize, null);
+      BufferedSink         sink       = Okio.buffer(Okio.blackhole());
+
+      body.writeTo(sink);
+      sink.close();
+
+      return body.getTransmittedDigest();
+    }
+  }
+}
@@ -0,0 +1,46 @@
+package org.whispersystems.signalservice.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.util.Base64;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base64 encoding and decoding, by input size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class Base64Benchmark {
+
+  @Param({"32", "1024", "65536"})
+  public int size;
+
+  private byte[] data;
+  private String encoded;
+
+  @Setup
+  public void setup() {
+    data    = Util.getSecretBytes(size);
+    encoded = Base64.encodeBytes(data);
+  }
+
+  @Benchmark
+  public String encode() {
+    return Base64.encodeBytes(data);
+  }
+
+  @Benchmark
+  public byte[] decode() throws IOException {
+    return Base64.decode(encoded);
+  }
+}
@@ -0,0 +1,51 @@
+package org.whispersystems.signalservice.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.signalservice.internal.push.OutgoingPushMessage;
+import org.whispersystems.signalservice.internal.push.OutgoingPushMessageList;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Envelope;
+import org.whispersystems.signalservice.internal.util.JsonUtil;
+import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.util.Base64;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the request body sent for every outgoing message, by number of
+ * destination devices.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JsonUtilBenchmark {
+
+  @Param({"1", "3", "10"})
+  public int devices;
+
+  private OutgoingPushMessageList messageList;
+
+  @Setup
+  public void setup() {
+    List<OutgoingPushMessage> messages = new LinkedList<>();
+
+    for (int deviceId = 1; deviceId <= devices; deviceId++) {
+      messages.add(new OutgoingPushMessage(Envelope.Type.CIPHERTEXT_VALUE, deviceId, 1234, Base64.encodeBytes(Util.getSecretBytes(320))));
+    }
+
+    messageList = new OutgoingPushMessageList("+14151231234", System.currentTimeMillis(), messages, false);
+  }
+
+  @Benchmark
+  public String serialize() {
+    return JsonUtil.toJson(messageList);
+  }
+}
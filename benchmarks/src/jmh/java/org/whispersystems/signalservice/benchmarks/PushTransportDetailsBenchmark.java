@@ -0,0 +1,47 @@
+package org.whispersystems.signalservice.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.signalservice.internal.push.PushTransportDetails;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Message body padding and unpadding, by message size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class PushTransportDetailsBenchmark {
+
+  @Param({"32", "1024", "65536"})
+  public int size;
+
+  private PushTransportDetails transportDetails;
+  private byte[]               message;
+  private byte[]               paddedMessage;
+
+  @Setup
+  public void setup() {
+    transportDetails = new PushTransportDetails(3);
+    message          = Util.getSecretBytes(size);
+    paddedMessage    = transportDetails.getPaddedMessageBody(message);
+  }
+
+  @Benchmark
+  public byte[] pad() {
+    return transportDetails.getPaddedMessageBody(message);
+  }
+
+  @Benchmark
+  public byte[] strip() {
+    return transportDetails.getStrippedPaddingMessageBody(paddedMessage);
+  }
+}
@@ -0,0 +1,100 @@
+package org.whispersystems.signalservice.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.SessionBuilder;
+import org.whispersystems.libsignal.SignalProtocolAddress;
+import org.whispersystems.libsignal.state.PreKeyBundle;
+import org.whispersystems.libsignal.state.PreKeyRecord;
+import org.whispersystems.libsignal.state.SignedPreKeyRecord;
+import org.whispersystems.libsignal.state.impl.InMemorySignalProtocolStore;
+import org.whispersystems.libsignal.util.KeyHelper;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.crypto.SignalServiceCipher;
+import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
+import org.whispersystems.signalservice.api.messages.SignalServiceContent;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.internal.push.OutgoingPushMessage;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Content;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.DataMessage;
+import org.whispersystems.util.Base64;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encryption and decryption of a typical data message over an established session,
+ * backed by in-memory protocol stores.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SignalServiceCipherBenchmark {
+
+  private static final SignalServiceAddress ALICE = new SignalServiceAddress(UUID.randomUUID(), "+14151111111");
+  private static final SignalServiceAddress BOB   = new SignalServiceAddress(UUID.randomUUID(), "+14152222222");
+
+  private static final Optional<UnidentifiedAccess> NO_ACCESS = Optional.absent();
+
+  private SignalServiceCipher   aliceCipher;
+  private SignalServiceCipher   bobCipher;
+  private SignalProtocolAddress bobAddress;
+  private byte[]                content;
+
+  @Setup
+  public void setup() throws Exception {
+    InMemorySignalProtocolStore aliceStore = new InMemorySignalProtocolStore(KeyHelper.generateIdentityKeyPair(), KeyHelper.generateRegistrationId(false));
+    InMemorySignalProtocolStore bobStore   = new InMemorySignalProtocolStore(KeyHelper.generateIdentityKeyPair(), KeyHelper.generateRegistrationId(false));
+
+    PreKeyRecord       preKey       = KeyHelper.generatePreKeys(1, 1).get(0);
+    SignedPreKeyRecord signedPreKey = KeyHelper.generateSignedPreKey(bobStore.getIdentityKeyPair(), 1);
+
+    bobStore.storePreKey(preKey.getId(), preKey);
+    bobStore.storeSignedPreKey(signedPreKey.getId(), signedPreKey);
+
+    PreKeyBundle bundle = new PreKeyBundle(bobStore.getLocalRegistrationId(), 1,
+                                           preKey.getId(), preKey.getKeyPair().getPublicKey(),
+                                           signedPreKey.getId(), signedPreKey.getKeyPair().getPublicKey(),
+                                           signedPreKey.getSignature(), bobStore.getIdentityKeyPair().getPublicKey());
+
+    bobAddress = new SignalProtocolAddress(BOB.getIdentifier(), 1);
+    new SessionBuilder(aliceStore, bobAddress).process(bundle);
+
+    aliceCipher = new SignalServiceCipher(ALICE, aliceStore, null);
+    bobCipher   = new SignalServiceCipher(BOB, bobStore, null);
+    content     = Content.newBuilder()
+                         .setDataMessage(DataMessage.newBuilder().setBody("The quick brown fox jumps over the lazy dog"))
+                         .build()
+                         .toByteArray();
+
+    // Complete the handshake in both directions, so the benchmarks measure regular
+    // messages rather than prekey messages.
+    bobCipher.decrypt(toEnvelope(ALICE, aliceCipher.encrypt(bobAddress, NO_ACCESS, content)));
+    aliceCipher.decrypt(toEnvelope(BOB, bobCipher.encrypt(new SignalProtocolAddress(ALICE.getIdentifier(), 1), NO_ACCESS, content)));
+  }
+
+  @Benchmark
+  public OutgoingPushMessage encrypt() throws Exception {
+    return aliceCipher.encrypt(bobAddress, NO_ACCESS, content);
+  }
+
+  @Benchmark
+  public SignalServiceContent encryptAndDecrypt() throws Exception {
+    return bobCipher.decrypt(toEnvelope(ALICE, aliceCipher.encrypt(bobAddress, NO_ACCESS, content)));
+  }
+
+  private static SignalServiceEnvelope toEnvelope(SignalServiceAddress sender, OutgoingPushMessage message) throws IOException {
+    long timestamp = System.currentTimeMillis();
+
+    return new SignalServiceEnvelope(message.getType(), Optional.of(sender), 1, timestamp,
+                                     null, Base64.decode(message.getContent()),
+                                     timestamp, null);
+  }
+}
@@ -0,0 +1,105 @@
+package org.whispersystems.signalservice.benchmarks;
+
+import com.google.protobuf.ByteString;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.whispersystems.libsignal.InvalidVersionException;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope.SignalingKey;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Envelope;
+import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.util.Base64;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Construction of received envelopes, with and without signaling key encryption, from
+ * both a byte array and a websocket request body. The websocket variant uses a signaling
+ * key decoded up front, as the pipe does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SignalServiceEnvelopeBenchmark {
+
+  @Param({"256", "4096"})
+  public int contentSize;
+
+  private String       signalingKey;
+  private SignalingKey decodedSignalingKey;
+  private byte[]       plaintext;
+  private ByteString   plaintextByteString;
+  private byte[]       encrypted;
+  private ByteString   encryptedByteString;
+
+  @Setup
+  public void setup() throws GeneralSecurityException, IOException {
+    byte[] signalingKeyBytes = Util.getSecretBytes(52);
+
+    signalingKey = Base64.encodeBytes(signalingKeyBytes);
+    plaintext    = Envelope.newBuilder()
+                           .setType(Envelope.Type.CIPHERTEXT)
+                           .setSourceUuid("9d0652a3-dcc3-4d11-975f-74d61598733f")
+                           .setSourceDevice(1)
+                           .setTimestamp(System.currentTimeMillis())
+                           .setServerTimestamp(System.currentTimeMillis())
+                           .setContent(ByteString.copyFrom(Util.getSecretBytes(contentSize)))
+                           .build()
+                           .toByteArray();
+    encrypted    = encryptWithSignalingKey(plaintext, signalingKeyBytes);
+
+    decodedSignalingKey = new SignalingKey(signalingKey);
+    plaintextByteString = ByteString.copyFrom(plaintext);
+    encryptedByteString = ByteString.copyFrom(encrypted);
+  }
+
+  @Benchmark
+  public SignalServiceEnvelope plaintextBytes() throws IOException, InvalidVersionException {
+    return new SignalServiceEnvelope(plaintext, signalingKey, false);
+  }
+
+  @Benchmark
+  public SignalServiceEnvelope plaintextByteString() throws IOException, InvalidVersionException {
+    return new SignalServiceEnvelope(plaintextByteString, signalingKey, false);
+  }
+
+  @Benchmark
+  public SignalServiceEnvelope signalingKeyEncryptedBytes() throws IOException, InvalidVersionException {
+    return new SignalServiceEnvelope(encrypted, signalingKey, true);
+  }
+
+  @Benchmark
+  public SignalServiceEnvelope signalingKeyEncryptedByteString() throws IOException, InvalidVersionException {
+    return new SignalServiceEnvelope(encryptedByteString, decodedSignalingKey, true);
+  }
+
+  /**
+   * Version byte, IV, AES-CBC ciphertext, then a truncated HMAC-SHA256 over all of it.
+   */
+  private static byte[] encryptWithSignalingKey(byte[] plaintext, byte[] signalingKey) throws GeneralSecurityException {
+    byte[] iv     = Util.getSecretBytes(16);
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(signalingKey, 0, 32, "AES"), new IvParameterSpec(iv));
+
+    byte[] ciphertext = Util.join(new byte[] {1}, iv, cipher.doFinal(plaintext));
+
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(signalingKey, 32, 20, "HmacSHA256"));
+
+    return Util.join(ciphertext, Util.trim(mac.doFinal(ciphertext), 10));
+  }
+}
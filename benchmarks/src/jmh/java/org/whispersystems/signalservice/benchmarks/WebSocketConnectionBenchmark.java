@@ -0,0 +1,199 @@
+package org.whispersystems.signalservice.benchmarks;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.whispersystems.libsignal.util.Pair;
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.push.TrustStore;
+import org.whispersystems.signalservice.api.util.CredentialsProvider;
+import org.whispersystems.signalservice.api.util.UptimeSleepTimer;
+import org.whispersystems.signalservice.internal.websocket.WebSocketConnection;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+import okio.ByteString;
+
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketMessage;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketResponseMessage;
+
+/**
+ * Requests per second over a single {@link WebSocketConnection}, with many requests in
+ * flight at once. A local MockWebServer stands in for the service and answers every
+ * request immediately.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class WebSocketConnectionBenchmark {
+
+  private static final int IN_FLIGHT = 64;
+
+  private final AtomicLong requestIds = new AtomicLong();
+
+  private MockWebServer       server;
+  private WebSocketConnection connection;
+
+  @Setup
+  public void setup() throws Exception {
+    Security.addProvider(new BouncyCastleProvider());
+
+    HeldCertificate certificate = new HeldCertificate.Builder()
+                                                     .addSubjectAlternativeName("localhost")
+                                                     .build();
+
+    server = new MockWebServer();
+    server.useHttps(new HandshakeCertificates.Builder()
+                                             .heldCertificate(certificate)
+                                             .build()
+                                             .sslSocketFactory(), false);
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse().withWebSocketUpgrade(new EchoServiceListener());
+      }
+    });
+    server.start();
+
+    connection = new WebSocketConnection("https://localhost:" + server.getPort(),
+                                         new CertificateTrustStore(certificate.certificate()),
+                                         Optional.<CredentialsProvider>absent(),
+                                         null, null, new UptimeSleepTimer());
+    connection.connect();
+
+    awaitConnected();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    connection.disconnect();
+    server.shutdown();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(IN_FLIGHT)
+  public int pipelinedSends() throws Exception {
+    List<Future<Pair<Integer, String>>> responses = new ArrayList<>(IN_FLIGHT);
+
+    for (int i = 0; i < IN_FLIGHT; i++) {
+      responses.add(connection.sendRequest(createRequest()));
+    }
+
+    int status = 0;
+
+    for (Future<Pair<Integer, String>> response : responses) {
+      status += response.get(10, TimeUnit.SECONDS).first();
+    }
+
+    return status;
+  }
+
+  private void awaitConnected() throws Exception {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+
+    while (true) {
+      try {
+        connection.sendRequest(createRequest()).get(10, TimeUnit.SECONDS);
+        return;
+      } catch (IOException e) {
+        if (System.currentTimeMillis() > deadline) throw e;
+        Thread.sleep(10);
+      }
+    }
+  }
+
+  private WebSocketRequestMessage createRequest() {
+    return WebSocketRequestMessage.newBuilder()
+                                  .setId(requestIds.incrementAndGet())
+                                  .setVerb("PUT")
+                                  .setPath("/v1/messages/+14151231234")
+                                  .setBody(com.google.protobuf.ByteString.copyFromUtf8("{}"))
+                                  .build();
+  }
+
+  private static class EchoServiceListener extends WebSocketListener {
+    @Override
+    public void onMessage(WebSocket webSocket, ByteString bytes) {
+      try {
+        WebSocketMessage message = WebSocketMessage.parseFrom(bytes.toByteArray());
+
+        if (message.getType() == WebSocketMessage.Type.REQUEST) {
+          WebSocketMessage response = WebSocketMessage.newBuilder()
+                                                      .setType(WebSocketMessage.Type.RESPONSE)
+                                                      .setResponse(WebSocketResponseMessage.newBuilder()
+                                                                                           .setId(message.getRequest().getId())
+                                                                                           .setStatus(200)
+                                                                                           .setMessage("OK"))
+                                                      .build();
+
+          webSocket.send(ByteString.of(response.toByteArray()));
+        }
+      } catch (IOException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    @Override
+    public void onClosing(WebSocket webSocket, int code, String reason) {
+      webSocket.close(1000, "OK");
+    }
+  }
+
+  /**
+   * WebSocketConnection only speaks TLS and reads its trust anchors from a BKS
+   * keystore, so the server's self-signed certificate is wrapped in one.
+   */
+  private static class CertificateTrustStore implements TrustStore {
+
+    private final byte[] keyStore;
+
+    private CertificateTrustStore(X509Certificate certificate) throws GeneralSecurityException, IOException {
+      KeyStore              trusted = KeyStore.getInstance("BKS");
+      ByteArrayOutputStream stream  = new ByteArrayOutputStream();
+
+      trusted.load(null, getKeyStorePassword().toCharArray());
+      trusted.setCertificateEntry("server", certificate);
+      trusted.store(stream, getKeyStorePassword().toCharArray());
+
+      this.keyStore = stream.toByteArray();
+    }
+
+    @Override
+    public InputStream getKeyStoreInputStream() {
+      return new ByteArrayInputStream(keyStore);
+    }
+
+    @Override
+    public String getKeyStorePassword() {
+      return "benchmark";
+    }
+  }
+}
@@ -9,27 +9,37 @@ package org.whispersystems.signalservice.api;
 import com.google.protobuf.ByteString;
 
 import org.whispersystems.libsignal.InvalidVersionException;
+import org.whispersystems.libsignal.logging.Log;
 import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope.SignalingKey;
 import org.whispersystems.signalservice.api.profiles.SignalServiceProfile;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.RateLimitException;
 import org.whispersystems.signalservice.api.util.CredentialsProvider;
 import org.whispersystems.signalservice.internal.push.AttachmentUploadAttributes;
 import org.whispersystems.signalservice.internal.push.OutgoingPushMessageList;
 import org.whispersystems.signalservice.internal.push.SendMessageResponse;
 import org.whispersystems.signalservice.internal.util.JsonUtil;
 import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.internal.util.concurrent.PartitionedExecutor;
 import org.whispersystems.signalservice.internal.websocket.WebSocketConnection;
 import org.whispersystems.util.Base64;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -48,6 +58,8 @@ public class SignalServiceMessagePipe {
   private final WebSocketConnection           websocket;
   private final Optional<CredentialsProvider> credentialsProvider;
 
+  private volatile SignalingKey signalingKey;
+
   SignalServiceMessagePipe(WebSocketConnection websocket, Optional<CredentialsProvider> credentialsProvider) {
     this.websocket           = websocket;
     this.credentialsProvider = credentialsProvider;
@@ -105,8 +117,8 @@ public class SignalServiceMessagePipe {
 
       try {
         if (isSignalServiceEnvelope(request)) {
-          SignalServiceEnvelope envelope = new SignalServiceEnvelope(request.getBody().toByteArray(),
-                                                                     credentialsProvider.get().getSignalingKey(),
+          SignalServiceEnvelope envelope = new SignalServiceEnvelope(request.getBody(),
+                                                                     getSignalingKey(signalKeyEncrypted),
                                                                      signalKeyEncrypted);
 
           callback.onMessage(envelope);
@@ -118,6 +130,123 @@ public class SignalServiceMessagePipe {
     }
   }
 
+  /**
+   * A blocking call that reads messages off the pipe until no new message arrives
+   * within the timeout, or the connection fails.
+   *
+   * Unlike {@link #read(long, TimeUnit, MessagePipeCallback)}, the callback runs on the
+   * supplied executor rather than on the reading thread, so decryption and storage of
+   * one message overlaps with reading the next. Callbacks for envelopes from the same
+   * sender device run one at a time in the order they were received, so the callback
+   * can safely decrypt. Sealed sender envelopes can't be attributed until they are
+   * decrypted, so their callbacks run exclusively: each waits for every earlier
+   * callback and holds back every later one. Where most traffic is sealed sender,
+   * callbacks therefore largely run one at a time, and the overlap left is between
+   * reading and processing.
+   *
+   * A message is acknowledged only after its callback returns normally. If the callback
+   * throws, the message is left unacknowledged and the server will deliver it again.
+   * No more than maxUnacknowledged messages are taken off the connection's queue ahead
+   * of their acknowledgement, which bounds the work handed to the executor. It doesn't
+   * throttle the socket: frames the server pushes meanwhile are still received and
+   * queued in memory, as responses to requests sent over the pipe arrive on the same
+   * connection and must keep being read.
+   *
+   * If the executor rejects a callback, this throws an IOException, and messages whose
+   * callbacks hadn't started are left unacknowledged.
+   *
+   * Before returning or throwing, this waits for all outstanding callbacks to complete.
+   *
+   * @param timeout The timeout to wait for each message.
+   * @param unit The timeout time unit.
+   * @param executor The executor callbacks are run on.
+   * @param maxUnacknowledged The maximum number of messages dispatched to the executor
+   *                          but not yet acknowledged.
+   * @param callback A callback that must durably store the message before returning.
+   *
+   * @throws TimeoutException
+   * @throws IOException
+   * @throws InvalidVersionException
+   */
+  public void read(long timeout, TimeUnit unit, Executor executor, final int maxUnacknowledged, final PipelinedMessageCallback callback)
+      throws TimeoutException, IOException, InvalidVersionException
+  {
+    if (!credentialsProvider.isPresent()) {
+      throw new IllegalArgumentException("You can't read messages if you haven't specified credentials");
+    }
+
+    if (maxUnacknowledged < 1) {
+      throw new IllegalArgumentException("maxUnacknowledged must be at least 1");
+    }
+
+    final Semaphore           unacknowledged      = new Semaphore(maxUnacknowledged);
+    final PartitionedExecutor partitionedExecutor = new PartitionedExecutor(executor, new PartitionedExecutor.DropListener() {
+      @Override
+      public void onDropped(Runnable task) {
+        unacknowledged.release();
+      }
+    });
+
+    try {
+      while (true) {
+        boolean dispatched = false;
+
+        unacknowledged.acquire();
+
+        try {
+          WebSocketRequestMessage        request  = websocket.readRequest(unit.toMillis(timeout));
+          final WebSocketResponseMessage response = createWebSocketResponse(request);
+
+          if (!isSignalServiceEnvelope(request)) {
+            websocket.sendResponse(response);
+            continue;
+          }
+
+          final SignalServiceEnvelope envelope;
+
+          try {
+            boolean signalKeyEncrypted = isSignalKeyEncrypted(request);
+
+            envelope = new SignalServiceEnvelope(request.getBody(),
+                                                 getSignalingKey(signalKeyEncrypted),
+                                                 signalKeyEncrypted);
+          } catch (InvalidVersionException | IOException e) {
+            websocket.sendResponse(response);
+            throw e;
+          }
+
+          Runnable task = new Runnable() {
+            @Override
+            public void run() {
+              try {
+                callback.onMessage(envelope);
+                websocket.sendResponse(response);
+              } catch (Exception e) {
+                Log.w(TAG, "Message not acknowledged", e);
+              } finally {
+                unacknowledged.release();
+              }
+            }
+          };
+
+          if (envelope.isUnidentifiedSender()) partitionedExecutor.executeExclusive(task);
+          else                                 partitionedExecutor.execute(envelope.getSourceIdentifier() + "." + envelope.getSourceDevice(), task);
+
+          dispatched = true;
+        } finally {
+          if (!dispatched) unacknowledged.release();
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while reading: " + e.getMessage());
+    } catch (RejectedExecutionException e) {
+      throw new IOException(e);
+    } finally {
+      unacknowledged.acquireUninterruptibly(maxUnacknowledged);
+      unacknowledged.release(maxUnacknowledged);
+    }
+  }
+
   public SendMessageResponse send(OutgoingPushMessageList list, Optional<UnidentifiedAccess> unidentifiedAccess) throws IOException {
     try {
       List<String> headers = new LinkedList<String>() {{
@@ -138,6 +267,10 @@ public class SignalServiceMessagePipe {
 
       Pair<Integer, String> response = websocket.sendRequest(requestMessage).get(10, TimeUnit.SECONDS);
 
+      if (response.first() == 413) {
+        throw new RateLimitException("Rate limit exceeded: " + response.first());
+      }
+
       if (response.first() < 200 || response.first() >= 300) {
         throw new IOException("Non-successful response: " + response.first());
       }
@@ -181,20 +314,39 @@ public class SignalServiceMessagePipe {
   }
 
   public AttachmentUploadAttributes getAttachmentUploadAttributes() throws IOException {
+    return getAttachmentUploadAttributes(1).get(0);
+  }
+
+  /**
+   * Requests several upload forms at once. The requests are all sent before any
+   * response is waited on, so this costs about one round trip however many are asked for.
+   */
+  public List<AttachmentUploadAttributes> getAttachmentUploadAttributes(int count) throws IOException {
     try {
-      WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
-                                                                      .setId(new SecureRandom().nextLong())
-                                                                      .setVerb("GET")
-                                                                      .setPath("/v2/attachments/form/upload")
-                                                                      .build();
+      List<Future<Pair<Integer, String>>> responses = new ArrayList<>(count);
+      List<AttachmentUploadAttributes>    results   = new ArrayList<>(count);
 
-      Pair<Integer, String> response = websocket.sendRequest(requestMessage).get(10, TimeUnit.SECONDS);
+      for (int i = 0; i < count; i++) {
+        WebSocketRequestMessage requestMessage = WebSocketRequestMessage.newBuilder()
+                                                                        .setId(new SecureRandom().nextLong())
+                                                                        .setVerb("GET")
+                                                                        .setPath("/v2/attachments/form/upload")
+                                                                        .build();
 
-      if (response.first() < 200 || response.first() >= 300) {
-        throw new IOException("Non-successful response: " + response.first());
+        responses.add(websocket.sendRequest(requestMessage));
+      }
+
+      for (Future<Pair<Integer, String>> future : responses) {
+        Pair<Integer, String> response = future.get(10, TimeUnit.SECONDS);
+
+        if (response.first() < 200 || response.first() >= 300) {
+          throw new IOException("Non-successful response: " + response.first());
+        }
+
+        results.add(JsonUtil.fromJson(response.second(), AttachmentUploadAttributes.class));
       }
 
-      return JsonUtil.fromJson(response.second(), AttachmentUploadAttributes.class);
+      return results;
     } catch (InterruptedException | ExecutionException | TimeoutException e) {
       throw new IOException(e);
     }
@@ -207,6 +359,27 @@ public class SignalServiceMessagePipe {
     websocket.disconnect();
   }
 
+  /**
+   * @return This pipe's signaling key, decoded once rather than for every message, or
+   *         null if the message isn't signaling key encrypted.
+   */
+  private SignalingKey getSignalingKey(boolean signalKeyEncrypted) throws IOException {
+    String encoded = credentialsProvider.get().getSignalingKey();
+
+    if (!signalKeyEncrypted || encoded == null) {
+      return null;
+    }
+
+    SignalingKey decoded = signalingKey;
+
+    if (decoded == null || !decoded.getEncoded().equals(encoded)) {
+      decoded      = new SignalingKey(encoded);
+      signalingKey = decoded;
+    }
+
+    return decoded;
+  }
+
   private boolean isSignalServiceEnvelope(WebSocketRequestMessage message) {
     return "PUT".equals(message.getVerb()) && "/api/v1/message".equals(message.getPath());
   }
@@ -255,6 +428,16 @@ public class SignalServiceMessagePipe {
     public void onMessage(SignalServiceEnvelope envelope);
   }
 
+  /**
+   * For processing messages read with {@link #read(long, TimeUnit, Executor, int, PipelinedMessageCallback)}.
+   */
+  public interface PipelinedMessageCallback {
+    /**
+     * Called on a worker thread. The message is acknowledged once this returns.
+     */
+    void onMessage(SignalServiceEnvelope envelope) throws Exception;
+  }
+
   private static class NullMessagePipeCallback implements MessagePipeCallback {
     @Override
     public void onMessage(SignalServiceEnvelope envelope) {}
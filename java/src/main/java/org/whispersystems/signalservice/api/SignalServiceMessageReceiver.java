@@ -9,6 +9,7 @@ package org.whispersystems.signalservice.api;
 import org.whispersystems.libsignal.InvalidMessageException;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.crypto.AttachmentCipherInputStream;
+import org.whispersystems.signalservice.api.crypto.ChunkedAttachmentCipherInputStream;
 import org.whispersystems.signalservice.api.crypto.ProfileCipherInputStream;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener;
@@ -35,6 +36,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
@@ -137,11 +139,122 @@ public class SignalServiceMessageReceiver {
    */
   public InputStream retrieveAttachment(SignalServiceAttachmentPointer pointer, File destination, int maxSizeBytes, ProgressListener listener)
       throws IOException, InvalidMessageException
+  {
+    return retrieveAttachment(pointer, destination, maxSizeBytes, listener, false);
+  }
+
+  /**
+   * Retrieves a SignalServiceAttachment, optionally continuing an earlier download.
+   *
+   * @param pointer The {@link SignalServiceAttachmentPointer}
+   *                received in a {@link SignalServiceDataMessage}.
+   * @param destination The download destination for this attachment.
+   * @param listener An optional listener (may be null) to receive callbacks on download progress.
+   * @param resume If true, bytes already in destination from an interrupted download are kept
+   *               and only the remainder is fetched.
+   *
+   * @return An InputStream that streams the plaintext attachment contents.
+   * @throws IOException
+   * @throws InvalidMessageException
+   */
+  public InputStream retrieveAttachment(SignalServiceAttachmentPointer pointer, File destination, int maxSizeBytes, ProgressListener listener, boolean resume)
+      throws IOException, InvalidMessageException
+  {
+    if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
+
+    socket.retrieveAttachment(pointer.getId(), destination, maxSizeBytes, listener, resume);
+    return createForAttachment(pointer, destination);
+  }
+
+  /**
+   * Retrieves a SignalServiceAttachment and decrypts it to a file, reading the
+   * ciphertext only once.
+   *
+   * @param pointer The {@link SignalServiceAttachmentPointer}
+   *                received in a {@link SignalServiceDataMessage}.
+   * @param destination The download destination for the encrypted attachment.
+   * @param plaintextDestination Where the plaintext is written once it has been verified.
+   * @param listener An optional listener (may be null) to receive callbacks on download progress.
+   *
+   * @throws IOException
+   * @throws InvalidMessageException
+   */
+  public void retrieveAttachment(SignalServiceAttachmentPointer pointer, File destination, File plaintextDestination, int maxSizeBytes, ProgressListener listener)
+      throws IOException, InvalidMessageException
+  {
+    if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
+
+    socket.retrieveAttachment(pointer.getId(), destination, maxSizeBytes, listener);
+
+    if (pointer.isChunked()) {
+      ChunkedAttachmentCipherInputStream.decryptAttachment(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get(), plaintextDestination, null);
+    } else {
+      AttachmentCipherInputStream.decryptAttachment(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get(), plaintextDestination);
+    }
+  }
+
+  /**
+   * Retrieves a SignalServiceAttachment and decrypts it into a channel. The attachment's
+   * MAC and digest are verified before any plaintext is written, and nothing in the
+   * channel besides the plaintext is changed.
+   *
+   * @param pointer The {@link SignalServiceAttachmentPointer}
+   *                received in a {@link SignalServiceDataMessage}.
+   * @param destination The download destination for the encrypted attachment.
+   * @param plaintextDestination The channel the verified plaintext is written to, from its current position.
+   * @param listener An optional listener (may be null) to receive callbacks on download progress.
+   *
+   * @throws IOException
+   * @throws InvalidMessageException
+   */
+  public void retrieveAttachment(SignalServiceAttachmentPointer pointer, File destination, FileChannel plaintextDestination, int maxSizeBytes, ProgressListener listener)
+      throws IOException, InvalidMessageException
   {
     if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
 
     socket.retrieveAttachment(pointer.getId(), destination, maxSizeBytes, listener);
-    return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get());
+
+    if (pointer.isChunked()) {
+      ChunkedAttachmentCipherInputStream.decryptAttachment(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get(), plaintextDestination);
+      return;
+    }
+
+    try (FileInputStream ciphertext = new FileInputStream(destination)) {
+      AttachmentCipherInputStream.decryptAttachment(ciphertext.getChannel(), pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get(), plaintextDestination);
+    }
+  }
+
+  /**
+   * Retrieves a SignalServiceAttachment by fetching several byte ranges of it in parallel.
+   * The digest is verified once every range has arrived.
+   *
+   * @param pointer The {@link SignalServiceAttachmentPointer}
+   *                received in a {@link SignalServiceDataMessage}.
+   * @param destination The download destination for this attachment.
+   * @param segments The most ranges to fetch at once.
+   * @param listener An optional listener (may be null) to receive callbacks on download progress.
+   *
+   * @return An InputStream that streams the plaintext attachment contents.
+   * @throws IOException
+   * @throws InvalidMessageException
+   */
+  public InputStream retrieveAttachmentSegmented(SignalServiceAttachmentPointer pointer, File destination, int maxSizeBytes, int segments, ProgressListener listener)
+      throws IOException, InvalidMessageException
+  {
+    if (!pointer.getDigest().isPresent()) throw new InvalidMessageException("No attachment digest!");
+
+    socket.retrieveAttachmentSegmented(pointer.getId(), destination, maxSizeBytes, segments, listener);
+    return createForAttachment(pointer, destination);
+  }
+
+  private InputStream createForAttachment(SignalServiceAttachmentPointer pointer, File destination)
+      throws IOException, InvalidMessageException
+  {
+    if (pointer.isChunked()) {
+      return ChunkedAttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get());
+    } else {
+      return AttachmentCipherInputStream.createForAttachment(destination, pointer.getSize().or(0), pointer.getKey(), pointer.getDigest().get());
+    }
   }
 
   public InputStream retrieveSticker(byte[] packId, byte[] packKey, int stickerId)
@@ -17,10 +17,13 @@ import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.crypto.AttachmentCipherOutputStream;
+import org.whispersystems.signalservice.api.crypto.ChunkedAttachmentCipherOutputStream;
 import org.whispersystems.signalservice.api.crypto.SignalServiceCipher;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccessPair;
 import org.whispersystems.signalservice.api.crypto.UntrustedIdentityException;
+import org.whispersystems.signalservice.api.messages.AttachmentUploadCache;
+import org.whispersystems.signalservice.api.messages.AttachmentUploadResult;
 import org.whispersystems.signalservice.api.messages.SendMessageResult;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentPointer;
@@ -45,8 +48,10 @@ import org.whispersystems.signalservice.api.messages.shared.SharedContact;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import org.whispersystems.signalservice.api.push.exceptions.AuthorizationFailedException;
 import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+import org.whispersystems.signalservice.api.push.exceptions.RateLimitException;
 import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
 import org.whispersystems.signalservice.api.util.CredentialsProvider;
+import org.whispersystems.signalservice.api.util.SendScheduler;
 import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
 import org.whispersystems.signalservice.internal.crypto.PaddingInputStream;
 import org.whispersystems.signalservice.internal.push.AttachmentUploadAttributes;
@@ -56,6 +61,7 @@ import org.whispersystems.signalservice.internal.push.OutgoingPushMessageList;
 import org.whispersystems.signalservice.internal.push.ProvisioningProtos;
 import org.whispersystems.signalservice.internal.push.PushAttachmentData;
 import org.whispersystems.signalservice.internal.push.PushServiceSocket;
+import org.whispersystems.signalservice.internal.push.RetryPolicy;
 import org.whispersystems.signalservice.internal.push.SendMessageResponse;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.AttachmentPointer;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.CallMessage;
@@ -71,18 +77,33 @@ import org.whispersystems.signalservice.internal.push.StaleDevices;
 import org.whispersystems.signalservice.internal.push.exceptions.MismatchedDevicesException;
 import org.whispersystems.signalservice.internal.push.exceptions.StaleDevicesException;
 import org.whispersystems.signalservice.internal.push.http.AttachmentCipherOutputStreamFactory;
+import org.whispersystems.signalservice.internal.push.http.ChunkedAttachmentCipherOutputStreamFactory;
+import org.whispersystems.signalservice.internal.push.http.OutputStreamFactory;
 import org.whispersystems.signalservice.internal.util.StaticCredentialsProvider;
 import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
 import org.whispersystems.util.Base64;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -95,14 +116,22 @@ public class SignalServiceMessageSender {
 
   private static final String TAG = SignalServiceMessageSender.class.getSimpleName();
 
+  private static final int MAX_CONCURRENT_PREKEY_FETCHES = 8;
+
   private final PushServiceSocket                                   socket;
   private final SignalProtocolStore                                 store;
   private final SignalServiceAddress                                localAddress;
   private final Optional<EventListener>                             eventListener;
+  private final Optional<ExecutorService>                           executor;
+  private final int                                                 maxConcurrentSends;
+  private final Optional<RetryPolicy>                               retryPolicy;
 
   private final AtomicReference<Optional<SignalServiceMessagePipe>> pipe;
   private final AtomicReference<Optional<SignalServiceMessagePipe>> unidentifiedPipe;
   private final AtomicBoolean                                       isMultiDevice;
+  private final AtomicReference<Optional<AttachmentUploadCache>>    attachmentCache;
+  private final AtomicReference<Optional<SendScheduler>>            sendScheduler;
+  private final AtomicBoolean                                       chunkedAttachments;
 
   /**
    * Construct a SignalServiceMessageSender.
@@ -136,13 +165,48 @@ public class SignalServiceMessageSender {
                                     Optional<SignalServiceMessagePipe> unidentifiedPipe,
                                     Optional<EventListener> eventListener)
   {
-    this.socket           = new PushServiceSocket(urls, credentialsProvider, userAgent);
-    this.store            = store;
-    this.localAddress     = new SignalServiceAddress(credentialsProvider.getUuid(), credentialsProvider.getE164());
-    this.pipe             = new AtomicReference<>(pipe);
-    this.unidentifiedPipe = new AtomicReference<>(unidentifiedPipe);
-    this.isMultiDevice    = new AtomicBoolean(isMultiDevice);
-    this.eventListener    = eventListener;
+    this(urls, credentialsProvider, store, userAgent, isMultiDevice, pipe, unidentifiedPipe, eventListener, Optional.<ExecutorService>absent(), 1);
+  }
+
+  /**
+   * Construct a SignalServiceMessageSender that fans multi-recipient sends out
+   * over an executor.
+   *
+   * @param executor An optional executor. When present, each recipient of a multi-recipient
+   *                 send is encrypted and transmitted as its own task on this executor.
+   *                 The SignalProtocolStore (and EventListener) must then be safe for use
+   *                 from multiple threads.
+   * @param maxConcurrentSends The maximum number of recipients of a single multi-recipient
+   *                           send that may be in flight at once.
+   */
+  public SignalServiceMessageSender(SignalServiceConfiguration urls,
+                                    CredentialsProvider credentialsProvider,
+                                    SignalProtocolStore store,
+                                    String userAgent,
+                                    boolean isMultiDevice,
+                                    Optional<SignalServiceMessagePipe> pipe,
+                                    Optional<SignalServiceMessagePipe> unidentifiedPipe,
+                                    Optional<EventListener> eventListener,
+                                    Optional<ExecutorService> executor,
+                                    int maxConcurrentSends)
+  {
+    if (maxConcurrentSends < 1) {
+      throw new IllegalArgumentException("maxConcurrentSends must be at least 1");
+    }
+
+    this.socket             = new PushServiceSocket(urls, credentialsProvider, userAgent);
+    this.store              = store;
+    this.localAddress       = new SignalServiceAddress(credentialsProvider.getUuid(), credentialsProvider.getE164());
+    this.pipe               = new AtomicReference<>(pipe);
+    this.unidentifiedPipe   = new AtomicReference<>(unidentifiedPipe);
+    this.isMultiDevice      = new AtomicBoolean(isMultiDevice);
+    this.attachmentCache    = new AtomicReference<>(Optional.<AttachmentUploadCache>absent());
+    this.sendScheduler      = new AtomicReference<>(Optional.<SendScheduler>absent());
+    this.chunkedAttachments = new AtomicBoolean(false);
+    this.eventListener      = eventListener;
+    this.executor           = executor;
+    this.maxConcurrentSends = maxConcurrentSends;
+    this.retryPolicy        = urls.getRetryPolicy();
   }
 
   /**
@@ -332,46 +396,309 @@ public class SignalServiceMessageSender {
     this.isMultiDevice.set(isMultiDevice);
   }
 
+  /**
+   * Reuse earlier uploads of identical content rather than uploading it again. Only
+   * attachments that carry a {@link SignalServiceAttachmentStream#getContentHash()}
+   * can be served from the cache, but every upload made while it is set is added to it.
+   *
+   * A cache hit is trusted without reading the stream, so the content hash must be the
+   * SHA-256 of exactly the stream's content: a wrong or stale hash sends a pointer to
+   * whatever attachment was uploaded with that hash. An upload whose content turns out
+   * not to match its hash fails with an IOException and isn't cached.
+   *
+   * @param cache The cache to use, or null to stop using one.
+   */
+  public void setAttachmentUploadCache(AttachmentUploadCache cache) {
+    this.attachmentCache.set(Optional.fromNullable(cache));
+  }
+
+  /**
+   * Pace sends through a scheduler rather than sending each as soon as it is ready.
+   * Sync messages to our own devices are sent as {@link SendScheduler.Priority#BULK},
+   * everything else as {@link SendScheduler.Priority#INTERACTIVE}.
+   *
+   * @param scheduler The scheduler to use, or null to stop using one.
+   */
+  public void setSendScheduler(SendScheduler scheduler) {
+    this.sendScheduler.set(Optional.fromNullable(scheduler));
+  }
+
+  /**
+   * Experimental. Honor {@link SignalServiceAttachment.Builder#withChunkedFormat(boolean)}
+   * when uploading; while this is off, which it is by default, chunked attachments are
+   * uploaded in the standard format instead.
+   *
+   * A chunked attachment can only be read by clients whose profile advertises
+   * {@link org.whispersystems.signalservice.api.profiles.SignalServiceProfile.Capabilities#isChunkedAttachments()}.
+   * The sender doesn't know who an upload is for, so callers must check that capability
+   * for every recipient, and for our own other devices when sending sync messages,
+   * before asking for the chunked format.
+   */
+  public void setChunkedAttachmentsEnabled(boolean enabled) {
+    this.chunkedAttachments.set(enabled);
+  }
+
   public SignalServiceAttachmentPointer uploadAttachment(SignalServiceAttachmentStream attachment) throws IOException {
-    byte[]             attachmentKey    = Util.getSecretBytes(64);
-    long               paddedLength     = PaddingInputStream.getPaddedSize(attachment.getLength());
-    InputStream        dataStream       = new PaddingInputStream(attachment.getInputStream(), attachment.getLength());
-    long               ciphertextLength = AttachmentCipherOutputStream.getCiphertextLength(paddedLength);
-    PushAttachmentData attachmentData   = new PushAttachmentData(attachment.getContentType(),
-                                                                 dataStream,
-                                                                 ciphertextLength,
-                                                                 new AttachmentCipherOutputStreamFactory(attachmentKey),
-                                                                 attachment.getListener());
-
-    AttachmentUploadAttributes uploadAttributes = null;
+    Optional<SignalServiceAttachmentPointer> cached = getCachedUpload(attachment);
+
+    if (cached.isPresent()) {
+      return cached.get();
+    }
+
+    return uploadAttachment(attachment, getAttachmentUploadAttributes(1).get(0));
+  }
+
+  /**
+   * Upload several attachments at once. Upload forms for all of them are requested
+   * together, and if this sender has an executor, up to maxConcurrentUploads of them
+   * are encrypted and streamed to the CDN at the same time.
+   *
+   * Each attachment reports progress to its own listener. An attachment that fails to
+   * upload is reported in its result and doesn't stop the others.
+   *
+   * @param attachments The attachments to upload.
+   * @param maxConcurrentUploads The most attachments to upload at once.
+   * @return One result for each attachment, in the same order.
+   * @throws IOException If the upload forms couldn't be retrieved.
+   */
+  public List<AttachmentUploadResult> uploadAttachments(List<SignalServiceAttachmentStream> attachments, int maxConcurrentUploads)
+      throws IOException
+  {
+    if (maxConcurrentUploads < 1) {
+      throw new IllegalArgumentException("maxConcurrentUploads must be at least 1");
+    }
+
+    AttachmentUploadResult[] results = new AttachmentUploadResult[attachments.size()];
+    List<Integer>            uploads = new LinkedList<>();
+
+    for (int i = 0; i < attachments.size(); i++) {
+      Optional<SignalServiceAttachmentPointer> cached = getCachedUpload(attachments.get(i));
+
+      if (cached.isPresent()) results[i] = AttachmentUploadResult.success(attachments.get(i), cached.get());
+      else                    uploads.add(i);
+    }
+
+    List<AttachmentUploadAttributes> uploadAttributes = getAttachmentUploadAttributes(uploads.size());
+
+    if (executor.isPresent() && uploads.size() > 1 && maxConcurrentUploads > 1) {
+      uploadAttachmentsConcurrently(attachments, uploads, uploadAttributes, maxConcurrentUploads, results);
+    } else {
+      Iterator<AttachmentUploadAttributes> uploadAttributesIterator = uploadAttributes.iterator();
+
+      for (int index : uploads) {
+        SignalServiceAttachmentStream attachment = attachments.get(index);
+
+        try {
+          results[index] = AttachmentUploadResult.success(attachment, uploadAttachment(attachment, uploadAttributesIterator.next()));
+        } catch (IOException e) {
+          Log.w(TAG, e);
+          results[index] = AttachmentUploadResult.failure(attachment, e);
+        }
+      }
+    }
+
+    return Arrays.asList(results);
+  }
+
+  private void uploadAttachmentsConcurrently(List<SignalServiceAttachmentStream> attachments,
+                                             List<Integer>                       uploads,
+                                             List<AttachmentUploadAttributes>    uploadAttributes,
+                                             int                                 maxConcurrentUploads,
+                                             AttachmentUploadResult[]            results)
+      throws IOException
+  {
+    final Semaphore                              permits                  = new Semaphore(maxConcurrentUploads);
+    List<Future<SignalServiceAttachmentPointer>> futurePointers           = new ArrayList<>(uploads.size());
+    Iterator<AttachmentUploadAttributes>         uploadAttributesIterator = uploadAttributes.iterator();
+
+    try {
+      for (int index : uploads) {
+        final SignalServiceAttachmentStream attachment = attachments.get(index);
+        final AttachmentUploadAttributes    attributes = uploadAttributesIterator.next();
+
+        permits.acquire();
+
+        try {
+          futurePointers.add(executor.get().submit(new Callable<SignalServiceAttachmentPointer>() {
+            @Override
+            public SignalServiceAttachmentPointer call() throws Exception {
+              try {
+                return uploadAttachment(attachment, attributes);
+              } finally {
+                permits.release();
+              }
+            }
+          }));
+        } catch (RejectedExecutionException e) {
+          permits.release();
+          throw new IOException(e);
+        }
+      }
+
+      Iterator<Future<SignalServiceAttachmentPointer>> futureIterator = futurePointers.iterator();
+
+      for (int index : uploads) {
+        results[index] = getAttachmentUploadResult(attachments.get(index), futureIterator.next());
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while uploading: " + e.getMessage());
+    } finally {
+      for (Future<SignalServiceAttachmentPointer> future : futurePointers) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  private AttachmentUploadResult getAttachmentUploadResult(SignalServiceAttachmentStream attachment, Future<SignalServiceAttachmentPointer> future)
+      throws InterruptedException
+  {
+    try {
+      return AttachmentUploadResult.success(attachment, future.get());
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+
+      if (cause instanceof IOException) {
+        Log.w(TAG, cause);
+        return AttachmentUploadResult.failure(attachment, (IOException) cause);
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        return AttachmentUploadResult.failure(attachment, new IOException(cause));
+      }
+    }
+  }
+
+  private Optional<SignalServiceAttachmentPointer> getCachedUpload(SignalServiceAttachmentStream attachment) {
+    Optional<AttachmentUploadCache> cache = attachmentCache.get();
+
+    if (cache.isPresent() && attachment.getContentHash().isPresent() && !isChunked(attachment)) {
+      Optional<AttachmentUploadCache.Entry> cached = cache.get().get(attachment.getContentHash().get(), attachment.getLength());
+
+      if (cached.isPresent()) {
+        Log.d(TAG, "Reusing cached upload of attachment " + cached.get().getId());
+        return Optional.of(createAttachmentPointer(cached.get().getId(), cached.get().getKey(), cached.get().getDigest(), false, attachment));
+      }
+    }
+
+    return Optional.absent();
+  }
+
+  private List<AttachmentUploadAttributes> getAttachmentUploadAttributes(int count) throws IOException {
+    if (count == 0) {
+      return Collections.emptyList();
+    }
 
     if (pipe.get().isPresent()) {
       Log.d(TAG, "Using pipe to retrieve attachment upload attributes...");
       try {
-        uploadAttributes = pipe.get().get().getAttachmentUploadAttributes();
+        return pipe.get().get().getAttachmentUploadAttributes(count);
       } catch (IOException e) {
         Log.w(TAG, "Failed to retrieve attachment upload attributes using pipe. Falling back...");
       }
     }
 
-    if (uploadAttributes == null) {
-      Log.d(TAG, "Not using pipe to retrieve attachment upload attributes...");
-      uploadAttributes = socket.getAttachmentUploadAttributes();
+    Log.d(TAG, "Not using pipe to retrieve attachment upload attributes...");
+
+    if (count == 1) {
+      return Collections.singletonList(socket.getAttachmentUploadAttributes());
     }
 
+    List<ListenableFuture<AttachmentUploadAttributes>> futures = new ArrayList<>(count);
+    List<AttachmentUploadAttributes>                   results = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      futures.add(socket.getAttachmentUploadAttributesAsync());
+    }
+
+    try {
+      for (ListenableFuture<AttachmentUploadAttributes> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while retrieving upload attributes: " + e.getMessage());
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+      else                                     throw new IOException(e.getCause());
+    }
+
+    return results;
+  }
+
+  private SignalServiceAttachmentPointer uploadAttachment(SignalServiceAttachmentStream attachment, AttachmentUploadAttributes uploadAttributes)
+      throws IOException
+  {
+    boolean                         chunked          = isChunked(attachment);
+    Optional<AttachmentUploadCache> cache            = chunked ? Optional.<AttachmentUploadCache>absent() : attachmentCache.get();
+    MessageDigest                   plaintextDigest  = cache.isPresent() ? getSha256() : null;
+    InputStream                     plaintext        = cache.isPresent() ? new DigestInputStream(attachment.getInputStream(), plaintextDigest) : attachment.getInputStream();
+    byte[]                          attachmentKey    = Util.getSecretBytes(64);
+    long                            paddedLength     = PaddingInputStream.getPaddedSize(attachment.getLength());
+    InputStream                     dataStream       = new PaddingInputStream(plaintext, attachment.getLength());
+    long                            ciphertextLength;
+    OutputStreamFactory             outputStreamFactory;
+
+    if (chunked) {
+      ciphertextLength    = ChunkedAttachmentCipherOutputStream.getCiphertextLength(paddedLength);
+      outputStreamFactory = new ChunkedAttachmentCipherOutputStreamFactory(attachmentKey);
+    } else {
+      ciphertextLength    = AttachmentCipherOutputStream.getCiphertextLength(paddedLength);
+      outputStreamFactory = new AttachmentCipherOutputStreamFactory(attachmentKey);
+    }
+
+    PushAttachmentData attachmentData = new PushAttachmentData(attachment.getContentType(),
+                                                               dataStream,
+                                                               ciphertextLength,
+                                                               outputStreamFactory,
+                                                               attachment.getListener());
+
     Pair<Long, byte[]> attachmentIdAndDigest = socket.uploadAttachment(attachmentData, uploadAttributes);
 
-    return new SignalServiceAttachmentPointer(attachmentIdAndDigest.first(),
+    if (cache.isPresent()) {
+      byte[] plaintextHash = plaintextDigest.digest();
+
+      if (attachment.getContentHash().isPresent() && !Arrays.equals(attachment.getContentHash().get(), plaintextHash)) {
+        throw new IOException("Attachment content hash doesn't match its content!");
+      }
+
+      cache.get().put(plaintextHash, new AttachmentUploadCache.Entry(attachmentIdAndDigest.first(), attachmentKey, attachmentIdAndDigest.second(),
+                                                                     attachment.getLength(), System.currentTimeMillis()));
+    }
+
+    return createAttachmentPointer(attachmentIdAndDigest.first(), attachmentKey, attachmentIdAndDigest.second(), chunked, attachment);
+  }
+
+  private boolean isChunked(SignalServiceAttachmentStream attachment) {
+    if (attachment.isChunked() && !chunkedAttachments.get()) {
+      Log.w(TAG, "Chunked attachments aren't enabled, uploading in the standard format");
+      return false;
+    }
+
+    return attachment.isChunked();
+  }
+
+  private SignalServiceAttachmentPointer createAttachmentPointer(long id, byte[] key, byte[] digest, boolean chunked, SignalServiceAttachmentStream attachment) {
+    return new SignalServiceAttachmentPointer(id,
                                               attachment.getContentType(),
-                                              attachmentKey,
+                                              key,
                                               Optional.of(Util.toIntExact(attachment.getLength())),
                                               attachment.getPreview(),
                                               attachment.getWidth(), attachment.getHeight(),
-                                              Optional.of(attachmentIdAndDigest.second()),
+                                              Optional.of(digest),
                                               attachment.getFileName(),
                                               attachment.getVoiceNote(),
                                               attachment.getCaption(),
-                                              attachment.getBlurHash());
+                                              attachment.getBlurHash(),
+                                              chunked);
+  }
+
+  private static MessageDigest getSha256() {
+    try {
+      return MessageDigest.getInstance("SHA256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
   }
 
 
@@ -988,6 +1315,14 @@ public class SignalServiceMessageSender {
                                               boolean                            online)
       throws IOException
   {
+    if (recipients.size() > 1) {
+      prefetchSessions(recipients, unidentifiedAccess);
+    }
+
+    if (executor.isPresent() && recipients.size() > 1) {
+      return sendMessageConcurrently(recipients, unidentifiedAccess, timestamp, content, online);
+    }
+
     List<SendMessageResult>                results                    = new LinkedList<>();
     Iterator<SignalServiceAddress>         recipientIterator          = recipients.iterator();
     Iterator<Optional<UnidentifiedAccess>> unidentifiedAccessIterator = unidentifiedAccess.iterator();
@@ -1013,6 +1348,153 @@ public class SignalServiceMessageSender {
     return results;
   }
 
+  private List<SendMessageResult> sendMessageConcurrently(List<SignalServiceAddress>         recipients,
+                                                          List<Optional<UnidentifiedAccess>> unidentifiedAccess,
+                                                          final long                         timestamp,
+                                                          final byte[]                       content,
+                                                          final boolean                      online)
+      throws IOException
+  {
+    final Semaphore                        permits                    = new Semaphore(maxConcurrentSends);
+    List<Future<SendMessageResult>>        futureResults              = new ArrayList<>(recipients.size());
+    Iterator<SignalServiceAddress>         recipientIterator          = recipients.iterator();
+    Iterator<Optional<UnidentifiedAccess>> unidentifiedAccessIterator = unidentifiedAccess.iterator();
+
+    try {
+      while (recipientIterator.hasNext()) {
+        final SignalServiceAddress         recipient = recipientIterator.next();
+        final Optional<UnidentifiedAccess> access    = unidentifiedAccessIterator.next();
+
+        permits.acquire();
+
+        try {
+          futureResults.add(executor.get().submit(new Callable<SendMessageResult>() {
+            @Override
+            public SendMessageResult call() throws Exception {
+              try {
+                return sendMessage(recipient, access, timestamp, content, online);
+              } finally {
+                permits.release();
+              }
+            }
+          }));
+        } catch (RejectedExecutionException e) {
+          permits.release();
+          throw new IOException(e);
+        }
+      }
+
+      List<SendMessageResult>             results        = new ArrayList<>(futureResults.size());
+      Iterator<Future<SendMessageResult>> futureIterator = futureResults.iterator();
+
+      for (SignalServiceAddress recipient : recipients) {
+        results.add(getSendMessageResult(recipient, futureIterator.next()));
+      }
+
+      return results;
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while sending: " + e.getMessage());
+    } finally {
+      for (Future<SendMessageResult> future : futureResults) {
+        future.cancel(false);
+      }
+    }
+  }
+
+  /**
+   * Establishes sessions with every recipient we don't have one with yet, before any
+   * message is encrypted. Prekey bundles are fetched concurrently instead of one round
+   * trip at a time from inside the send loop.
+   *
+   * This is best-effort: any recipient whose bundles can't be fetched or processed is
+   * skipped here and handled (and reported) by the regular send path.
+   */
+  private void prefetchSessions(List<SignalServiceAddress> recipients, List<Optional<UnidentifiedAccess>> unidentifiedAccess)
+      throws IOException
+  {
+    final Semaphore                            permits                    = new Semaphore(MAX_CONCURRENT_PREKEY_FETCHES);
+    List<SignalServiceAddress>                 missingRecipients          = new LinkedList<>();
+    List<ListenableFuture<List<PreKeyBundle>>> preKeyFutures              = new LinkedList<>();
+    Iterator<SignalServiceAddress>             recipientIterator          = recipients.iterator();
+    Iterator<Optional<UnidentifiedAccess>>     unidentifiedAccessIterator = unidentifiedAccess.iterator();
+
+    try {
+      while (recipientIterator.hasNext()) {
+        SignalServiceAddress         recipient = recipientIterator.next();
+        Optional<UnidentifiedAccess> access    = unidentifiedAccessIterator.next();
+
+        if (recipient.matches(localAddress) && !access.isPresent()) continue;
+        if (store.containsSession(new SignalProtocolAddress(recipient.getIdentifier(), SignalServiceAddress.DEFAULT_DEVICE_ID))) continue;
+
+        permits.acquire();
+
+        ListenableFuture<List<PreKeyBundle>> preKeys = socket.getPreKeysAsync(recipient, access, SignalServiceAddress.DEFAULT_DEVICE_ID);
+        preKeys.addListener(new ListenableFuture.Listener<List<PreKeyBundle>>() {
+          @Override
+          public void onSuccess(List<PreKeyBundle> result) {
+            permits.release();
+          }
+
+          @Override
+          public void onFailure(ExecutionException e) {
+            permits.release();
+          }
+        });
+
+        missingRecipients.add(recipient);
+        preKeyFutures.add(preKeys);
+      }
+
+      Iterator<ListenableFuture<List<PreKeyBundle>>> preKeyIterator = preKeyFutures.iterator();
+
+      for (SignalServiceAddress recipient : missingRecipients) {
+        try {
+          for (PreKeyBundle preKey : preKeyIterator.next().get()) {
+            SignalProtocolAddress preKeyAddress = new SignalProtocolAddress(recipient.getIdentifier(), preKey.getDeviceId());
+            new SessionBuilder(store, preKeyAddress).process(preKey);
+          }
+
+          if (eventListener.isPresent()) {
+            eventListener.get().onSecurityEvent(recipient);
+          }
+        } catch (ExecutionException | InvalidKeyException | org.whispersystems.libsignal.UntrustedIdentityException e) {
+          Log.w(TAG, "Failed to prefetch session for " + recipient.getIdentifier(), e);
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while fetching prekeys: " + e.getMessage());
+    }
+  }
+
+  private SendMessageResult getSendMessageResult(SignalServiceAddress recipient, Future<SendMessageResult> future)
+      throws IOException, InterruptedException
+  {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+
+      if (cause instanceof UntrustedIdentityException) {
+        Log.w(TAG, cause);
+        return SendMessageResult.identityFailure(recipient, ((UntrustedIdentityException) cause).getIdentityKey());
+      } else if (cause instanceof UnregisteredUserException) {
+        Log.w(TAG, cause);
+        return SendMessageResult.unregisteredFailure(recipient);
+      } else if (cause instanceof PushNetworkException) {
+        Log.w(TAG, cause);
+        return SendMessageResult.networkFailure(recipient);
+      } else if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      } else {
+        throw new IOException(cause);
+      }
+    }
+  }
+
   private SendMessageResult sendMessage(SignalServiceAddress         recipient,
                                         Optional<UnidentifiedAccess> unidentifiedAccess,
                                         long                         timestamp,
@@ -1020,17 +1502,30 @@ public class SignalServiceMessageSender {
                                         boolean                      online)
       throws UntrustedIdentityException, IOException
   {
+    Optional<SendScheduler> scheduler = this.sendScheduler.get();
+
     for (int i=0;i<4;i++) {
+      if (scheduler.isPresent()) {
+        acquireSendPermit(scheduler.get(), recipient);
+      }
+
       try {
         OutgoingPushMessageList            messages         = getEncryptedMessages(socket, recipient, unidentifiedAccess, timestamp, content, online);
         Optional<SignalServiceMessagePipe> pipe             = this.pipe.get();
         Optional<SignalServiceMessagePipe> unidentifiedPipe = this.unidentifiedPipe.get();
 
+        if (retryPolicy.isPresent() && (pipe.isPresent() || unidentifiedPipe.isPresent())) {
+          retryPolicy.get().checkRateLimit(PushServiceSocket.SEND_MESSAGE_REQUEST_CLASS);
+        }
+
         if (pipe.isPresent() && !unidentifiedAccess.isPresent()) {
           try {
             Log.w(TAG, "Transmitting over pipe...");
             SendMessageResponse response = pipe.get().send(messages, Optional.<UnidentifiedAccess>absent());
             return SendMessageResult.success(recipient, false, response.getNeedsSync() || isMultiDevice.get());
+          } catch (RateLimitException e) {
+            onPipeRateLimited();
+            throw e;
           } catch (IOException e) {
             Log.w(TAG, e);
             Log.w(TAG, "Falling back to new connection...");
@@ -1040,6 +1535,9 @@ public class SignalServiceMessageSender {
             Log.w(TAG, "Transmitting over unidentified pipe...");
             SendMessageResponse response = unidentifiedPipe.get().send(messages, unidentifiedAccess);
             return SendMessageResult.success(recipient, true, response.getNeedsSync() || isMultiDevice.get());
+          } catch (RateLimitException e) {
+            onPipeRateLimited();
+            throw e;
           } catch (IOException e) {
             Log.w(TAG, e);
             Log.w(TAG, "Falling back to new connection...");
@@ -1066,12 +1564,38 @@ public class SignalServiceMessageSender {
       } catch (StaleDevicesException ste) {
         Log.w(TAG, ste);
         handleStaleDevices(recipient, ste.getStaleDevices());
+      } catch (RateLimitException e) {
+        if (scheduler.isPresent()) {
+          scheduler.get().onRateLimited(localAddress.getIdentifier());
+        }
+        throw e;
       }
     }
 
     throw new IOException("Failed to resolve conflicts after 3 attempts!");
   }
 
+  private void acquireSendPermit(SendScheduler scheduler, SignalServiceAddress recipient) throws InterruptedIOException {
+    SendScheduler.Priority priority = recipient.matches(localAddress) ? SendScheduler.Priority.BULK
+                                                                      : SendScheduler.Priority.INTERACTIVE;
+
+    try {
+      scheduler.acquire(localAddress.getIdentifier(), recipient.getIdentifier(), priority);
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting to send: " + e.getMessage());
+    }
+  }
+
+  /**
+   * A pipe send was rate limited. Rather than falling back to the socket, which would
+   * only be rate limited too, start the retry policy's cool-down.
+   */
+  private void onPipeRateLimited() {
+    if (retryPolicy.isPresent()) {
+      retryPolicy.get().onRateLimited(PushServiceSocket.SEND_MESSAGE_REQUEST_CLASS);
+    }
+  }
+
   private List<AttachmentPointer> createAttachmentPointers(Optional<List<SignalServiceAttachment>> attachments) throws IOException {
     List<AttachmentPointer> pointers = new LinkedList<>();
 
@@ -1080,8 +1604,23 @@ public class SignalServiceMessageSender {
       return pointers;
     }
 
+    List<SignalServiceAttachmentStream> streams = new LinkedList<>();
+
+    for (SignalServiceAttachment attachment : attachments.get()) {
+      if (attachment.isStream()) streams.add(attachment.asStream());
+    }
+
+    Iterator<AttachmentUploadResult> uploads = streams.size() > 1 ? uploadAttachments(streams, maxConcurrentSends).iterator()
+                                                                  : Collections.<AttachmentUploadResult>emptyIterator();
+
     for (SignalServiceAttachment attachment : attachments.get()) {
-      if (attachment.isStream()) {
+      if (attachment.isStream() && uploads.hasNext()) {
+        Log.w(TAG, "Found attachment, uploaded with the rest...");
+        AttachmentUploadResult upload = uploads.next();
+
+        if (!upload.isSuccess()) throw upload.getFailure().get();
+        pointers.add(createAttachmentPointer(upload.getPointer().get()));
+      } else if (attachment.isStream()) {
         Log.w(TAG, "Found attachment, creating pointer...");
         pointers.add(createAttachmentPointer(attachment.asStream()));
       } else if (attachment.isPointer()) {
@@ -1117,8 +1656,18 @@ public class SignalServiceMessageSender {
       builder.setHeight(attachment.getHeight());
     }
 
+    int flags = 0;
+
     if (attachment.getVoiceNote()) {
-      builder.setFlags(AttachmentPointer.Flags.VOICE_MESSAGE_VALUE);
+      flags |= AttachmentPointer.Flags.VOICE_MESSAGE_VALUE;
+    }
+
+    if (attachment.isChunked()) {
+      flags |= AttachmentPointer.Flags.CHUNKED_VALUE;
+    }
+
+    if (flags != 0) {
+      builder.setFlags(flags);
     }
 
     if (attachment.getCaption().isPresent()) {
@@ -1148,30 +1697,38 @@ public class SignalServiceMessageSender {
                                                        boolean                      online)
       throws IOException, InvalidKeyException, UntrustedIdentityException
   {
-    List<OutgoingPushMessage> messages = new LinkedList<>();
+    List<SignalProtocolAddress> destinations = new LinkedList<>();
 
     if (!recipient.matches(localAddress) || unidentifiedAccess.isPresent()) {
-      messages.add(getEncryptedMessage(socket, recipient, unidentifiedAccess, SignalServiceAddress.DEFAULT_DEVICE_ID, plaintext));
+      createSessionIfMissing(socket, recipient, unidentifiedAccess, SignalServiceAddress.DEFAULT_DEVICE_ID);
+      destinations.add(new SignalProtocolAddress(recipient.getIdentifier(), SignalServiceAddress.DEFAULT_DEVICE_ID));
     }
 
     for (int deviceId : store.getSubDeviceSessions(recipient.getIdentifier())) {
-      if (store.containsSession(new SignalProtocolAddress(recipient.getIdentifier(), deviceId))) {
-        messages.add(getEncryptedMessage(socket, recipient, unidentifiedAccess, deviceId, plaintext));
+      SignalProtocolAddress destination = new SignalProtocolAddress(recipient.getIdentifier(), deviceId);
+
+      if (store.containsSession(destination)) {
+        destinations.add(destination);
       }
     }
 
-    return new OutgoingPushMessageList(recipient.getIdentifier(), timestamp, messages, online);
+    try {
+      SignalServiceCipher       cipher   = new SignalServiceCipher(localAddress, store, null);
+      List<OutgoingPushMessage> messages = cipher.encrypt(destinations, unidentifiedAccess, plaintext);
+
+      return new OutgoingPushMessageList(recipient.getIdentifier(), timestamp, messages, online);
+    } catch (org.whispersystems.libsignal.UntrustedIdentityException e) {
+      throw new UntrustedIdentityException("Untrusted on send", recipient.getIdentifier(), e.getUntrustedIdentity());
+    }
   }
 
-  private OutgoingPushMessage getEncryptedMessage(PushServiceSocket            socket,
-                                                  SignalServiceAddress         recipient,
-                                                  Optional<UnidentifiedAccess> unidentifiedAccess,
-                                                  int                          deviceId,
-                                                  byte[]                       plaintext)
-      throws IOException, InvalidKeyException, UntrustedIdentityException
+  private void createSessionIfMissing(PushServiceSocket            socket,
+                                      SignalServiceAddress         recipient,
+                                      Optional<UnidentifiedAccess> unidentifiedAccess,
+                                      int                          deviceId)
+      throws IOException, UntrustedIdentityException
   {
     SignalProtocolAddress signalProtocolAddress = new SignalProtocolAddress(recipient.getIdentifier(), deviceId);
-    SignalServiceCipher   cipher                = new SignalServiceCipher(localAddress, store, null);
 
     if (!store.containsSession(signalProtocolAddress)) {
       try {
@@ -1194,12 +1751,6 @@ public class SignalServiceMessageSender {
         throw new IOException(e);
       }
     }
-
-    try {
-      return cipher.encrypt(signalProtocolAddress, unidentifiedAccess, plaintext);
-    } catch (org.whispersystems.libsignal.UntrustedIdentityException e) {
-      throw new UntrustedIdentityException("Untrusted on send", recipient.getIdentifier(), e.getUntrustedIdentity());
-    }
   }
 
   private void handleMismatchedDevices(PushServiceSocket socket, SignalServiceAddress recipient,
@@ -15,14 +15,16 @@ import org.whispersystems.signalservice.internal.util.Util;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -44,12 +46,30 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   private static final int BLOCK_SIZE      = 16;
   private static final int CIPHER_KEY_SIZE = 32;
   private static final int MAC_KEY_SIZE    = 32;
+  private static final int BUFFER_SIZE     = 8192;
+  private static final int CHANNEL_BUFFER  = 1024 * 1024;
+
+  /**
+   * Direct buffers for channel decryption, one pair per thread, so downloads don't each
+   * allocate native memory that only the garbage collector would free.
+   */
+  private static final ThreadLocal<ByteBuffer[]> CHANNEL_BUFFERS = new ThreadLocal<ByteBuffer[]>() {
+    @Override
+    protected ByteBuffer[] initialValue() {
+      return new ByteBuffer[] {ByteBuffer.allocateDirect(CHANNEL_BUFFER),
+                               ByteBuffer.allocateDirect(CHANNEL_BUFFER + BLOCK_SIZE)};
+    }
+  };
+
+  private final byte[] ciphertextBuffer = new byte[BUFFER_SIZE];
+  private final byte[] overflowBuffer   = new byte[BUFFER_SIZE + BLOCK_SIZE];
 
   private Cipher  cipher;
   private boolean done;
   private long    totalDataSize;
   private long    totalRead;
-  private byte[]  overflowBuffer;
+  private int     overflowOffset;
+  private int     overflowLength;
 
   public static InputStream createForAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
       throws InvalidMessageException, IOException
@@ -85,6 +105,79 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  /**
+   * Decrypts an attachment into a file in a single pass over the ciphertext, verifying
+   * the MAC and digest as it goes.
+   *
+   * The plaintext is written to a temporary file beside the destination, which is only
+   * renamed into place once the MAC and digest have checked out. If verification fails,
+   * the temporary file is deleted and the destination is left untouched.
+   *
+   * @param file The encrypted attachment.
+   * @param plaintextLength The unpadded plaintext length, or 0 if unknown.
+   * @param combinedKeyMaterial The attachment's cipher and MAC keys.
+   * @param digest The attachment's expected digest.
+   * @param destination Where the verified plaintext ends up.
+   */
+  public static void decryptAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest, File destination)
+      throws InvalidMessageException, IOException
+  {
+    if (digest == null) {
+      throw new InvalidMessageException("Missing digest!");
+    }
+
+    File    temporary = File.createTempFile("attachment", ".tmp", destination.getAbsoluteFile().getParentFile());
+    boolean committed = false;
+
+    try {
+      try (FileInputStream  in  = new FileInputStream(file);
+           FileOutputStream out = new FileOutputStream(temporary))
+      {
+        decryptChannel(in.getChannel(), out.getChannel(), plaintextLength, combinedKeyMaterial, digest, false);
+        out.getChannel().force(false);
+      }
+
+      if (!temporary.renameTo(destination)) {
+        throw new IOException("Unable to move decrypted attachment to " + destination);
+      }
+
+      committed = true;
+    } finally {
+      if (!committed) {
+        temporary.delete();
+      }
+    }
+  }
+
+  /**
+   * Decrypts an attachment from one channel into another.
+   *
+   * The ciphertext, from its channel's current position to the end, is read twice:
+   * once to verify the MAC and digest, and only then again to decrypt it. Nothing is
+   * written to the destination unless verification succeeds. The plaintext is
+   * written at the destination's current position, which is left just past it, and
+   * nothing else in the destination is changed.
+   *
+   * Decryption can still fail after verification if the sender encrypted invalid
+   * padding, in which case the destination may hold part of the (authentic) plaintext.
+   *
+   * @param ciphertext The encrypted attachment.
+   * @param plaintextLength The unpadded plaintext length, or 0 if unknown.
+   * @param combinedKeyMaterial The attachment's cipher and MAC keys.
+   * @param digest The attachment's expected digest.
+   * @param destination The channel the plaintext is written to.
+   */
+  public static void decryptAttachment(FileChannel ciphertext, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest, FileChannel destination)
+      throws InvalidMessageException, IOException
+  {
+    if (digest == null) {
+      throw new InvalidMessageException("Missing digest!");
+    }
+
+    verifyChannel(ciphertext, combinedKeyMaterial, digest);
+    decryptChannel(ciphertext, destination, plaintextLength, combinedKeyMaterial, digest, true);
+  }
+
   public static InputStream createForStickerData(byte[] data, byte[] packKey)
       throws InvalidMessageException, IOException
   {
@@ -137,9 +230,20 @@ public class AttachmentCipherInputStream extends FilterInputStream {
 
   @Override
   public int read(byte[] buffer, int offset, int length) throws IOException {
-    if      (totalRead != totalDataSize) return readIncremental(buffer, offset, length);
-    else if (!done)                      return readFinal(buffer, offset, length);
-    else                                 return -1;
+    if (length == 0) return 0;
+
+    while (overflowLength == 0) {
+      if (done) return -1;
+
+      if (totalRead != totalDataSize && length > BLOCK_SIZE) {
+        int decrypted = readIncremental(buffer, offset, length - BLOCK_SIZE);
+        if (decrypted > 0) return decrypted;
+      } else {
+        fillOverflow();
+      }
+    }
+
+    return readOverflow(buffer, offset, length);
   }
 
   @Override
@@ -150,17 +254,49 @@ public class AttachmentCipherInputStream extends FilterInputStream {
   @Override
   public long skip(long byteCount) throws IOException {
     long skipped = 0L;
+
     while (skipped < byteCount) {
-      byte[] buf  = new byte[Math.min(4096, (int)(byteCount-skipped))];
-      int    read = read(buf);
+      if (overflowLength == 0) {
+        if (done) break;
+        fillOverflow();
+        continue;
+      }
 
-      skipped += read;
+      int skip = (int)Math.min(overflowLength, byteCount - skipped);
+
+      overflowOffset += skip;
+      overflowLength -= skip;
+      skipped        += skip;
     }
 
     return skipped;
   }
 
-  private int readFinal(byte[] buffer, int offset, int length) throws IOException {
+  /**
+   * Decrypts the next chunk into the overflow buffer, for reads too small to
+   * decrypt into directly and for the final block.
+   */
+  private void fillOverflow() throws IOException {
+    overflowOffset = 0;
+
+    if (totalRead != totalDataSize) {
+      overflowLength = readIncremental(overflowBuffer, 0, ciphertextBuffer.length);
+    } else {
+      overflowLength = readFinal(overflowBuffer, 0);
+    }
+  }
+
+  private int readOverflow(byte[] buffer, int offset, int length) {
+    int read = Math.min(length, overflowLength);
+
+    System.arraycopy(overflowBuffer, overflowOffset, buffer, offset, read);
+    overflowOffset += read;
+    overflowLength -= read;
+
+    return read;
+  }
+
+  private int readFinal(byte[] buffer, int offset) throws IOException {
     try {
       int flourish = cipher.doFinal(buffer, offset);
 
@@ -171,52 +307,22 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
-  private int readIncremental(byte[] buffer, int offset, int length) throws IOException {
-    int readLength = 0;
-    if (null != overflowBuffer) {
-      if (overflowBuffer.length > length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(overflowBuffer, length, overflowBuffer.length);
-        return length;
-      } else if (overflowBuffer.length == length) {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, length);
-        overflowBuffer = null;
-        return length;
-      } else {
-        System.arraycopy(overflowBuffer, 0, buffer, offset, overflowBuffer.length);
-        readLength += overflowBuffer.length;
-        offset += readLength;
-        length -= readLength;
-        overflowBuffer = null;
-      }
-    }
+  /**
+   * Reads at most maxCiphertext bytes and decrypts them into buffer, which must
+   * have room for one block more than that.
+   */
+  private int readIncremental(byte[] buffer, int offset, int maxCiphertext) throws IOException {
+    int length = (int)Math.min(Math.min(maxCiphertext, ciphertextBuffer.length), totalDataSize - totalRead);
+    int read   = super.read(ciphertextBuffer, 0, length);
 
-    if (length + totalRead > totalDataSize)
-      length = (int)(totalDataSize - totalRead);
+    if (read == -1) {
+      throw new IOException("Unexpected end of attachment");
+    }
 
-    byte[] internalBuffer = new byte[length];
-    int read              = super.read(internalBuffer, 0, internalBuffer.length <= cipher.getBlockSize() ? internalBuffer.length : internalBuffer.length - cipher.getBlockSize());
-    totalRead            += read;
+    totalRead += read;
 
     try {
-      int outputLen = cipher.getOutputSize(read);
-
-      if (outputLen <= length) {
-        readLength += cipher.update(internalBuffer, 0, read, buffer, offset);
-        return readLength;
-      }
-
-      byte[] transientBuffer = new byte[outputLen];
-      outputLen = cipher.update(internalBuffer, 0, read, transientBuffer, 0);
-      if (outputLen <= length) {
-        System.arraycopy(transientBuffer, 0, buffer, offset, outputLen);
-        readLength += outputLen;
-      } else {
-        System.arraycopy(transientBuffer, 0, buffer, offset, length);
-        overflowBuffer = Arrays.copyOfRange(transientBuffer, length, outputLen);
-        readLength += length;
-      }
-      return readLength;
+      return cipher.update(ciphertextBuffer, 0, read, buffer, offset);
     } catch (ShortBufferException e) {
       throw new AssertionError(e);
     }
@@ -258,6 +364,182 @@ public class AttachmentCipherInputStream extends FilterInputStream {
     }
   }
 
+  /**
+   * Computes the MAC and digest over the ciphertext from the channel's current position
+   * to its end, without moving the position.
+   */
+  private static void verifyChannel(FileChannel in, byte[] combinedKeyMaterial, byte[] theirDigest)
+      throws InvalidMessageException, IOException
+  {
+    try {
+      byte[][]      parts  = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+      Mac           mac    = Mac.getInstance("HmacSHA256");
+      MessageDigest digest = MessageDigest.getInstance("SHA256");
+      mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      long position = in.position();
+      long length   = in.size() - position;
+
+      if (length <= BLOCK_SIZE + mac.getMacLength()) {
+        throw new InvalidMessageException("Message shorter than crypto overhead!");
+      }
+
+      ByteBuffer buffer        = CHANNEL_BUFFERS.get()[0];
+      long       remainingData = length - mac.getMacLength();
+
+      while (remainingData > 0) {
+        buffer.clear();
+        buffer.limit((int)Math.min(buffer.capacity(), remainingData));
+        int read = readFully(in, buffer, position);
+        buffer.flip();
+
+        position      += read;
+        remainingData -= read;
+
+        mac.update(buffer.duplicate());
+        digest.update(buffer);
+      }
+
+      ByteBuffer theirMac = ByteBuffer.allocate(mac.getMacLength());
+      readFully(in, theirMac, position);
+
+      checkMac(mac, digest, theirMac.array(), theirDigest);
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @param verified Whether {@link #verifyChannel(FileChannel, byte[], byte[])} already
+   *                 checked the ciphertext. If not, the MAC and digest are checked in this
+   *                 pass, before the final block is written.
+   */
+  private static void decryptChannel(FileChannel in, FileChannel out, long plaintextLength, byte[] combinedKeyMaterial, byte[] theirDigest, boolean verified)
+      throws InvalidMessageException, IOException
+  {
+    try {
+      byte[][]      parts  = Util.split(combinedKeyMaterial, CIPHER_KEY_SIZE, MAC_KEY_SIZE);
+      Mac           mac    = Mac.getInstance("HmacSHA256");
+      MessageDigest digest = MessageDigest.getInstance("SHA256");
+      mac.init(new SecretKeySpec(parts[1], "HmacSHA256"));
+
+      long length = in.size() - in.position();
+
+      if (length <= BLOCK_SIZE + mac.getMacLength()) {
+        throw new InvalidMessageException("Message shorter than crypto overhead!");
+      }
+
+      ByteBuffer iv = ByteBuffer.allocate(BLOCK_SIZE);
+      readFully(in, iv);
+
+      if (!verified) {
+        mac.update(iv.array());
+        digest.update(iv.array());
+      }
+
+      Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+      cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(parts[0], "AES"), new IvParameterSpec(iv.array()));
+
+      ByteBuffer[] buffers            = CHANNEL_BUFFERS.get();
+      ByteBuffer   ciphertext         = buffers[0];
+      ByteBuffer   plaintext          = buffers[1];
+      long         remainingData      = length - BLOCK_SIZE - mac.getMacLength();
+      long         remainingPlaintext = plaintextLength != 0 ? plaintextLength : Long.MAX_VALUE;
+
+      while (remainingData > 0) {
+        ciphertext.clear();
+        ciphertext.limit((int)Math.min(ciphertext.capacity(), remainingData));
+        readFully(in, ciphertext);
+        ciphertext.flip();
+        remainingData -= ciphertext.remaining();
+
+        if (!verified) {
+          mac.update(ciphertext.duplicate());
+          digest.update(ciphertext.duplicate());
+        }
+
+        plaintext.clear();
+        cipher.update(ciphertext, plaintext);
+        plaintext.flip();
+        remainingPlaintext -= writeFully(out, plaintext, remainingPlaintext);
+      }
+
+      ByteBuffer theirMac = ByteBuffer.allocate(mac.getMacLength());
+      readFully(in, theirMac);
+
+      if (!verified) {
+        checkMac(mac, digest, theirMac.array(), theirDigest);
+      }
+
+      plaintext.clear();
+      cipher.doFinal(ByteBuffer.allocate(0), plaintext);
+      plaintext.flip();
+      writeFully(out, plaintext, remainingPlaintext);
+    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException | InvalidAlgorithmParameterException | ShortBufferException e) {
+      throw new AssertionError(e);
+    } catch (IllegalBlockSizeException | BadPaddingException e) {
+      throw new InvalidMessageException(e);
+    }
+  }
+
+  private static void checkMac(Mac mac, MessageDigest digest, byte[] theirMac, byte[] theirDigest)
+      throws InvalidMessageException
+  {
+    if (!MessageDigest.isEqual(mac.doFinal(), theirMac)) {
+      throw new InvalidMessageException("MAC doesn't match!");
+    }
+
+    if (!MessageDigest.isEqual(digest.digest(theirMac), theirDigest)) {
+      throw new InvalidMessageException("Digest doesn't match!");
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer) == -1) {
+        throw new IOException("Unexpected end of attachment");
+      }
+    }
+  }
+
+  /**
+   * @return The bytes read, starting at position, without moving the channel's position.
+   */
+  private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    int total = 0;
+
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + total);
+
+      if (read == -1) {
+        throw new IOException("Unexpected end of attachment");
+      }
+
+      total += read;
+    }
+
+    return total;
+  }
+
+  /**
+   * Writes the buffer, but no more than maxBytes of it.
+   *
+   * @return The bytes written.
+   */
+  private static int writeFully(FileChannel channel, ByteBuffer buffer, long maxBytes) throws IOException {
+    if (buffer.remaining() > maxBytes) {
+      buffer.limit(buffer.position() + (int)maxBytes);
+    }
+
+    int written = buffer.remaining();
+
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+
+    return written;
+  }
+
   private void readFully(byte[] buffer) throws IOException {
     int offset = 0;
 
@@ -10,6 +10,7 @@ import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 
@@ -18,6 +19,8 @@ import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 public class AttachmentCipherOutputStream extends DigestingOutputStream {
@@ -25,7 +28,21 @@ public class AttachmentCipherOutputStream extends DigestingOutputStream {
   private final Cipher cipher;
   private final Mac    mac;
 
+  private byte[] ciphertextBuffer;
+
+  public AttachmentCipherOutputStream(byte[] combinedKeyMaterial,
+                                      OutputStream outputStream)
+      throws IOException
+  {
+    this(combinedKeyMaterial, Util.getSecretBytes(16), outputStream);
+  }
+
+  /**
+   * Encrypts with a caller-chosen IV, so the same key, IV and plaintext always
+   * produce the same ciphertext.
+   */
   public AttachmentCipherOutputStream(byte[] combinedKeyMaterial,
+                                      byte[] iv,
                                       OutputStream outputStream)
       throws IOException
   {
@@ -35,12 +52,12 @@ public class AttachmentCipherOutputStream extends DigestingOutputStream {
       this.mac          = initializeMac();
       byte[][] keyParts = Util.split(combinedKeyMaterial, 32, 32);
 
-      this.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyParts[0], "AES"));
+      this.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(keyParts[0], "AES"), new IvParameterSpec(iv));
       this.mac.init(new SecretKeySpec(keyParts[1], "HmacSHA256"));
 
       mac.update(cipher.getIV());
       super.write(cipher.getIV());
-    } catch (InvalidKeyException e) {
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
       throw new AssertionError(e);
     }
   }
@@ -52,11 +69,14 @@ public class AttachmentCipherOutputStream extends DigestingOutputStream {
 
   @Override
   public void write(byte[] buffer, int offset, int length) throws IOException {
-    byte[] ciphertext = cipher.update(buffer, offset, length);
+    try {
+      byte[] ciphertext       = getCiphertextBuffer(length);
+      int    ciphertextLength = cipher.update(buffer, offset, length, ciphertext, 0);
 
-    if (ciphertext != null) {
-      mac.update(ciphertext);
-      super.write(ciphertext);
+      mac.update(ciphertext, 0, ciphertextLength);
+      super.write(ciphertext, 0, ciphertextLength);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
     }
   }
 
@@ -68,14 +88,16 @@ public class AttachmentCipherOutputStream extends DigestingOutputStream {
   @Override
   public void flush() throws IOException {
     try {
-      byte[] ciphertext = cipher.doFinal();
-      byte[] auth       = mac.doFinal(ciphertext);
+      byte[] ciphertext       = getCiphertextBuffer(0);
+      int    ciphertextLength = cipher.doFinal(ciphertext, 0);
+
+      mac.update(ciphertext, 0, ciphertextLength);
 
-      super.write(ciphertext);
-      super.write(auth);
+      super.write(ciphertext, 0, ciphertextLength);
+      super.write(mac.doFinal());
 
       super.flush();
-    } catch (IllegalBlockSizeException | BadPaddingException e) {
+    } catch (IllegalBlockSizeException | BadPaddingException | ShortBufferException e) {
       throw new AssertionError(e);
     }
   }
@@ -84,6 +106,20 @@ public class AttachmentCipherOutputStream extends DigestingOutputStream {
     return 16 + (((plaintextLength / 16) +1) * 16) + 32;
   }
 
+  /**
+   * @return A buffer large enough for the ciphertext of the next plaintextLength bytes,
+   *         reused across writes.
+   */
+  private byte[] getCiphertextBuffer(int plaintextLength) {
+    int outputSize = cipher.getOutputSize(plaintextLength);
+
+    if (ciphertextBuffer == null || ciphertextBuffer.length < outputSize) {
+      ciphertextBuffer = new byte[outputSize];
+    }
+
+    return ciphertextBuffer;
+  }
+
   private Mac initializeMac() {
     try {
       return Mac.getInstance("HmacSHA256");
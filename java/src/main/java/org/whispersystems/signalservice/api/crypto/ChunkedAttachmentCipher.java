@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.api.crypto;
+
+import org.whispersystems.libsignal.kdf.HKDFv3;
+
+import java.nio.ByteBuffer;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The chunked attachment format: a header, then the plaintext split into fixed-size
+ * chunks that are each sealed with AES-256-GCM.
+ *
+ * <pre>
+ *   header = version (1) || chunk size (4) || nonce prefix (8)
+ *   chunk  = AES-GCM(key, nonce prefix || chunk index (4), aad = header || final (1), plaintext chunk)
+ * </pre>
+ *
+ * Every chunk but the last holds exactly chunk size bytes of plaintext, so the offset
+ * of any chunk follows from its index and chunks can be decrypted in any order. The
+ * index in the nonce stops chunks from being reordered, and the final flag stops the
+ * attachment from being truncated on a chunk boundary.
+ */
+class ChunkedAttachmentCipher {
+
+  static final int VERSION            = 1;
+  static final int HEADER_SIZE        = 13;
+  static final int TAG_SIZE           = 16;
+  static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+  static final int MAX_CHUNK_SIZE     = 4 * 1024 * 1024;
+
+  private static final byte[] KEY_INFO = "Signal Chunked Attachment".getBytes();
+
+  private ChunkedAttachmentCipher() {}
+
+  static SecretKeySpec deriveKey(byte[] combinedKeyMaterial) {
+    return new SecretKeySpec(new HKDFv3().deriveSecrets(combinedKeyMaterial, KEY_INFO, 32), "AES");
+  }
+
+  static byte[] createHeader(int chunkSize, byte[] noncePrefix) {
+    return ByteBuffer.allocate(HEADER_SIZE)
+                     .put((byte) VERSION)
+                     .putInt(chunkSize)
+                     .put(noncePrefix)
+                     .array();
+  }
+
+  /**
+   * @return The chunk size the header declares, or -1 if it isn't a header this version understands.
+   */
+  static int getChunkSize(byte[] header) {
+    ByteBuffer buffer    = ByteBuffer.wrap(header);
+    int        version   = buffer.get();
+    int        chunkSize = buffer.getInt();
+
+    if (version != VERSION || chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+      return -1;
+    }
+
+    return chunkSize;
+  }
+
+  static long getChunkCount(long plaintextLength, int chunkSize) {
+    return Math.max(1, (plaintextLength + chunkSize - 1) / chunkSize);
+  }
+
+  static long getCiphertextLength(long plaintextLength, int chunkSize) {
+    return HEADER_SIZE + plaintextLength + TAG_SIZE * getChunkCount(plaintextLength, chunkSize);
+  }
+
+  /**
+   * @return The plaintext length of a chunked attachment with this much ciphertext, or -1
+   *         if no plaintext length encrypts to it.
+   */
+  static long getPlaintextLength(long ciphertextLength, int chunkSize) {
+    long body      = ciphertextLength - HEADER_SIZE;
+    long chunks    = Math.max(1, (body + chunkSize + TAG_SIZE - 1) / (chunkSize + TAG_SIZE));
+    long plaintext = body - chunks * TAG_SIZE;
+
+    if (plaintext < 0 || getCiphertextLength(plaintext, chunkSize) != ciphertextLength) {
+      return -1;
+    }
+
+    return plaintext;
+  }
+
+  static Cipher createCipher() {
+    try {
+      return Cipher.getInstance("AES/GCM/NoPadding");
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Readies a cipher to seal or open one chunk.
+   */
+  static void initializeCipher(Cipher cipher, int mode, SecretKeySpec key, byte[] header, long index, boolean last) {
+    try {
+      byte[] nonce = ByteBuffer.allocate(12)
+                               .put(header, HEADER_SIZE - 8, 8)
+                               .putInt((int) index)
+                               .array();
+
+      cipher.init(mode, key, new GCMParameterSpec(TAG_SIZE * 8, nonce));
+      cipher.updateAAD(header);
+      cipher.updateAAD(new byte[] {(byte) (last ? 1 : 0)});
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
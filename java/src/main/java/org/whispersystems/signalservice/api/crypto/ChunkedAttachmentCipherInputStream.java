@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.api.crypto;
+
+import org.whispersystems.libsignal.InvalidMessageException;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Streams a chunked attachment (see {@link ChunkedAttachmentCipher}) off disk.
+ *
+ * The digest is checked when the stream is created, as it is for
+ * {@link AttachmentCipherInputStream}. After that each chunk is authenticated as it
+ * is decrypted, and only the chunks that are actually read get decrypted, so
+ * {@link #seek(long)} can jump straight to any offset in the plaintext.
+ */
+public class ChunkedAttachmentCipherInputStream extends InputStream {
+
+  private static final int CHUNKS_PER_TASK = 16;
+
+  private final FileChannel channel;
+  private final Chunks      chunks;
+  private final long        length;
+  private final Cipher      cipher;
+  private final byte[]      ciphertext;
+  private final byte[]      plaintext;
+
+  private long loadedChunk = -1;
+  private int  loadedLength;
+  private long position;
+
+  private ChunkedAttachmentCipherInputStream(FileChannel channel, Chunks chunks, long length) {
+    this.channel    = channel;
+    this.chunks     = chunks;
+    this.length     = length;
+    this.cipher     = ChunkedAttachmentCipher.createCipher();
+    this.ciphertext = new byte[chunks.chunkSize + ChunkedAttachmentCipher.TAG_SIZE];
+    this.plaintext  = new byte[chunks.chunkSize];
+  }
+
+  /**
+   * @param file The encrypted attachment.
+   * @param plaintextLength The unpadded plaintext length, or 0 if unknown.
+   * @param combinedKeyMaterial The attachment key.
+   * @param digest The attachment's expected digest.
+   */
+  public static ChunkedAttachmentCipherInputStream createForAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest)
+      throws InvalidMessageException, IOException
+  {
+    if (digest == null) {
+      throw new InvalidMessageException("Missing digest!");
+    }
+
+    FileChannel channel   = new RandomAccessFile(file, "r").getChannel();
+    boolean     succeeded = false;
+
+    try {
+      verifyDigest(channel, digest);
+
+      Chunks                             chunks = Chunks.read(channel, combinedKeyMaterial);
+      ChunkedAttachmentCipherInputStream stream = new ChunkedAttachmentCipherInputStream(channel, chunks, chunks.getLength(plaintextLength));
+
+      succeeded = true;
+      return stream;
+    } finally {
+      if (!succeeded) {
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Decrypts a chunked attachment into a temporary file beside the destination, which
+   * is only renamed into place once every chunk and the digest have checked out.
+   *
+   * @param file The encrypted attachment.
+   * @param plaintextLength The unpadded plaintext length, or 0 if unknown.
+   * @param combinedKeyMaterial The attachment key.
+   * @param digest The attachment's expected digest.
+   * @param destination Where the verified plaintext ends up.
+   * @param executor The executor to decrypt on, or null to decrypt on the calling thread.
+   */
+  public static void decryptAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest, File destination, Executor executor)
+      throws InvalidMessageException, IOException
+  {
+    File    temporary = File.createTempFile("attachment", ".tmp", destination.getAbsoluteFile().getParentFile());
+    boolean committed = false;
+
+    try {
+      try (FileOutputStream out = new FileOutputStream(temporary)) {
+        decryptAttachment(file, plaintextLength, combinedKeyMaterial, digest, out.getChannel(), executor);
+        out.getChannel().force(false);
+      }
+
+      if (!temporary.renameTo(destination)) {
+        throw new IOException("Unable to move decrypted attachment to " + destination);
+      }
+
+      committed = true;
+    } finally {
+      if (!committed) {
+        temporary.delete();
+      }
+    }
+  }
+
+  /**
+   * Decrypts a chunked attachment into a channel.
+   *
+   * The digest is verified over the whole ciphertext before anything is written, and
+   * each chunk is authenticated before its plaintext is written. The plaintext is
+   * written at the destination's current position, which is left just past it, and
+   * nothing else in the destination is changed.
+   *
+   * A chunk can still fail to authenticate after the digest has verified if the sender
+   * encrypted it badly, in which case the destination may hold the (authentic) chunks
+   * that were decrypted before the failure.
+   *
+   * @param file The encrypted attachment.
+   * @param plaintextLength The unpadded plaintext length, or 0 if unknown.
+   * @param combinedKeyMaterial The attachment key.
+   * @param digest The attachment's expected digest.
+   * @param destination The channel the plaintext is written to.
+   */
+  public static void decryptAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest, FileChannel destination)
+      throws InvalidMessageException, IOException
+  {
+    decryptAttachment(file, plaintextLength, combinedKeyMaterial, digest, destination, null);
+  }
+
+  /**
+   * Like {@link #decryptAttachment(File, long, byte[], byte[], FileChannel)}, but
+   * with runs of chunks decrypted in parallel on an executor once the digest has been
+   * verified on the calling thread. Doesn't return until every run handed to the
+   * executor has finished, even if one fails, the executor rejects a run, or the
+   * calling thread is interrupted (whose interrupt status is then restored).
+   *
+   * @param executor The executor to decrypt on, or null to decrypt on the calling thread.
+   */
+  public static void decryptAttachment(File file, long plaintextLength, byte[] combinedKeyMaterial, byte[] digest,
+                                       FileChannel destination, Executor executor)
+      throws InvalidMessageException, IOException
+  {
+    if (digest == null) {
+      throw new InvalidMessageException("Missing digest!");
+    }
+
+    long start = destination.position();
+    long length;
+
+    try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+      Chunks chunks = Chunks.read(channel, combinedKeyMaterial);
+      length = chunks.getLength(plaintextLength);
+
+      verifyDigest(channel, digest);
+
+      if (executor == null) {
+        decryptChunks(channel, chunks, 0, chunks.count, destination, start, length);
+      } else {
+        decryptChunks(channel, chunks, destination, start, length, executor);
+      }
+    }
+
+    destination.position(start + length);
+  }
+
+  @Override
+  public int read() throws IOException {
+    byte[] buffer = new byte[1];
+    int    read   = read(buffer, 0, 1);
+
+    return read == -1 ? -1 : buffer[0] & 0xff;
+  }
+
+  @Override
+  public int read(byte[] buffer) throws IOException {
+    return read(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0)             return 0;
+    if (position >= this.length) return -1;
+
+    long chunk       = position / chunks.chunkSize;
+    int  chunkOffset = (int) (position % chunks.chunkSize);
+
+    if (chunk != loadedChunk) {
+      try {
+        loadedLength = chunks.decrypt(channel, chunk, cipher, ciphertext, plaintext);
+        loadedChunk  = chunk;
+      } catch (InvalidMessageException e) {
+        throw new IOException(e);
+      }
+    }
+
+    int read = (int) Math.min(Math.min(length, loadedLength - chunkOffset), this.length - position);
+
+    System.arraycopy(plaintext, chunkOffset, buffer, offset, read);
+    position += read;
+
+    return read;
+  }
+
+  @Override
+  public long skip(long byteCount) {
+    long skipped = Math.max(0, Math.min(byteCount, length - position));
+
+    position += skipped;
+    return skipped;
+  }
+
+  @Override
+  public int available() {
+    if (loadedChunk != position / chunks.chunkSize) return 0;
+    else                                            return (int) Math.min(loadedLength - position % chunks.chunkSize, length - position);
+  }
+
+  /**
+   * Moves to a plaintext offset. Nothing is decrypted until the next read, and then
+   * only the chunk holding that offset.
+   */
+  public void seek(long position) {
+    if (position < 0 || position > length) {
+      throw new IllegalArgumentException("Position " + position + " outside of 0-" + length);
+    }
+
+    this.position = position;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private static void decryptChunks(FileChannel channel, Chunks chunks, long from, long to, FileChannel destination, long start, long length)
+      throws InvalidMessageException, IOException
+  {
+    Cipher cipher     = ChunkedAttachmentCipher.createCipher();
+    byte[] ciphertext = new byte[chunks.chunkSize + ChunkedAttachmentCipher.TAG_SIZE];
+    byte[] plaintext  = new byte[chunks.chunkSize];
+
+    for (long chunk = from; chunk < to; chunk++) {
+      long offset    = chunk * chunks.chunkSize;
+      int  decrypted = chunks.decrypt(channel, chunk, cipher, ciphertext, plaintext);
+      int  written   = (int) Math.min(decrypted, length - offset);
+
+      if (written > 0) {
+        writeFully(destination, ByteBuffer.wrap(plaintext, 0, written), start + offset);
+      }
+    }
+  }
+
+  /**
+   * Decrypts runs of chunks in parallel on an executor.
+   */
+  private static void decryptChunks(final FileChannel channel, final Chunks chunks, final FileChannel destination,
+                                    final long start, final long length, Executor executor)
+      throws InvalidMessageException, IOException
+  {
+    List<FutureTask<Void>> tasks = new LinkedList<>();
+
+    try {
+      for (long first = 0; first < chunks.count; first += CHUNKS_PER_TASK) {
+        final long from = first;
+        final long to   = Math.min(chunks.count, first + CHUNKS_PER_TASK);
+
+        FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            decryptChunks(channel, chunks, from, to, destination, start, length);
+            return null;
+          }
+        });
+
+        executor.execute(task);
+        tasks.add(task);
+      }
+    } catch (RejectedExecutionException e) {
+      awaitAll(tasks);
+      throw new IOException(e);
+    }
+
+    awaitAll(tasks);
+  }
+
+  /**
+   * Waits for every task, even after one fails or the thread is interrupted, since
+   * they're all writing to a channel the caller is about to get back.
+   */
+  private static void awaitAll(List<FutureTask<Void>> tasks) throws InvalidMessageException, IOException {
+    Exception failure     = null;
+    boolean   interrupted = false;
+
+    for (FutureTask<Void> task : tasks) {
+      while (true) {
+        try {
+          task.get();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          if (failure == null) failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+          break;
+        }
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+
+    if      (failure == null)                            return;
+    else if (failure instanceof InvalidMessageException) throw (InvalidMessageException) failure;
+    else if (failure instanceof IOException)             throw (IOException) failure;
+    else                                                 throw new IOException(failure);
+  }
+
+  private static void verifyDigest(FileChannel channel, byte[] theirDigest)
+      throws InvalidMessageException, IOException
+  {
+    try {
+      MessageDigest digest   = MessageDigest.getInstance("SHA256");
+      ByteBuffer    buffer   = ByteBuffer.allocate(64 * 1024);
+      long          position = 0;
+      int           read;
+
+      while ((read = channel.read(buffer, position)) != -1) {
+        digest.update(buffer.array(), 0, read);
+        position += read;
+        buffer.clear();
+      }
+
+      if (!MessageDigest.isEqual(digest.digest(), theirDigest)) {
+        throw new InvalidMessageException("Digest doesn't match!");
+      }
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+
+      if (read == -1) {
+        throw new IOException("Unexpected end of attachment");
+      }
+
+      position += read;
+    }
+  }
+
+  private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      position += channel.write(buffer, position);
+    }
+  }
+
+  /**
+   * The layout of one chunked attachment, read from its header.
+   */
+  private static class Chunks {
+
+    private final SecretKeySpec key;
+    private final byte[]        header;
+    private final int           chunkSize;
+    private final long          count;
+    private final long          paddedLength;
+
+    private Chunks(SecretKeySpec key, byte[] header, int chunkSize, long paddedLength) {
+      this.key          = key;
+      this.header       = header;
+      this.chunkSize    = chunkSize;
+      this.paddedLength = paddedLength;
+      this.count        = ChunkedAttachmentCipher.getChunkCount(paddedLength, chunkSize);
+    }
+
+    static Chunks read(FileChannel channel, byte[] combinedKeyMaterial) throws InvalidMessageException, IOException {
+      if (channel.size() < ChunkedAttachmentCipher.HEADER_SIZE + ChunkedAttachmentCipher.TAG_SIZE) {
+        throw new InvalidMessageException("Message shorter than crypto overhead!");
+      }
+
+      ByteBuffer header = ByteBuffer.allocate(ChunkedAttachmentCipher.HEADER_SIZE);
+      readFully(channel, header, 0);
+
+      int chunkSize = ChunkedAttachmentCipher.getChunkSize(header.array());
+
+      if (chunkSize == -1) {
+        throw new InvalidMessageException("Unsupported chunked attachment header!");
+      }
+
+      long paddedLength = ChunkedAttachmentCipher.getPlaintextLength(channel.size(), chunkSize);
+
+      if (paddedLength == -1) {
+        throw new InvalidMessageException("Bad chunked attachment length: " + channel.size());
+      }
+
+      return new Chunks(ChunkedAttachmentCipher.deriveKey(combinedKeyMaterial), header.array(), chunkSize, paddedLength);
+    }
+
+    long getLength(long plaintextLength) {
+      return plaintextLength != 0 ? Math.min(plaintextLength, paddedLength) : paddedLength;
+    }
+
+    /**
+     * Reads, authenticates and decrypts one chunk.
+     *
+     * @param ciphertext Scratch space for one chunk of ciphertext.
+     * @return The number of plaintext bytes written to the start of plaintext.
+     */
+    int decrypt(FileChannel channel, long index, Cipher cipher, byte[] ciphertext, byte[] plaintext)
+        throws InvalidMessageException, IOException
+    {
+      boolean last   = index == count - 1;
+      long    offset = ChunkedAttachmentCipher.HEADER_SIZE + index * (chunkSize + ChunkedAttachmentCipher.TAG_SIZE);
+      int     size   = (int) ((last ? paddedLength - index * chunkSize : chunkSize) + ChunkedAttachmentCipher.TAG_SIZE);
+
+      readFully(channel, ByteBuffer.wrap(ciphertext, 0, size), offset);
+      ChunkedAttachmentCipher.initializeCipher(cipher, Cipher.DECRYPT_MODE, key, header, index, last);
+
+      try {
+        return cipher.doFinal(ciphertext, 0, size, plaintext, 0);
+      } catch (BadPaddingException | IllegalBlockSizeException e) {
+        throw new InvalidMessageException("Chunk " + index + " failed to authenticate", e);
+      } catch (ShortBufferException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+}
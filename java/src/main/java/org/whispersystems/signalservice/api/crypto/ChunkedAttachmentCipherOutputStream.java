@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.api.crypto;
+
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encrypts an attachment in the chunked format described by {@link ChunkedAttachmentCipher}.
+ * Like {@link AttachmentCipherOutputStream}, the attachment is finished by flush(), and the
+ * digest covers everything written.
+ */
+public class ChunkedAttachmentCipherOutputStream extends DigestingOutputStream {
+
+  private final SecretKeySpec key;
+  private final byte[]        header;
+  private final Cipher        cipher;
+  private final byte[]        plaintextBuffer;
+  private final byte[]        ciphertextBuffer;
+
+  private int  plaintextLength;
+  private long chunkIndex;
+
+  public ChunkedAttachmentCipherOutputStream(byte[] combinedKeyMaterial, OutputStream outputStream)
+      throws IOException
+  {
+    this(combinedKeyMaterial, ChunkedAttachmentCipher.DEFAULT_CHUNK_SIZE, outputStream);
+  }
+
+  ChunkedAttachmentCipherOutputStream(byte[] combinedKeyMaterial, int chunkSize, OutputStream outputStream)
+      throws IOException
+  {
+    super(outputStream);
+    this.key              = ChunkedAttachmentCipher.deriveKey(combinedKeyMaterial);
+    this.header           = ChunkedAttachmentCipher.createHeader(chunkSize, Util.getSecretBytes(8));
+    this.cipher           = ChunkedAttachmentCipher.createCipher();
+    this.plaintextBuffer  = new byte[chunkSize];
+    this.ciphertextBuffer = new byte[chunkSize + ChunkedAttachmentCipher.TAG_SIZE];
+
+    super.write(header, 0, header.length);
+  }
+
+  @Override
+  public void write(byte[] buffer) throws IOException {
+    write(buffer, 0, buffer.length);
+  }
+
+  @Override
+  public void write(byte[] buffer, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (plaintextLength == plaintextBuffer.length) {
+        writeChunk(false);
+      }
+
+      int copied = Math.min(length, plaintextBuffer.length - plaintextLength);
+
+      System.arraycopy(buffer, offset, plaintextBuffer, plaintextLength, copied);
+      plaintextLength += copied;
+      offset          += copied;
+      length          -= copied;
+    }
+  }
+
+  @Override
+  public void write(int b) {
+    throw new AssertionError("NYI");
+  }
+
+  @Override
+  public void flush() throws IOException {
+    writeChunk(true);
+    super.flush();
+  }
+
+  public static long getCiphertextLength(long plaintextLength) {
+    return ChunkedAttachmentCipher.getCiphertextLength(plaintextLength, ChunkedAttachmentCipher.DEFAULT_CHUNK_SIZE);
+  }
+
+  private void writeChunk(boolean last) throws IOException {
+    try {
+      ChunkedAttachmentCipher.initializeCipher(cipher, Cipher.ENCRYPT_MODE, key, header, chunkIndex++, last);
+
+      int ciphertextLength = cipher.doFinal(plaintextBuffer, 0, plaintextLength, ciphertextBuffer, 0);
+
+      super.write(ciphertextBuffer, 0, ciphertextLength);
+      plaintextLength = 0;
+    } catch (ShortBufferException | IllegalBlockSizeException | BadPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.api.crypto;
+
+import org.whispersystems.signalservice.api.messages.SignalServiceContent;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.internal.util.concurrent.PartitionedExecutor;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Decrypts {@link SignalServiceEnvelope}s on several threads without racing on
+ * session state.
+ *
+ * Envelopes are sharded by source address and device. Envelopes from the same
+ * session are decrypted one at a time, in the order they were submitted, and
+ * different sessions are decrypted in parallel. A sealed sender envelope only
+ * reveals its sender once it has been fully decrypted, so it can't be routed to a
+ * session up front. A sealed sender envelope therefore waits for every envelope
+ * submitted before it, is decrypted alone, and holds back every envelope submitted
+ * after it until it is done, so each session still sees its envelopes in order.
+ *
+ * Each sealed sender envelope is therefore a full barrier. Where most traffic is
+ * sealed sender, as it is once contacts have exchanged profile keys, decryption is
+ * largely serial and only runs of ordinary envelopes between sealed ones are
+ * decrypted in parallel. The sender can't be learned any earlier, as
+ * {@link org.signal.libsignal.metadata.SealedSessionCipher} unseals the outer layer
+ * and decrypts the message in a single step.
+ *
+ * If the executor rejects a decryption, {@link #decrypt(SignalServiceEnvelope, DecryptionCallback)}
+ * throws its exception, and every queued envelope fails with it.
+ *
+ * The {@link org.whispersystems.libsignal.state.SignalProtocolStore} behind the
+ * cipher must be safe to use from multiple threads.
+ */
+public class ParallelEnvelopeDecryptor {
+
+  private final SignalServiceCipher cipher;
+  private final PartitionedExecutor executor;
+
+  /**
+   * @param cipher The cipher used to decrypt every envelope.
+   * @param executor The executor decryption is run on. Its size bounds the parallelism.
+   */
+  public ParallelEnvelopeDecryptor(SignalServiceCipher cipher, Executor executor) {
+    this.cipher   = cipher;
+    this.executor = new PartitionedExecutor(executor, new PartitionedExecutor.DropListener() {
+      @Override
+      public void onDropped(Runnable task) {
+        ((DecryptionTask) task).onRejected();
+      }
+    });
+  }
+
+  /**
+   * Queue an envelope for decryption.
+   *
+   * @param envelope The received envelope.
+   * @param callback Called on a worker thread once the envelope is decrypted or fails.
+   * @throws RejectedExecutionException If the executor rejected the decryption, in
+   *                                    which case the callback isn't called.
+   */
+  public void decrypt(SignalServiceEnvelope envelope, DecryptionCallback callback) {
+    DecryptionTask task = new DecryptionTask(envelope, callback);
+
+    if (envelope.isUnidentifiedSender()) executor.executeExclusive(task);
+    else                                 executor.execute(envelope.getSourceIdentifier() + "." + envelope.getSourceDevice(), task);
+  }
+
+  private class DecryptionTask implements Runnable {
+
+    private final SignalServiceEnvelope envelope;
+    private final DecryptionCallback    callback;
+
+    private DecryptionTask(SignalServiceEnvelope envelope, DecryptionCallback callback) {
+      this.envelope = envelope;
+      this.callback = callback;
+    }
+
+    @Override
+    public void run() {
+      SignalServiceContent content;
+
+      try {
+        content = cipher.decrypt(envelope);
+      } catch (Exception e) {
+        callback.onFailure(envelope, e);
+        return;
+      }
+
+      callback.onDecrypted(envelope, content);
+    }
+
+    void onRejected() {
+      callback.onFailure(envelope, new RejectedExecutionException("Executor rejected decryption"));
+    }
+  }
+
+  public interface DecryptionCallback {
+    /**
+     * @param content The decrypted content, or null if the envelope carried nothing to process.
+     */
+    void onDecrypted(SignalServiceEnvelope envelope, SignalServiceContent content);
+
+    /**
+     * @param exception Any exception {@link SignalServiceCipher#decrypt(SignalServiceEnvelope)} can
+     *                  throw, or a {@link RejectedExecutionException} if the envelope was
+     *                  dropped because the executor rejected a decryption.
+     */
+    void onFailure(SignalServiceEnvelope envelope, Exception exception);
+  }
+}
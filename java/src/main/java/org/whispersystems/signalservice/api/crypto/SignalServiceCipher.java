@@ -84,6 +84,7 @@ import org.whispersystems.signalservice.internal.push.UnsupportedDataMessageExce
 import org.whispersystems.util.Base64;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -120,31 +121,60 @@ public class SignalServiceCipher {
                                      byte[]                       unpaddedMessage)
       throws UntrustedIdentityException, InvalidKeyException
   {
+    return encrypt(Collections.singletonList(destination), unidentifiedAccess, unpaddedMessage).get(0);
+  }
+
+  /**
+   * Encrypt the same message for several destinations, typically every device of one
+   * recipient. The message is padded once per session version rather than once per
+   * destination, and sealed sender state is set up once for the whole batch.
+   *
+   * @param destinations The addresses to encrypt for.
+   * @param unidentifiedAccess Sealed sender access, if the message should be sent unidentified.
+   * @param unpaddedMessage The serialized content to encrypt.
+   *
+   * @return One OutgoingPushMessage per destination, in the same order.
+   */
+  public List<OutgoingPushMessage> encrypt(List<SignalProtocolAddress>  destinations,
+                                           Optional<UnidentifiedAccess> unidentifiedAccess,
+                                           byte[]                       unpaddedMessage)
+      throws UntrustedIdentityException, InvalidKeyException
+  {
+    List<OutgoingPushMessage> messages       = new ArrayList<>(destinations.size());
+    Map<Integer, byte[]>      paddedMessages = new HashMap<>(2);
+
     if (unidentifiedAccess.isPresent()) {
-      SealedSessionCipher  sessionCipher        = new SealedSessionCipher(signalProtocolStore, localAddress.getUuid().orNull(), localAddress.getNumber().orNull(), 1);
-      PushTransportDetails transportDetails     = new PushTransportDetails(sessionCipher.getSessionVersion(destination));
-      byte[]               ciphertext           = sessionCipher.encrypt(destination, unidentifiedAccess.get().getUnidentifiedCertificate(), transportDetails.getPaddedMessageBody(unpaddedMessage));
-      String               body                 = Base64.encodeBytes(ciphertext);
-      int                  remoteRegistrationId = sessionCipher.getRemoteRegistrationId(destination);
+      SealedSessionCipher sessionCipher = new SealedSessionCipher(signalProtocolStore, localAddress.getUuid().orNull(), localAddress.getNumber().orNull(), 1);
 
-      return new OutgoingPushMessage(Type.UNIDENTIFIED_SENDER_VALUE, destination.getDeviceId(), remoteRegistrationId, body);
-    } else {
-      SessionCipher        sessionCipher        = new SessionCipher(signalProtocolStore, destination);
-      PushTransportDetails transportDetails     = new PushTransportDetails(sessionCipher.getSessionVersion());
-      CiphertextMessage    message              = sessionCipher.encrypt(transportDetails.getPaddedMessageBody(unpaddedMessage));
-      int                  remoteRegistrationId = sessionCipher.getRemoteRegistrationId();
-      String               body                 = Base64.encodeBytes(message.serialize());
-
-      int type;
-
-      switch (message.getType()) {
-        case CiphertextMessage.PREKEY_TYPE:  type = Type.PREKEY_BUNDLE_VALUE; break;
-        case CiphertextMessage.WHISPER_TYPE: type = Type.CIPHERTEXT_VALUE;    break;
-        default: throw new AssertionError("Bad type: " + message.getType());
+      for (SignalProtocolAddress destination : destinations) {
+        byte[] paddedMessage        = getPaddedMessageBody(paddedMessages, sessionCipher.getSessionVersion(destination), unpaddedMessage);
+        byte[] ciphertext           = sessionCipher.encrypt(destination, unidentifiedAccess.get().getUnidentifiedCertificate(), paddedMessage);
+        String body                 = Base64.encodeBytes(ciphertext);
+        int    remoteRegistrationId = sessionCipher.getRemoteRegistrationId(destination);
+
+        messages.add(new OutgoingPushMessage(Type.UNIDENTIFIED_SENDER_VALUE, destination.getDeviceId(), remoteRegistrationId, body));
       }
+    } else {
+      for (SignalProtocolAddress destination : destinations) {
+        SessionCipher     sessionCipher        = new SessionCipher(signalProtocolStore, destination);
+        byte[]            paddedMessage        = getPaddedMessageBody(paddedMessages, sessionCipher.getSessionVersion(), unpaddedMessage);
+        CiphertextMessage message              = sessionCipher.encrypt(paddedMessage);
+        int               remoteRegistrationId = sessionCipher.getRemoteRegistrationId();
+        String            body                 = Base64.encodeBytes(message.serialize());
+
+        int type;
+
+        switch (message.getType()) {
+          case CiphertextMessage.PREKEY_TYPE:  type = Type.PREKEY_BUNDLE_VALUE; break;
+          case CiphertextMessage.WHISPER_TYPE: type = Type.CIPHERTEXT_VALUE;    break;
+          default: throw new AssertionError("Bad type: " + message.getType());
+        }
 
-      return new OutgoingPushMessage(type, destination.getDeviceId(), remoteRegistrationId, body);
+        messages.add(new OutgoingPushMessage(type, destination.getDeviceId(), remoteRegistrationId, body));
+      }
     }
+
+    return messages;
   }
 
   /**
@@ -283,6 +313,17 @@ public class SignalServiceCipher {
     }
   }
 
+  private static byte[] getPaddedMessageBody(Map<Integer, byte[]> cache, int sessionVersion, byte[] unpaddedMessage) {
+    byte[] paddedMessage = cache.get(sessionVersion);
+
+    if (paddedMessage == null) {
+      paddedMessage = new PushTransportDetails(sessionVersion).getPaddedMessageBody(unpaddedMessage);
+      cache.put(sessionVersion, paddedMessage);
+    }
+
+    return paddedMessage;
+  }
+
   private static SignalProtocolAddress getPreferredProtocolAddress(SignalProtocolStore store, SignalServiceAddress address, int sourceDevice) {
     SignalProtocolAddress uuidAddress = address.getUuid().isPresent() ? new SignalProtocolAddress(address.getUuid().get().toString(), sourceDevice) : null;
     SignalProtocolAddress e164Address = address.getNumber().isPresent() ? new SignalProtocolAddress(address.getNumber().get(), sourceDevice) : null;
@@ -724,7 +765,8 @@ public class SignalServiceCipher {
                                               pointer.hasFileName() ? Optional.of(pointer.getFileName()) : Optional.<String>absent(),
                                               (pointer.getFlags() & AttachmentPointer.Flags.VOICE_MESSAGE_VALUE) != 0,
                                               pointer.hasCaption() ? Optional.of(pointer.getCaption()) : Optional.<String>absent(),
-                                              pointer.hasBlurHash() ? Optional.of(pointer.getBlurHash()) : Optional.<String>absent());
+                                              pointer.hasBlurHash() ? Optional.of(pointer.getBlurHash()) : Optional.<String>absent(),
+                                              (pointer.getFlags() & AttachmentPointer.Flags.CHUNKED_VALUE) != 0);
 
   }
 
@@ -780,7 +822,8 @@ public class SignalServiceCipher {
                                                     Optional.<String>absent(),
                                                     false,
                                                     Optional.<String>absent(),
-                                                    Optional.<String>absent());
+                                                    Optional.<String>absent(),
+                                                    (pointer.getFlags() & AttachmentPointer.Flags.CHUNKED_VALUE) != 0);
       }
 
       return new SignalServiceGroup(type, content.getGroup().getId().toByteArray(), name, members, avatar);
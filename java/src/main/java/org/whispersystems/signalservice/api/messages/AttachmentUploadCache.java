@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.api.messages;
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.internal.util.Hex;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers attachments that have already been uploaded, keyed by the SHA-256 of
+ * their plaintext, so that sending the same content again can reuse the existing
+ * upload instead of encrypting and uploading another copy.
+ *
+ * Entries expire after a fixed time (the CDN doesn't keep attachments forever), and
+ * the least recently used entry is evicted once the cache is full.
+ */
+public class AttachmentUploadCache {
+
+  private final int                maxEntries;
+  private final long               ttlMillis;
+  private final Map<String, Entry> entries;
+
+  /**
+   * @param maxEntries The most uploads to remember.
+   * @param ttlMillis How long an upload can be reused for after it was made.
+   */
+  public AttachmentUploadCache(final int maxEntries, long ttlMillis) {
+    if (maxEntries < 1) throw new IllegalArgumentException("maxEntries must be at least 1");
+
+    this.maxEntries = maxEntries;
+    this.ttlMillis  = ttlMillis;
+    this.entries    = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  /**
+   * @param plaintextHash The SHA-256 of the attachment plaintext.
+   * @param length The attachment plaintext length.
+   * @return The upload of this content, if one is cached and hasn't expired.
+   */
+  public synchronized Optional<Entry> get(byte[] plaintextHash, long length) {
+    String key   = Hex.toStringCondensed(plaintextHash);
+    Entry  entry = entries.get(key);
+
+    if (entry == null) {
+      return Optional.absent();
+    }
+
+    if (isExpired(entry, System.currentTimeMillis())) {
+      entries.remove(key);
+      return Optional.absent();
+    }
+
+    if (entry.getLength() != length) {
+      return Optional.absent();
+    }
+
+    return Optional.of(entry);
+  }
+
+  public synchronized void put(byte[] plaintextHash, Entry entry) {
+    entries.put(Hex.toStringCondensed(plaintextHash), entry);
+  }
+
+  public synchronized void remove(byte[] plaintextHash) {
+    entries.remove(Hex.toStringCondensed(plaintextHash));
+  }
+
+  /**
+   * Drops every expired entry.
+   */
+  public synchronized void prune() {
+    long            now      = System.currentTimeMillis();
+    Iterator<Entry> iterator = entries.values().iterator();
+
+    while (iterator.hasNext()) {
+      if (isExpired(iterator.next(), now)) {
+        iterator.remove();
+      }
+    }
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public int getMaxEntries() {
+    return maxEntries;
+  }
+
+  private boolean isExpired(Entry entry, long now) {
+    return now - entry.getUploadTimestamp() >= ttlMillis;
+  }
+
+  /**
+   * Where an attachment was uploaded to, and the key and digest needed to point
+   * a recipient at it.
+   */
+  public static class Entry {
+
+    private final long   id;
+    private final byte[] key;
+    private final byte[] digest;
+    private final long   length;
+    private final long   uploadTimestamp;
+
+    public Entry(long id, byte[] key, byte[] digest, long length, long uploadTimestamp) {
+      this.id              = id;
+      this.key             = key;
+      this.digest          = digest;
+      this.length          = length;
+      this.uploadTimestamp = uploadTimestamp;
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public byte[] getKey() {
+      return key;
+    }
+
+    public byte[] getDigest() {
+      return digest;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public long getUploadTimestamp() {
+      return uploadTimestamp;
+    }
+  }
+}
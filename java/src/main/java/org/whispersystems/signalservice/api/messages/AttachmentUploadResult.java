@@ -0,0 +1,46 @@
+package org.whispersystems.signalservice.api.messages;
+
+
+import org.whispersystems.libsignal.util.guava.Optional;
+
+import java.io.IOException;
+
+public class AttachmentUploadResult {
+
+  private final SignalServiceAttachmentStream            attachment;
+  private final Optional<SignalServiceAttachmentPointer> pointer;
+  private final Optional<IOException>                    failure;
+
+  public static AttachmentUploadResult success(SignalServiceAttachmentStream attachment, SignalServiceAttachmentPointer pointer) {
+    return new AttachmentUploadResult(attachment, Optional.of(pointer), Optional.<IOException>absent());
+  }
+
+  public static AttachmentUploadResult failure(SignalServiceAttachmentStream attachment, IOException failure) {
+    return new AttachmentUploadResult(attachment, Optional.<SignalServiceAttachmentPointer>absent(), Optional.of(failure));
+  }
+
+  public SignalServiceAttachmentStream getAttachment() {
+    return attachment;
+  }
+
+  public boolean isSuccess() {
+    return pointer.isPresent();
+  }
+
+  public Optional<SignalServiceAttachmentPointer> getPointer() {
+    return pointer;
+  }
+
+  public Optional<IOException> getFailure() {
+    return failure;
+  }
+
+  private AttachmentUploadResult(SignalServiceAttachmentStream            attachment,
+                                 Optional<SignalServiceAttachmentPointer> pointer,
+                                 Optional<IOException>                    failure)
+  {
+    this.attachment = attachment;
+    this.pointer    = pointer;
+    this.failure    = failure;
+  }
+}
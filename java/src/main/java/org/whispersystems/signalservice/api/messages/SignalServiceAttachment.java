@@ -49,6 +49,8 @@ public abstract class SignalServiceAttachment {
     private int              height;
     private String           caption;
     private String           blurHash;
+    private byte[]           contentHash;
+    private boolean          chunked;
 
     private Builder() {}
 
@@ -102,6 +104,29 @@ public abstract class SignalServiceAttachment {
       return this;
     }
 
+    /**
+     * @param contentHash The SHA-256 of the stream's content. An upload cache trusts it
+     *                    without reading the stream, see
+     *                    {@link org.whispersystems.signalservice.api.SignalServiceMessageSender#setAttachmentUploadCache(AttachmentUploadCache)}.
+     */
+    public Builder withContentHash(byte[] contentHash) {
+      this.contentHash = contentHash;
+      return this;
+    }
+
+    /**
+     * Encrypt in the experimental chunked format, which can be decrypted in parallel
+     * and from any offset. Recipients that don't support it can't read the attachment,
+     * so only set this when every recipient's profile advertises
+     * {@link org.whispersystems.signalservice.api.profiles.SignalServiceProfile.Capabilities#isChunkedAttachments()}.
+     * Ignored unless the sender has chunked attachments enabled, see
+     * {@link org.whispersystems.signalservice.api.SignalServiceMessageSender#setChunkedAttachmentsEnabled(boolean)}.
+     */
+    public Builder withChunkedFormat(boolean chunked) {
+      this.chunked = chunked;
+      return this;
+    }
+
     public SignalServiceAttachmentStream build() {
       if (inputStream == null) throw new IllegalArgumentException("Must specify stream!");
       if (contentType == null) throw new IllegalArgumentException("No content type specified!");
@@ -117,6 +142,8 @@ public abstract class SignalServiceAttachment {
                                                height,
                                                Optional.fromNullable(caption),
                                                Optional.fromNullable(blurHash),
+                                               Optional.fromNullable(contentHash),
+                                               chunked,
                                                listener);
     }
   }
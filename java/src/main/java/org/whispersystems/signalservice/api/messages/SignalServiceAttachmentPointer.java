@@ -29,6 +29,7 @@ public class SignalServiceAttachmentPointer extends SignalServiceAttachment {
   private final int               height;
   private final Optional<String>  caption;
   private final Optional<String>  blurHash;
+  private final boolean           chunked;
 
   public SignalServiceAttachmentPointer(long id, String contentType, byte[] key,
                                         Optional<Integer> size, Optional<byte[]> preview,
@@ -36,6 +37,20 @@ public class SignalServiceAttachmentPointer extends SignalServiceAttachment {
                                         Optional<byte[]> digest, Optional<String> fileName,
                                         boolean voiceNote, Optional<String> caption,
                                         Optional<String> blurHash)
+  {
+    this(id, contentType, key, size, preview, width, height, digest, fileName, voiceNote, caption, blurHash, false);
+  }
+
+  /**
+   * @param chunked Whether the attachment is encrypted in the chunked format read by
+   *                {@link org.whispersystems.signalservice.api.crypto.ChunkedAttachmentCipherInputStream}.
+   */
+  public SignalServiceAttachmentPointer(long id, String contentType, byte[] key,
+                                        Optional<Integer> size, Optional<byte[]> preview,
+                                        int width, int height,
+                                        Optional<byte[]> digest, Optional<String> fileName,
+                                        boolean voiceNote, Optional<String> caption,
+                                        Optional<String> blurHash, boolean chunked)
   {
     super(contentType);
     this.id        = id;
@@ -49,6 +64,7 @@ public class SignalServiceAttachmentPointer extends SignalServiceAttachment {
     this.voiceNote = voiceNote;
     this.caption   = caption;
     this.blurHash  = blurHash;
+    this.chunked   = chunked;
   }
 
   public long getId() {
@@ -104,4 +120,8 @@ public class SignalServiceAttachmentPointer extends SignalServiceAttachment {
   public Optional<String> getBlurHash() {
     return blurHash;
   }
+
+  public boolean isChunked() {
+    return chunked;
+  }
 }
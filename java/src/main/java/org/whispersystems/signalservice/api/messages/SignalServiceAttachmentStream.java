@@ -25,12 +25,26 @@ public class SignalServiceAttachmentStream extends SignalServiceAttachment {
   private final int              height;
   private final Optional<String> caption;
   private final Optional<String> blurHash;
+  private final Optional<byte[]> contentHash;
+  private final boolean          chunked;
 
   public SignalServiceAttachmentStream(InputStream inputStream, String contentType, long length, Optional<String> fileName, boolean voiceNote, ProgressListener listener) {
     this(inputStream, contentType, length, fileName, voiceNote, Optional.<byte[]>absent(), 0, 0, Optional.<String>absent(), Optional.<String>absent(), listener);
   }
 
   public SignalServiceAttachmentStream(InputStream inputStream, String contentType, long length, Optional<String> fileName, boolean voiceNote, Optional<byte[]> preview, int width, int height, Optional<String> caption, Optional<String> blurHash, ProgressListener listener) {
+    this(inputStream, contentType, length, fileName, voiceNote, preview, width, height, caption, blurHash, Optional.<byte[]>absent(), false, listener);
+  }
+
+  /**
+   * @param contentHash The SHA-256 of the stream's content, if known. Lets an uploader with
+   *                    an {@link AttachmentUploadCache} skip uploading content it already
+   *                    has, trusting the hash, so it must never be stale or a guess.
+   * @param chunked Whether to encrypt in the experimental chunked format. Only set this
+   *                when every recipient supports it, see
+   *                {@link SignalServiceAttachment.Builder#withChunkedFormat(boolean)}.
+   */
+  public SignalServiceAttachmentStream(InputStream inputStream, String contentType, long length, Optional<String> fileName, boolean voiceNote, Optional<byte[]> preview, int width, int height, Optional<String> caption, Optional<String> blurHash, Optional<byte[]> contentHash, boolean chunked, ProgressListener listener) {
     super(contentType);
     this.inputStream = inputStream;
     this.length      = length;
@@ -42,6 +56,8 @@ public class SignalServiceAttachmentStream extends SignalServiceAttachment {
     this.height      = height;
     this.caption     = caption;
     this.blurHash    = blurHash;
+    this.contentHash = contentHash;
+    this.chunked     = chunked;
   }
 
   @Override
@@ -93,4 +109,12 @@ public class SignalServiceAttachmentStream extends SignalServiceAttachment {
   public Optional<String> getBlurHash() {
     return blurHash;
   }
+
+  public Optional<byte[]> getContentHash() {
+    return contentHash;
+  }
+
+  public boolean isChunked() {
+    return chunked;
+  }
 }
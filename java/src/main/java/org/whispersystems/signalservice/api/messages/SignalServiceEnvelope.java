@@ -7,6 +7,7 @@
 package org.whispersystems.signalservice.api.messages;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 
 import org.whispersystems.libsignal.InvalidVersionException;
 import org.whispersystems.libsignal.logging.Log;
@@ -14,20 +15,20 @@ import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import org.whispersystems.signalservice.api.util.UuidUtil;
 import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Envelope;
-import org.whispersystems.signalservice.internal.util.Hex;
 import org.whispersystems.util.Base64;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
@@ -54,6 +55,20 @@ public class SignalServiceEnvelope {
   private static final int IV_LENGTH         = 16;
   private static final int CIPHERTEXT_OFFSET = IV_OFFSET + IV_LENGTH;
 
+  /**
+   * The largest plaintext buffer a thread keeps between messages. Bigger envelopes, which
+   * are rare, get a buffer of their own so pool threads don't each hold on to the largest
+   * envelope they've ever seen.
+   */
+  private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+
+  private static final ThreadLocal<byte[]> PLAINTEXT_BUFFER = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[4096];
+    }
+  };
+
   private final Envelope envelope;
 
   /**
@@ -81,20 +96,58 @@ public class SignalServiceEnvelope {
    */
   public SignalServiceEnvelope(byte[] input, String signalingKey, boolean isSignalingKeyEncrypted)
       throws InvalidVersionException, IOException
+  {
+    this(ByteBuffer.wrap(input), decodeSignalingKey(signalingKey, isSignalingKeyEncrypted), isSignalingKeyEncrypted, false);
+  }
+
+  /**
+   * Construct an envelope from a serialized SignalServiceEnvelope, encrypted with a signaling key,
+   * without copying the input.
+   *
+   * If the input isn't signaling key encrypted, the envelope's message fields are views onto it,
+   * so it must not change afterwards. A ByteString is immutable, so this always holds for
+   * the body of a received websocket request.
+   *
+   * @param input The serialized and (optionally) encrypted SignalServiceEnvelope.
+   * @param signalingKey The signaling key.
+   * @throws InvalidVersionException
+   * @throws IOException
+   */
+  public SignalServiceEnvelope(ByteString input, String signalingKey, boolean isSignalingKeyEncrypted)
+      throws InvalidVersionException, IOException
+  {
+    this(input, decodeSignalingKey(signalingKey, isSignalingKeyEncrypted), isSignalingKeyEncrypted);
+  }
+
+  /**
+   * Like {@link #SignalServiceEnvelope(ByteString, String, boolean)}, with a signaling key
+   * that was already decoded, so that a receiver decodes its key once rather than per message.
+   *
+   * @param signalingKey The decoded signaling key, which may be null if the input isn't encrypted.
+   */
+  public SignalServiceEnvelope(ByteString input, SignalingKey signalingKey, boolean isSignalingKeyEncrypted)
+      throws InvalidVersionException, IOException
+  {
+    this(input.asReadOnlyByteBuffer(), signalingKey, isSignalingKeyEncrypted, true);
+  }
+
+  private SignalServiceEnvelope(ByteBuffer input, SignalingKey keys, boolean isSignalingKeyEncrypted, boolean aliasInput)
+      throws InvalidVersionException, IOException
   {
     if (!isSignalingKeyEncrypted) {
-      this.envelope = Envelope.parseFrom(input);
+      this.envelope = parseEnvelope(input, aliasInput);
     } else {
-      if (input.length < VERSION_LENGTH || input[VERSION_OFFSET] != SUPPORTED_VERSION) {
+      if (input.remaining() < VERSION_LENGTH || input.get(input.position() + VERSION_OFFSET) != SUPPORTED_VERSION) {
         throw new InvalidVersionException("Unsupported version!");
       }
 
-      SecretKeySpec cipherKey = getCipherKey(signalingKey);
-      SecretKeySpec macKey    = getMacKey(signalingKey);
+      if (keys == null) {
+        throw new IOException("No signaling key!");
+      }
 
-      verifyMac(input, macKey);
+      verifyMac(input, keys.getMacKey());
 
-      this.envelope = Envelope.parseFrom(getPlaintext(input, cipherKey));
+      this.envelope = parseEnvelope(getPlaintext(input, keys.getCipherKey()), false);
     }
   }
 
@@ -263,18 +316,39 @@ public class SignalServiceEnvelope {
     return envelope.getType().getNumber() == Envelope.Type.UNIDENTIFIED_SENDER_VALUE;
   }
 
-  private byte[] getPlaintext(byte[] ciphertext, SecretKeySpec cipherKey) throws IOException {
+  private static Envelope parseEnvelope(ByteBuffer input, boolean aliasInput) throws IOException {
+    CodedInputStream codedInput = input.hasArray() ? CodedInputStream.newInstance(input.array(), input.arrayOffset() + input.position(), input.remaining())
+                                                   : CodedInputStream.newInstance(input);
+    codedInput.enableAliasing(aliasInput);
+
+    return Envelope.parseFrom(codedInput);
+  }
+
+  /**
+   * Decrypts into a per-thread buffer that is reused across messages, unless the message is
+   * too big for the buffer to be retained. The returned view is only valid until the next call
+   * on the same thread, so it must be fully parsed (without aliasing) before then.
+   */
+  private static ByteBuffer getPlaintext(ByteBuffer ciphertext, SecretKeySpec cipherKey) throws IOException {
     try {
       byte[] ivBytes = new byte[IV_LENGTH];
-      System.arraycopy(ciphertext, IV_OFFSET, ivBytes, 0, ivBytes.length);
-      IvParameterSpec iv = new IvParameterSpec(ivBytes);
+      ByteBuffer ivView = ciphertext.duplicate();
+      ivView.position(ciphertext.position() + IV_OFFSET);
+      ivView.get(ivBytes);
+
+      ByteBuffer input = ciphertext.duplicate();
+      input.position(ciphertext.position() + CIPHERTEXT_OFFSET);
+      input.limit(ciphertext.limit() - MAC_SIZE);
 
       Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-      cipher.init(Cipher.DECRYPT_MODE, cipherKey, iv);
+      cipher.init(Cipher.DECRYPT_MODE, cipherKey, new IvParameterSpec(ivBytes));
+
+      ByteBuffer output = getPlaintextBuffer(cipher.getOutputSize(input.remaining()));
+      cipher.doFinal(input, output);
+      output.flip();
 
-      return cipher.doFinal(ciphertext, CIPHERTEXT_OFFSET,
-                            ciphertext.length - VERSION_LENGTH - IV_LENGTH - MAC_SIZE);
-    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException e) {
+      return output;
+    } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | ShortBufferException e) {
       throw new AssertionError(e);
     } catch (BadPaddingException e) {
       Log.w(TAG, e);
@@ -282,27 +356,41 @@ public class SignalServiceEnvelope {
     }
   }
 
-  private void verifyMac(byte[] ciphertext, SecretKeySpec macKey) throws IOException {
-    try {
-      Mac mac = Mac.getInstance("HmacSHA256");
-      mac.init(macKey);
+  private static ByteBuffer getPlaintextBuffer(int size) {
+    if (size > MAX_RETAINED_BUFFER_SIZE) {
+      return ByteBuffer.allocate(size);
+    }
+
+    byte[] buffer = PLAINTEXT_BUFFER.get();
+
+    if (buffer.length < size) {
+      buffer = new byte[size];
+      PLAINTEXT_BUFFER.set(buffer);
+    }
+
+    return ByteBuffer.wrap(buffer, 0, size);
+  }
 
-      if (ciphertext.length < MAC_SIZE + 1)
+  private static void verifyMac(ByteBuffer ciphertext, SecretKeySpec macKey) throws IOException {
+    try {
+      if (ciphertext.remaining() < CIPHERTEXT_OFFSET + MAC_SIZE)
         throw new IOException("Invalid MAC!");
 
-      mac.update(ciphertext, 0, ciphertext.length - MAC_SIZE);
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(macKey);
 
-      byte[] ourMacFull  = mac.doFinal();
-      byte[] ourMacBytes = new byte[MAC_SIZE];
-      System.arraycopy(ourMacFull, 0, ourMacBytes, 0, ourMacBytes.length);
+      ByteBuffer macInput = ciphertext.duplicate();
+      macInput.limit(ciphertext.limit() - MAC_SIZE);
+      mac.update(macInput);
 
-      byte[] theirMacBytes = new byte[MAC_SIZE];
-      System.arraycopy(ciphertext, ciphertext.length-MAC_SIZE, theirMacBytes, 0, theirMacBytes.length);
+      byte[] ourMac = mac.doFinal();
+      int    result = 0;
 
-      Log.w(TAG, "Our MAC: " + Hex.toString(ourMacBytes));
-      Log.w(TAG, "Thr MAC: " + Hex.toString(theirMacBytes));
+      for (int i = 0; i < MAC_SIZE; i++) {
+        result |= ourMac[i] ^ ciphertext.get(ciphertext.limit() - MAC_SIZE + i);
+      }
 
-      if (!Arrays.equals(ourMacBytes, theirMacBytes)) {
+      if (result != 0) {
         throw new IOException("Invalid MAC compare!");
       }
     } catch (NoSuchAlgorithmException | InvalidKeyException e) {
@@ -310,22 +398,39 @@ public class SignalServiceEnvelope {
     }
   }
 
+  private static SignalingKey decodeSignalingKey(String signalingKey, boolean isSignalingKeyEncrypted) throws IOException {
+    if (isSignalingKeyEncrypted && signalingKey != null) return new SignalingKey(signalingKey);
+    else                                                 return null;
+  }
 
-  private SecretKeySpec getCipherKey(String signalingKey) throws IOException {
-    byte[] signalingKeyBytes = Base64.decode(signalingKey);
-    byte[] cipherKey         = new byte[CIPHER_KEY_SIZE];
-    System.arraycopy(signalingKeyBytes, 0, cipherKey, 0, cipherKey.length);
+  /**
+   * The cipher and MAC keys decoded from a signaling key, so a receiver can decode
+   * its key once rather than once per received message.
+   */
+  public static class SignalingKey {
 
-    return new SecretKeySpec(cipherKey, "AES");
-  }
+    private final String        encoded;
+    private final SecretKeySpec cipherKey;
+    private final SecretKeySpec macKey;
 
+    public SignalingKey(String encoded) throws IOException {
+      byte[] signalingKeyBytes = Base64.decode(encoded);
 
-  private SecretKeySpec getMacKey(String signalingKey) throws IOException {
-    byte[] signalingKeyBytes = Base64.decode(signalingKey);
-    byte[] macKey            = new byte[MAC_KEY_SIZE];
-    System.arraycopy(signalingKeyBytes, CIPHER_KEY_SIZE, macKey, 0, macKey.length);
+      this.encoded   = encoded;
+      this.cipherKey = new SecretKeySpec(signalingKeyBytes, 0, CIPHER_KEY_SIZE, "AES");
+      this.macKey    = new SecretKeySpec(signalingKeyBytes, CIPHER_KEY_SIZE, MAC_KEY_SIZE, "HmacSHA256");
+    }
 
-    return new SecretKeySpec(macKey, "HmacSHA256");
-  }
+    public String getEncoded() {
+      return encoded;
+    }
 
+    SecretKeySpec getCipherKey() {
+      return cipherKey;
+    }
+
+    SecretKeySpec getMacKey() {
+      return macKey;
+    }
+  }
 }
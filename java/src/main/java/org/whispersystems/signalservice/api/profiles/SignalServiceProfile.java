@@ -53,10 +53,17 @@ public class SignalServiceProfile {
     @JsonProperty
     private boolean uuid;
 
+    @JsonProperty
+    private boolean chunkedAttachments;
+
     public Capabilities() {}
 
     public boolean isUuid() {
       return uuid;
     }
+
+    public boolean isChunkedAttachments() {
+      return chunkedAttachments;
+    }
   }
 }
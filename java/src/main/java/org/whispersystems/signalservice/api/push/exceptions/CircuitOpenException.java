@@ -0,0 +1,15 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.signalservice.api.push.exceptions;
+
+/**
+ * Every endpoint that could serve a request is failing, so it wasn't sent.
+ */
+public class CircuitOpenException extends PushNetworkException {
+  public CircuitOpenException(String s) {
+    super(s);
+  }
+}
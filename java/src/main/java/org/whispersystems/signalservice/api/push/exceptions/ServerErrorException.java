@@ -0,0 +1,15 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+package org.whispersystems.signalservice.api.push.exceptions;
+
+/**
+ * The service answered with a 5xx response.
+ */
+public class ServerErrorException extends NonSuccessfulResponseCodeException {
+  public ServerErrorException(String s) {
+    super(s);
+  }
+}
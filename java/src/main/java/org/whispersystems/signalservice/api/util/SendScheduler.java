@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.api.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces outgoing messages with token buckets, so senders stay under the service's rate
+ * limits instead of bursting into them.
+ *
+ * Every send takes a token from a global bucket, a bucket for the sending account, and
+ * a bucket for the destination, waiting until all three have one. While an
+ * {@link Priority#INTERACTIVE} send is waiting, {@link Priority#BULK} sends hold back,
+ * so a backlog of sync traffic doesn't delay messages a user is waiting on.
+ *
+ * One scheduler can be shared by the senders of several accounts. It keeps the buckets
+ * of the most recently used accounts and destinations, dropping the least recently used
+ * beyond that, which by then have had the longest to refill.
+ */
+public class SendScheduler {
+
+  private static final int MAX_BUCKETS = 1024;
+
+  public enum Priority {
+    INTERACTIVE, BULK
+  }
+
+  private final Rate        perAccount;
+  private final Rate        perDestination;
+  private final TokenBucket global;
+  private final Buckets     accounts     = new Buckets();
+  private final Buckets     destinations = new Buckets();
+
+  private int interactiveWaiting;
+
+  public SendScheduler(Rate global, Rate perAccount, Rate perDestination) {
+    this.global         = new TokenBucket(global, System.nanoTime());
+    this.perAccount     = perAccount;
+    this.perDestination = perDestination;
+  }
+
+  /**
+   * Blocks until a message may be sent.
+   *
+   * @param account The sending account's identifier.
+   * @param destination The recipient's identifier.
+   */
+  public synchronized void acquire(String account, String destination, Priority priority) throws InterruptedException {
+    if (priority == Priority.INTERACTIVE) {
+      interactiveWaiting++;
+    }
+
+    try {
+      while (true) {
+        long now = System.nanoTime();
+
+        if (priority == Priority.BULK && interactiveWaiting > 0) {
+          wait();
+          continue;
+        }
+
+        TokenBucket accountBucket     = getBucket(accounts, account, perAccount, now);
+        TokenBucket destinationBucket = getBucket(destinations, destination, perDestination, now);
+        long        delay             = Math.max(global.getDelayNanos(now),
+                                                 Math.max(accountBucket.getDelayNanos(now), destinationBucket.getDelayNanos(now)));
+
+        if (delay == 0) {
+          global.take();
+          accountBucket.take();
+          destinationBucket.take();
+          return;
+        }
+
+        TimeUnit.NANOSECONDS.timedWait(this, delay);
+      }
+    } finally {
+      if (priority == Priority.INTERACTIVE) {
+        interactiveWaiting--;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * The service rate limited an account, so empty its bucket: its next sends are paced
+   * from scratch rather than spending whatever burst it had left.
+   */
+  public synchronized void onRateLimited(String account) {
+    getBucket(accounts, account, perAccount, System.nanoTime()).drain();
+  }
+
+  private TokenBucket getBucket(Buckets buckets, String key, Rate rate, long now) {
+    TokenBucket bucket = buckets.get(key);
+
+    if (bucket == null) {
+      bucket = new TokenBucket(rate, now);
+      buckets.put(key, bucket);
+    }
+
+    return bucket;
+  }
+
+  /**
+   * A sustained rate, and how many sends may go out back to back before it applies.
+   */
+  public static class Rate {
+
+    private final double permitsPerSecond;
+    private final int    burst;
+
+    public Rate(double permitsPerSecond, int burst) {
+      if (permitsPerSecond <= 0) throw new IllegalArgumentException("Bad rate: " + permitsPerSecond);
+      if (burst < 1)             throw new IllegalArgumentException("Bad burst: " + burst);
+
+      this.permitsPerSecond = permitsPerSecond;
+      this.burst            = burst;
+    }
+
+    public double getPermitsPerSecond() {
+      return permitsPerSecond;
+    }
+
+    public int getBurst() {
+      return burst;
+    }
+  }
+
+  private static class TokenBucket {
+
+    private final double permitsPerNano;
+    private final double capacity;
+
+    private double tokens;
+    private long   updated;
+
+    private TokenBucket(Rate rate, long now) {
+      this.permitsPerNano = rate.getPermitsPerSecond() / TimeUnit.SECONDS.toNanos(1);
+      this.capacity       = rate.getBurst();
+      this.tokens         = capacity;
+      this.updated        = now;
+    }
+
+    long getDelayNanos(long now) {
+      tokens  = Math.min(capacity, tokens + (now - updated) * permitsPerNano);
+      updated = now;
+
+      if (tokens >= 1) return 0;
+      else             return Math.max(1, (long) Math.ceil((1 - tokens) / permitsPerNano));
+    }
+
+    void take() {
+      tokens -= 1;
+    }
+
+    void drain() {
+      tokens = 0;
+    }
+  }
+
+  /**
+   * Buckets in least recently used order, holding at most {@link #MAX_BUCKETS}.
+   */
+  private static class Buckets extends LinkedHashMap<String, TokenBucket> {
+
+    private Buckets() {
+      super(16, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, TokenBucket> eldest) {
+      return size() > MAX_BUCKETS;
+    }
+  }
+}
@@ -1,16 +1,47 @@
 package org.whispersystems.signalservice.internal.configuration;
 
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.internal.push.HedgingPolicy;
+import org.whispersystems.signalservice.internal.push.OkHttpClientFactory;
+import org.whispersystems.signalservice.internal.push.RetryPolicy;
 
 public class SignalServiceConfiguration {
 
   private final SignalServiceUrl[]          signalServiceUrls;
   private final SignalCdnUrl[]              signalCdnUrls;
   private final SignalContactDiscoveryUrl[] signalContactDiscoveryUrls;
+  private final OkHttpClientFactory         clientFactory;
+  private final Optional<HedgingPolicy>     hedgingPolicy;
+  private final Optional<RetryPolicy>       retryPolicy;
 
   public SignalServiceConfiguration(SignalServiceUrl[] signalServiceUrls, SignalCdnUrl[] signalCdnUrls, SignalContactDiscoveryUrl[] signalContactDiscoveryUrls) {
+    this(signalServiceUrls, signalCdnUrls, signalContactDiscoveryUrls, OkHttpClientFactory.getDefault());
+  }
+
+  public SignalServiceConfiguration(SignalServiceUrl[] signalServiceUrls, SignalCdnUrl[] signalCdnUrls, SignalContactDiscoveryUrl[] signalContactDiscoveryUrls, OkHttpClientFactory clientFactory) {
+    this(signalServiceUrls, signalCdnUrls, signalContactDiscoveryUrls, clientFactory, Optional.<HedgingPolicy>absent());
+  }
+
+  /**
+   * @param hedgingPolicy If present, reads without side effects are hedged across service
+   *                      and CDN URLs according to this policy.
+   */
+  public SignalServiceConfiguration(SignalServiceUrl[] signalServiceUrls, SignalCdnUrl[] signalCdnUrls, SignalContactDiscoveryUrl[] signalContactDiscoveryUrls, OkHttpClientFactory clientFactory, Optional<HedgingPolicy> hedgingPolicy) {
+    this(signalServiceUrls, signalCdnUrls, signalContactDiscoveryUrls, clientFactory, hedgingPolicy, Optional.<RetryPolicy>absent());
+  }
+
+  /**
+   * @param retryPolicy If present, service requests, CDN transfers and pipe sends are
+   *                    retried and rate limited according to this policy, and refused
+   *                    while every endpoint they could use is failing.
+   */
+  public SignalServiceConfiguration(SignalServiceUrl[] signalServiceUrls, SignalCdnUrl[] signalCdnUrls, SignalContactDiscoveryUrl[] signalContactDiscoveryUrls, OkHttpClientFactory clientFactory, Optional<HedgingPolicy> hedgingPolicy, Optional<RetryPolicy> retryPolicy) {
     this.signalServiceUrls          = signalServiceUrls;
     this.signalCdnUrls              = signalCdnUrls;
     this.signalContactDiscoveryUrls = signalContactDiscoveryUrls;
+    this.clientFactory              = clientFactory;
+    this.hedgingPolicy              = hedgingPolicy;
+    this.retryPolicy                = retryPolicy;
   }
 
   public SignalServiceUrl[] getSignalServiceUrls() {
@@ -24,4 +55,16 @@ public class SignalServiceConfiguration {
   public SignalContactDiscoveryUrl[] getSignalContactDiscoveryUrls() {
     return signalContactDiscoveryUrls;
   }
+
+  public OkHttpClientFactory getClientFactory() {
+    return clientFactory;
+  }
+
+  public Optional<HedgingPolicy> getHedgingPolicy() {
+    return hedgingPolicy;
+  }
+
+  public Optional<RetryPolicy> getRetryPolicy() {
+    return retryPolicy;
+  }
 }
@@ -6,6 +6,7 @@ import org.whispersystems.signalservice.internal.util.Util;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 public class PaddingInputStream extends FilterInputStream {
 
@@ -37,6 +38,7 @@ public class PaddingInputStream extends FilterInputStream {
     if (paddingRemaining > 0) {
       length = Math.min(length, Util.toIntExact(paddingRemaining));
       paddingRemaining -= length;
+      Arrays.fill(buffer, offset, offset + length, (byte)0x00);
       return length;
     }
 
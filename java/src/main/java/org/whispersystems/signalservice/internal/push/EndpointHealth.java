@@ -0,0 +1,212 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.push;
+
+import org.whispersystems.libsignal.logging.Log;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Interceptor;
+import okhttp3.Response;
+
+/**
+ * Tracks how well one endpoint has been answering, as seen by the requests that pass
+ * through it as an interceptor.
+ *
+ * Latency is a moving average of time to response headers, with failures (transport
+ * errors and 5xx responses, but not cancellations) counted as at least
+ * {@link #FAILURE_PENALTY_NANOS}. The error rate is a moving average of failures.
+ * Statistics that haven't been updated in {@link #STALE_NANOS} are forgotten, so an
+ * endpoint that was avoided gets tried again.
+ *
+ * An endpoint that fails {@link #EJECTION_THRESHOLD} times in a row is ejected for a
+ * while, doubling on each ejection. Once an ejection lapses, a single request at a
+ * time is let through as a probe until one succeeds.
+ *
+ * It also keeps the last {@link #LATENCY_SAMPLES} successful latencies, for hedging
+ * delays, and the endpoint's hedging budget (see {@link HedgingPolicy}).
+ *
+ * Times are {@link System#nanoTime()} values.
+ */
+class EndpointHealth implements Interceptor {
+
+  private static final String TAG = EndpointHealth.class.getSimpleName();
+
+  static final int  EJECTION_THRESHOLD    = 3;
+  static final long MIN_EJECTION_NANOS    = TimeUnit.SECONDS.toNanos(5);
+  static final long MAX_EJECTION_NANOS    = TimeUnit.MINUTES.toNanos(5);
+  static final long FAILURE_PENALTY_NANOS = TimeUnit.SECONDS.toNanos(1);
+  static final long STALE_NANOS           = TimeUnit.SECONDS.toNanos(30);
+  static final int  LATENCY_SAMPLES       = 64;
+
+  private static final double DECAY          = 0.2;
+  private static final double MAX_ERROR_RATE = 0.95;
+
+  private final String name;
+  private final long[] latencies = new long[LATENCY_SAMPLES];
+
+  private double latencyNanos;
+  private long   lastSample;
+  private double errorRate;
+  private int    inFlight;
+  private int    consecutiveFailures;
+  private int    ejections;
+  private long   ejectedUntil;
+  private int    latencyCount;
+  private double hedgeBudget;
+
+  EndpointHealth(String name) {
+    this.name = name;
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    onStart();
+
+    long start = System.nanoTime();
+
+    try {
+      Response response = chain.proceed(chain.request());
+      long     now      = System.nanoTime();
+
+      if (response.code() >= 500) onFailure(now, now - start);
+      else                        onSuccess(now, now - start);
+
+      return response;
+    } catch (IOException | RuntimeException e) {
+      if (!chain.call().isCanceled()) {
+        long now = System.nanoTime();
+        onFailure(now, now - start);
+      }
+
+      throw e;
+    } finally {
+      onFinish();
+    }
+  }
+
+  synchronized void onStart() {
+    inFlight++;
+  }
+
+  synchronized void onFinish() {
+    inFlight--;
+  }
+
+  synchronized void onSuccess(long now, long elapsedNanos) {
+    sample(now, elapsedNanos);
+    latencies[latencyCount++ % LATENCY_SAMPLES] = elapsedNanos;
+    errorRate           = errorRate * (1 - DECAY);
+    consecutiveFailures = 0;
+    ejections           = 0;
+  }
+
+  synchronized void onFailure(long now, long elapsedNanos) {
+    sample(now, Math.max(elapsedNanos, FAILURE_PENALTY_NANOS));
+    errorRate = errorRate + DECAY * (1 - errorRate);
+    consecutiveFailures++;
+
+    if (consecutiveFailures >= EJECTION_THRESHOLD && ejectedUntil <= now) {
+      long duration = Math.min(MAX_EJECTION_NANOS, MIN_EJECTION_NANOS << Math.min(ejections, 16));
+
+      ejectedUntil = now + duration;
+      ejections++;
+
+      Log.w(TAG, "Ejecting " + name + " for " + TimeUnit.NANOSECONDS.toMillis(duration) + "ms after " + consecutiveFailures + " failures");
+    }
+  }
+
+  /**
+   * @return Whether a request may be sent here now: the endpoint isn't ejected, and if
+   *         it is coming back from an ejection, no other probe is outstanding.
+   */
+  synchronized boolean isAvailable(long now) {
+    if (ejectedUntil > now) return false;
+    else                    return consecutiveFailures < EJECTION_THRESHOLD || inFlight == 0;
+  }
+
+  synchronized long getEjectedUntil() {
+    return ejectedUntil;
+  }
+
+  /**
+   * @return The expected cost of sending one more request here. Endpoints without
+   *         recent statistics cost nothing, so they are tried early.
+   */
+  synchronized double getCost(long now) {
+    if (isStale(now)) return 0;
+    else              return latencyNanos * (inFlight + 1) / (1 - Math.min(errorRate, MAX_ERROR_RATE));
+  }
+
+  /**
+   * @return The given percentile of recent successful latencies, or -1 if there haven't
+   *         been enough to say.
+   */
+  synchronized long getLatencyPercentileNanos(double percentile) {
+    if (latencyCount < LATENCY_SAMPLES / 4) {
+      return -1;
+    }
+
+    long[] sorted = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_SAMPLES));
+    Arrays.sort(sorted);
+
+    return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)];
+  }
+
+  /**
+   * Credits the hedging budget for one hedgeable read sent here.
+   */
+  synchronized void depositHedgeBudget(double ratio, int maxBurst) {
+    hedgeBudget = Math.min(maxBurst, hedgeBudget + ratio);
+  }
+
+  /**
+   * @return Whether the budget allows another hedge, which is then charged to it.
+   */
+  synchronized boolean withdrawHedgeBudget() {
+    if (hedgeBudget < 1) {
+      return false;
+    }
+
+    hedgeBudget -= 1;
+    return true;
+  }
+
+  /**
+   * Picks the better of two endpoints: an available one over an unavailable one, then
+   * the cheaper of the two.
+   */
+  static boolean isBetter(EndpointHealth candidate, EndpointHealth other, long now) {
+    boolean candidateAvailable = candidate.isAvailable(now);
+    boolean otherAvailable     = other.isAvailable(now);
+
+    if (candidateAvailable != otherAvailable) return candidateAvailable;
+    else                                      return candidate.getCost(now) <= other.getCost(now);
+  }
+
+  private void sample(long now, long valueNanos) {
+    if (isStale(now)) {
+      latencyNanos = valueNanos;
+      errorRate    = 0;
+    } else {
+      latencyNanos = latencyNanos + DECAY * (valueNanos - latencyNanos);
+    }
+
+    lastSample = now;
+  }
+
+  private boolean isStale(long now) {
+    return lastSample == 0 || now - lastSample > STALE_NANOS;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
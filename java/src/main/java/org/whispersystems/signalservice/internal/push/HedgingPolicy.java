@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.push;
+
+/**
+ * Controls hedging of reads without side effects, such as profile, device and prekey
+ * count lookups: when the endpoint a read was sent to hasn't answered within its usual
+ * latency, the same read is sent to another endpoint and whichever answers first wins.
+ * Prekey bundle fetches are never hedged, as each one uses up a one-time prekey.
+ *
+ * The hedge delay is the given percentile of the first endpoint's recent latencies,
+ * clamped to [minDelayMillis, maxDelayMillis], and maxDelayMillis until enough
+ * latencies have been seen. Each endpoint earns budgetRatio hedges per read sent to
+ * it, banking at most maxBurst, so hedges stay a bounded fraction of traffic when
+ * everything slows down at once.
+ */
+public class HedgingPolicy {
+
+  private final double percentile;
+  private final long   minDelayMillis;
+  private final long   maxDelayMillis;
+  private final double budgetRatio;
+  private final int    maxBurst;
+
+  /**
+   * Hedges after the 95th percentile latency, between 50ms and 5s, for at most one
+   * read in ten.
+   */
+  public HedgingPolicy() {
+    this(0.95, 50, 5000, 0.1, 10);
+  }
+
+  public HedgingPolicy(double percentile, long minDelayMillis, long maxDelayMillis, double budgetRatio, int maxBurst) {
+    if (percentile <= 0 || percentile > 1)  throw new IllegalArgumentException("Bad percentile: " + percentile);
+    if (minDelayMillis > maxDelayMillis)    throw new IllegalArgumentException("Minimum delay exceeds maximum");
+    if (budgetRatio < 0 || budgetRatio > 1) throw new IllegalArgumentException("Bad budget ratio: " + budgetRatio);
+
+    this.percentile     = percentile;
+    this.minDelayMillis = minDelayMillis;
+    this.maxDelayMillis = maxDelayMillis;
+    this.budgetRatio    = budgetRatio;
+    this.maxBurst       = maxBurst;
+  }
+
+  public double getPercentile() {
+    return percentile;
+  }
+
+  public long getMinDelayMillis() {
+    return minDelayMillis;
+  }
+
+  public long getMaxDelayMillis() {
+    return maxDelayMillis;
+  }
+
+  public double getBudgetRatio() {
+    return budgetRatio;
+  }
+
+  public int getMaxBurst() {
+    return maxBurst;
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.push;
+
+import org.whispersystems.signalservice.api.util.Tls12SocketFactory;
+import org.whispersystems.signalservice.internal.configuration.SignalUrl;
+import org.whispersystems.signalservice.internal.util.BlacklistingTrustManager;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import okhttp3.ConnectionSpec;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Creates and caches the OkHttp clients used to talk to the service, CDN and
+ * contact discovery endpoints.
+ *
+ * Every PushServiceSocket built from the same {@link SignalUrl} instances and the
+ * same factory shares one client (and with it one ConnectionPool and Dispatcher)
+ * per URL, so processes hosting many accounts reuse warm TLS connections instead
+ * of each socket opening its own. Unidentified (sealed sender) requests always get
+ * a separate client per URL, so their connections are never shared with
+ * authenticated requests.
+ *
+ * Timeouts are left at OkHttp's defaults here and applied by each socket.
+ *
+ * A factory can be created with HTTP/2 enabled, in which case every client offers
+ * h2 over ALPN (falling back to HTTP/1.1 when the server doesn't take it) and speaks
+ * h2 with prior knowledge to plaintext URLs. Concurrent requests to a host then
+ * share one multiplexed connection, and each client keeps at most
+ * maxConcurrentStreams requests outstanding per host. Otherwise clients are used
+ * as built, with whatever protocols they offer.
+ */
+public class OkHttpClientFactory {
+
+  private static final OkHttpClientFactory DEFAULT = new OkHttpClientFactory();
+
+  private final Map<SignalUrl, OkHttpClient> clients             = new WeakHashMap<>();
+  private final Map<SignalUrl, OkHttpClient> unidentifiedClients = new WeakHashMap<>();
+
+  private final boolean http2;
+  private final int     maxConcurrentStreams;
+
+  public OkHttpClientFactory() {
+    this.http2                = false;
+    this.maxConcurrentStreams = 0;
+  }
+
+  /**
+   * @param maxConcurrentStreams Enables HTTP/2, allowing each client this many
+   *                             concurrent requests (streams) per host.
+   */
+  public OkHttpClientFactory(int maxConcurrentStreams) {
+    if (maxConcurrentStreams < 1) throw new IllegalArgumentException("Bad stream limit: " + maxConcurrentStreams);
+
+    this.http2                = true;
+    this.maxConcurrentStreams = maxConcurrentStreams;
+  }
+
+  /**
+   * @return The process-wide factory used when a configuration doesn't specify one.
+   */
+  public static OkHttpClientFactory getDefault() {
+    return DEFAULT;
+  }
+
+  public synchronized OkHttpClient getClient(SignalUrl url) {
+    return getOrCreate(clients, url);
+  }
+
+  public synchronized OkHttpClient getUnidentifiedClient(SignalUrl url) {
+    return getOrCreate(unidentifiedClients, url);
+  }
+
+  /**
+   * Builds a new client for the given URL. Subclasses can override this to
+   * customise the transport (proxies, dispatcher limits, interceptors).
+   */
+  protected OkHttpClient createClient(SignalUrl url) {
+    try {
+      TrustManager[] trustManagers = BlacklistingTrustManager.createFor(url.getTrustStore());
+
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(null, trustManagers, null);
+
+      return new OkHttpClient.Builder()
+                             .sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager)trustManagers[0])
+                             .connectionSpecs(url.getConnectionSpecs().or(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
+                             .build();
+    } catch (NoSuchAlgorithmException | KeyManagementException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private OkHttpClient getOrCreate(Map<SignalUrl, OkHttpClient> cache, SignalUrl url) {
+    OkHttpClient client = cache.get(url);
+
+    if (client == null) {
+      client = configureProtocols(createClient(url), url.getUrl().startsWith("http://"));
+      cache.put(url, client);
+    }
+
+    return client;
+  }
+
+  private OkHttpClient configureProtocols(OkHttpClient client, boolean plaintext) {
+    if (!http2) {
+      return client;
+    }
+
+    List<Protocol> protocols = plaintext ? Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE)
+                                         : Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1);
+
+    Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequests(Math.max(client.dispatcher().getMaxRequests(), maxConcurrentStreams));
+    dispatcher.setMaxRequestsPerHost(maxConcurrentStreams);
+
+    return client.newBuilder()
+                 .dispatcher(dispatcher)
+                 .protocols(protocols)
+                 .addInterceptor(new StreamLimiter(maxConcurrentStreams))
+                 .build();
+  }
+}
@@ -30,4 +30,20 @@ public class OutgoingPushMessage {
     this.destinationRegistrationId = destinationRegistrationId;
     this.content                   = content;
   }
+
+  public int getType() {
+    return type;
+  }
+
+  public int getDestinationDeviceId() {
+    return destinationDeviceId;
+  }
+
+  public int getDestinationRegistrationId() {
+    return destinationRegistrationId;
+  }
+
+  public String getContent() {
+    return content;
+  }
 }
@@ -17,6 +17,7 @@ import org.whispersystems.libsignal.state.PreKeyRecord;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.crypto.DigestingOutputStream;
 import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
 import org.whispersystems.signalservice.api.messages.SignalServiceAttachment.ProgressListener;
 import org.whispersystems.signalservice.api.messages.calls.TurnServerInfo;
@@ -27,15 +28,16 @@ import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 import org.whispersystems.signalservice.api.push.SignedPreKeyEntity;
 import org.whispersystems.signalservice.api.push.exceptions.AuthorizationFailedException;
 import org.whispersystems.signalservice.api.push.exceptions.CaptchaRequiredException;
+import org.whispersystems.signalservice.api.push.exceptions.CircuitOpenException;
 import org.whispersystems.signalservice.api.push.exceptions.ExpectationFailedException;
 import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
 import org.whispersystems.signalservice.api.push.exceptions.NotFoundException;
 import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
 import org.whispersystems.signalservice.api.push.exceptions.RateLimitException;
 import org.whispersystems.signalservice.api.push.exceptions.RemoteAttestationResponseExpiredException;
+import org.whispersystems.signalservice.api.push.exceptions.ServerErrorException;
 import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
 import org.whispersystems.signalservice.api.util.CredentialsProvider;
-import org.whispersystems.signalservice.api.util.Tls12SocketFactory;
 import org.whispersystems.signalservice.api.util.UuidUtil;
 import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
 import org.whispersystems.signalservice.internal.configuration.SignalUrl;
@@ -47,24 +49,26 @@ import org.whispersystems.signalservice.internal.push.exceptions.MismatchedDevic
 import org.whispersystems.signalservice.internal.push.exceptions.StaleDevicesException;
 import org.whispersystems.signalservice.internal.push.http.DigestingRequestBody;
 import org.whispersystems.signalservice.internal.push.http.OutputStreamFactory;
-import org.whispersystems.signalservice.internal.util.BlacklistingTrustManager;
 import org.whispersystems.signalservice.internal.util.Hex;
 import org.whispersystems.signalservice.internal.util.JsonUtil;
 import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.internal.util.concurrent.FutureTransformers;
+import org.whispersystems.signalservice.internal.util.concurrent.FutureTransformers.FailureTransformer;
+import org.whispersystems.signalservice.internal.util.concurrent.FutureTransformers.Transformer;
+import org.whispersystems.signalservice.internal.util.concurrent.ListenableFuture;
+import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
 import org.whispersystems.util.Base64;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
-import java.security.KeyManagementException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.SecureRandom;
 import java.util.Collections;
 import java.util.HashSet;
@@ -74,15 +78,12 @@ import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
-
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
+import java.util.concurrent.TimeoutException;
 
 import okhttp3.Call;
-import okhttp3.ConnectionSpec;
+import okhttp3.Callback;
 import okhttp3.Credentials;
 import okhttp3.MediaType;
 import okhttp3.MultipartBody;
@@ -91,6 +92,8 @@ import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
 
 /**
  * @author Moxie Marlinspike
@@ -138,6 +141,17 @@ public class PushServiceSocket {
   private static final String STICKER_MANIFEST_PATH     = "stickers/%s/manifest.proto";
   private static final String STICKER_PATH              = "stickers/%s/full/%d";
 
+  /**
+   * The {@link RetryPolicy} request class of message sends, over a socket or a pipe.
+   */
+  public static final String SEND_MESSAGE_REQUEST_CLASS = RetryPolicy.getRequestClass("PUT", String.format(MESSAGE_PATH, ""));
+
+  private static final int MAX_DOWNLOAD_RETRIES      = 3;
+  private static final int MIN_DOWNLOAD_SEGMENT_SIZE = 1024 * 1024;
+
+  private static final int MAX_UPLOAD_RETRIES          = 3;
+  private static final int RESUMABLE_UPLOAD_CHUNK_SIZE = 1024 * 1024;
+
   private static final Map<String, String> NO_HEADERS = Collections.emptyMap();
   private static final ResponseCodeHandler NO_HANDLER = new EmptyResponseCodeHandler();
 
@@ -147,20 +161,24 @@ public class PushServiceSocket {
   private final ServiceConnectionHolder[]  serviceClients;
   private final ConnectionHolder[]         cdnClients;
   private final ConnectionHolder[]         contactDiscoveryClients;
-  private final OkHttpClient               attachmentClient;
 
-  private final CredentialsProvider credentialsProvider;
-  private final String              userAgent;
-  private final SecureRandom        random;
+  private final CredentialsProvider     credentialsProvider;
+  private final String                  userAgent;
+  private final SecureRandom            random;
+  private final Optional<HedgingPolicy> hedgingPolicy;
+  private final Optional<RetryPolicy>   retryPolicy;
 
   public PushServiceSocket(SignalServiceConfiguration signalServiceConfiguration, CredentialsProvider credentialsProvider, String userAgent) {
-    this.credentialsProvider               = credentialsProvider;
-    this.userAgent                         = userAgent;
-    this.serviceClients                    = createServiceConnectionHolders(signalServiceConfiguration.getSignalServiceUrls());
-    this.cdnClients                        = createConnectionHolders(signalServiceConfiguration.getSignalCdnUrls());
-    this.contactDiscoveryClients           = createConnectionHolders(signalServiceConfiguration.getSignalContactDiscoveryUrls());
-    this.attachmentClient                  = createAttachmentClient();
-    this.random                            = new SecureRandom();
+    OkHttpClientFactory clientFactory = signalServiceConfiguration.getClientFactory();
+
+    this.credentialsProvider     = credentialsProvider;
+    this.userAgent               = userAgent;
+    this.serviceClients          = createServiceConnectionHolders(clientFactory, signalServiceConfiguration.getSignalServiceUrls());
+    this.cdnClients              = createConnectionHolders(clientFactory, signalServiceConfiguration.getSignalCdnUrls());
+    this.contactDiscoveryClients = createConnectionHolders(clientFactory, signalServiceConfiguration.getSignalContactDiscoveryUrls());
+    this.random                  = new SecureRandom();
+    this.hedgingPolicy           = signalServiceConfiguration.getHedgingPolicy();
+    this.retryPolicy             = signalServiceConfiguration.getRetryPolicy();
   }
 
   public void requestSmsVerificationCode(boolean androidSmsRetriever, Optional<String> captchaToken, Optional<String> challenge) throws IOException {
@@ -179,7 +197,7 @@ public class PushServiceSocket {
           throw new CaptchaRequiredException();
         }
       }
-    });
+    }, false);
   }
 
   public void requestVoiceVerificationCode(Locale locale, Optional<String> captchaToken, Optional<String> challenge) throws IOException {
@@ -199,11 +217,11 @@ public class PushServiceSocket {
           throw new CaptchaRequiredException();
         }
       }
-    });
+    }, false);
   }
 
   public UUID getOwnUuid() throws IOException {
-    String         body     = makeServiceRequest(WHO_AM_I, "GET", null);
+    String         body     = makeServiceRequest(WHO_AM_I, "GET", null, true);
     WhoAmIResponse response = JsonUtil.fromJson(body, WhoAmIResponse.class);
     Optional<UUID> uuid     = UuidUtil.parse(response.getUuid());
 
@@ -220,7 +238,7 @@ public class PushServiceSocket {
   {
     AccountAttributes     signalingKeyEntity = new AccountAttributes(signalingKey, registrationId, fetchesMessages, pin, unidentifiedAccessKey, unrestrictedUnidentifiedAccess);
     String                requestBody        = JsonUtil.toJson(signalingKeyEntity);
-    String                responseBody       = makeServiceRequest(String.format(VERIFY_ACCOUNT_CODE_PATH, verificationCode), "PUT", requestBody);
+    String                responseBody       = makeServiceRequest(String.format(VERIFY_ACCOUNT_CODE_PATH, verificationCode), "PUT", requestBody, false);
     VerifyAccountResponse response           = JsonUtil.fromJson(responseBody, VerifyAccountResponse.class);
     Optional<UUID>        uuid               = UuidUtil.parse(response.getUuid());
 
@@ -237,57 +255,57 @@ public class PushServiceSocket {
   {
     AccountAttributes accountAttributes = new AccountAttributes(signalingKey, registrationId, fetchesMessages, pin,
                                                                 unidentifiedAccessKey, unrestrictedUnidentifiedAccess);
-    makeServiceRequest(SET_ACCOUNT_ATTRIBUTES, "PUT", JsonUtil.toJson(accountAttributes));
+    makeServiceRequest(SET_ACCOUNT_ATTRIBUTES, "PUT", JsonUtil.toJson(accountAttributes), false);
   }
 
   public String getNewDeviceVerificationCode() throws IOException {
-    String responseText = makeServiceRequest(PROVISIONING_CODE_PATH, "GET", null);
+    String responseText = makeServiceRequest(PROVISIONING_CODE_PATH, "GET", null, false);
     return JsonUtil.fromJson(responseText, DeviceCode.class).getVerificationCode();
   }
 
   public List<DeviceInfo> getDevices() throws IOException {
-    String responseText = makeServiceRequest(String.format(DEVICE_PATH, ""), "GET", null);
+    String responseText = makeHedgedServiceRequest(String.format(DEVICE_PATH, ""), Optional.<UnidentifiedAccess>absent());
     return JsonUtil.fromJson(responseText, DeviceInfoList.class).getDevices();
   }
 
   public void removeDevice(long deviceId) throws IOException {
-    makeServiceRequest(String.format(DEVICE_PATH, String.valueOf(deviceId)), "DELETE", null);
+    makeServiceRequest(String.format(DEVICE_PATH, String.valueOf(deviceId)), "DELETE", null, false);
   }
 
   public void sendProvisioningMessage(String destination, byte[] body) throws IOException {
     makeServiceRequest(String.format(PROVISIONING_MESSAGE_PATH, destination), "PUT",
-                       JsonUtil.toJson(new ProvisioningMessage(Base64.encodeBytes(body))));
+                       JsonUtil.toJson(new ProvisioningMessage(Base64.encodeBytes(body))), false);
   }
 
   public void registerGcmId(String gcmRegistrationId) throws IOException {
     GcmRegistrationId registration = new GcmRegistrationId(gcmRegistrationId, true);
-    makeServiceRequest(REGISTER_GCM_PATH, "PUT", JsonUtil.toJson(registration));
+    makeServiceRequest(REGISTER_GCM_PATH, "PUT", JsonUtil.toJson(registration), false);
   }
 
   public void unregisterGcmId() throws IOException {
-    makeServiceRequest(REGISTER_GCM_PATH, "DELETE", null);
+    makeServiceRequest(REGISTER_GCM_PATH, "DELETE", null, false);
   }
 
   public void requestPushChallenge(String gcmRegistrationId, String e164number) throws IOException {
-    makeServiceRequest(String.format(Locale.US, REQUEST_PUSH_CHALLENGE, gcmRegistrationId, e164number), "GET", null);
+    makeServiceRequest(String.format(Locale.US, REQUEST_PUSH_CHALLENGE, gcmRegistrationId, e164number), "GET", null, false);
   }
 
   public void setPin(String pin) throws IOException {
     RegistrationLock accountLock = new RegistrationLock(pin);
-    makeServiceRequest(PIN_PATH, "PUT", JsonUtil.toJson(accountLock));
+    makeServiceRequest(PIN_PATH, "PUT", JsonUtil.toJson(accountLock), false);
   }
 
   public void removePin() throws IOException {
-    makeServiceRequest(PIN_PATH, "DELETE", null);
+    makeServiceRequest(PIN_PATH, "DELETE", null, false);
   }
 
   public byte[] getSenderCertificateLegacy() throws IOException {
-    String responseText = makeServiceRequest(SENDER_CERTIFICATE_LEGACY_PATH, "GET", null);
+    String responseText = makeServiceRequest(SENDER_CERTIFICATE_LEGACY_PATH, "GET", null, true);
     return JsonUtil.fromJson(responseText, SenderCertificate.class).getCertificate();
   }
 
   public byte[] getSenderCertificate() throws IOException {
-    String responseText = makeServiceRequest(SENDER_CERTIFICATE_PATH, "GET", null);
+    String responseText = makeServiceRequest(SENDER_CERTIFICATE_PATH, "GET", null, true);
     return JsonUtil.fromJson(responseText, SenderCertificate.class).getCertificate();
   }
 
@@ -295,7 +313,7 @@ public class PushServiceSocket {
       throws IOException
   {
     try {
-      String responseText = makeServiceRequest(String.format(MESSAGE_PATH, bundle.getDestination()), "PUT", JsonUtil.toJson(bundle), NO_HEADERS, unidentifiedAccess);
+      String responseText = makeServiceRequest(String.format(MESSAGE_PATH, bundle.getDestination()), "PUT", JsonUtil.toJson(bundle), NO_HEADERS, unidentifiedAccess, false);
 
       if (responseText == null) return new SendMessageResponse(false);
       else                      return JsonUtil.fromJson(responseText, SendMessageResponse.class);
@@ -304,17 +322,40 @@ public class PushServiceSocket {
     }
   }
 
+  public ListenableFuture<SendMessageResponse> sendMessageAsync(final OutgoingPushMessageList bundle, Optional<UnidentifiedAccess> unidentifiedAccess) {
+    ListenableFuture<String> response = makeServiceRequestAsync(String.format(MESSAGE_PATH, bundle.getDestination()), "PUT", JsonUtil.toJson(bundle), NO_HEADERS, NO_HANDLER, unidentifiedAccess);
+
+    return FutureTransformers.map(asUnregisteredOnNotFound(response, bundle.getDestination()), new Transformer<String, SendMessageResponse>() {
+      @Override
+      public SendMessageResponse transform(String responseText) throws IOException {
+        if (responseText == null) return new SendMessageResponse(false);
+        else                      return JsonUtil.fromJson(responseText, SendMessageResponse.class);
+      }
+    });
+  }
+
   public List<SignalServiceEnvelopeEntity> getMessages() throws IOException {
-    String responseText = makeServiceRequest(String.format(MESSAGE_PATH, ""), "GET", null);
+    String responseText = makeServiceRequest(String.format(MESSAGE_PATH, ""), "GET", null, true);
     return JsonUtil.fromJson(responseText, SignalServiceEnvelopeEntityList.class).getMessages();
   }
 
+  public ListenableFuture<List<SignalServiceEnvelopeEntity>> getMessagesAsync() {
+    ListenableFuture<String> response = makeServiceRequestAsync(String.format(MESSAGE_PATH, ""), "GET", null, NO_HEADERS, NO_HANDLER, Optional.<UnidentifiedAccess>absent());
+
+    return FutureTransformers.map(response, new Transformer<String, List<SignalServiceEnvelopeEntity>>() {
+      @Override
+      public List<SignalServiceEnvelopeEntity> transform(String responseText) throws IOException {
+        return JsonUtil.fromJson(responseText, SignalServiceEnvelopeEntityList.class).getMessages();
+      }
+    });
+  }
+
   public void acknowledgeMessage(String sender, long timestamp) throws IOException {
-    makeServiceRequest(String.format(Locale.US, SENDER_ACK_MESSAGE_PATH, sender, timestamp), "DELETE", null);
+    makeServiceRequest(String.format(Locale.US, SENDER_ACK_MESSAGE_PATH, sender, timestamp), "DELETE", null, false);
   }
 
   public void acknowledgeMessage(String uuid) throws IOException {
-    makeServiceRequest(String.format(UUID_ACK_MESSAGE_PATH, uuid), "DELETE", null);
+    makeServiceRequest(String.format(UUID_ACK_MESSAGE_PATH, uuid), "DELETE", null, false);
   }
 
   public void registerPreKeys(IdentityKey identityKey,
@@ -336,11 +377,11 @@ public class PushServiceSocket {
                                                                    signedPreKey.getSignature());
 
     makeServiceRequest(String.format(PREKEY_PATH, ""), "PUT",
-                       JsonUtil.toJson(new PreKeyState(entities, signedPreKeyEntity, identityKey)));
+                       JsonUtil.toJson(new PreKeyState(entities, signedPreKeyEntity, identityKey)), false);
   }
 
   public int getAvailablePreKeys() throws IOException {
-    String       responseText = makeServiceRequest(PREKEY_METADATA_PATH, "GET", null);
+    String       responseText = makeHedgedServiceRequest(PREKEY_METADATA_PATH, Optional.<UnidentifiedAccess>absent());
     PreKeyStatus preKeyStatus = JsonUtil.fromJson(responseText, PreKeyStatus.class);
 
     return preKeyStatus.getCount();
@@ -352,48 +393,70 @@ public class PushServiceSocket {
       throws IOException
   {
     try {
-      String deviceId = String.valueOf(deviceIdInteger);
-
-      if (deviceId.equals("1"))
-        deviceId = "*";
+      String responseText = makeServiceRequest(getPreKeysPath(destination, deviceIdInteger), "GET", null, NO_HEADERS, unidentifiedAccess, false);
+      return parsePreKeyBundles(responseText);
+    } catch (NotFoundException nfe) {
+      throw new UnregisteredUserException(destination.getIdentifier(), nfe);
+    }
+  }
 
-      String path = String.format(PREKEY_DEVICE_PATH, destination.getIdentifier(), deviceId);
+  public ListenableFuture<List<PreKeyBundle>> getPreKeysAsync(SignalServiceAddress destination,
+                                                              Optional<UnidentifiedAccess> unidentifiedAccess,
+                                                              int deviceIdInteger)
+  {
+    ListenableFuture<String> response = makeServiceRequestAsync(getPreKeysPath(destination, deviceIdInteger), "GET", null, NO_HEADERS, NO_HANDLER, unidentifiedAccess);
 
-      if (destination.getRelay().isPresent()) {
-        path = path + "?relay=" + destination.getRelay().get();
+    return FutureTransformers.map(asUnregisteredOnNotFound(response, destination.getIdentifier()), new Transformer<String, List<PreKeyBundle>>() {
+      @Override
+      public List<PreKeyBundle> transform(String responseText) throws IOException {
+        return parsePreKeyBundles(responseText);
       }
+    });
+  }
 
-      String             responseText = makeServiceRequest(path, "GET", null, NO_HEADERS, unidentifiedAccess);
-      PreKeyResponse     response     = JsonUtil.fromJson(responseText, PreKeyResponse.class);
-      List<PreKeyBundle> bundles      = new LinkedList<>();
+  private String getPreKeysPath(SignalServiceAddress destination, int deviceIdInteger) {
+    String deviceId = String.valueOf(deviceIdInteger);
 
-      for (PreKeyResponseItem device : response.getDevices()) {
-        ECPublicKey preKey                = null;
-        ECPublicKey signedPreKey          = null;
-        byte[]      signedPreKeySignature = null;
-        int         preKeyId              = -1;
-        int         signedPreKeyId        = -1;
+    if (deviceId.equals("1"))
+      deviceId = "*";
 
-        if (device.getSignedPreKey() != null) {
-          signedPreKey          = device.getSignedPreKey().getPublicKey();
-          signedPreKeyId        = device.getSignedPreKey().getKeyId();
-          signedPreKeySignature = device.getSignedPreKey().getSignature();
-        }
+    String path = String.format(PREKEY_DEVICE_PATH, destination.getIdentifier(), deviceId);
 
-        if (device.getPreKey() != null) {
-          preKeyId = device.getPreKey().getKeyId();
-          preKey   = device.getPreKey().getPublicKey();
-        }
+    if (destination.getRelay().isPresent()) {
+      path = path + "?relay=" + destination.getRelay().get();
+    }
+
+    return path;
+  }
+
+  private List<PreKeyBundle> parsePreKeyBundles(String responseText) throws IOException {
+    PreKeyResponse     response = JsonUtil.fromJson(responseText, PreKeyResponse.class);
+    List<PreKeyBundle> bundles  = new LinkedList<>();
+
+    for (PreKeyResponseItem device : response.getDevices()) {
+      ECPublicKey preKey                = null;
+      ECPublicKey signedPreKey          = null;
+      byte[]      signedPreKeySignature = null;
+      int         preKeyId              = -1;
+      int         signedPreKeyId        = -1;
+
+      if (device.getSignedPreKey() != null) {
+        signedPreKey          = device.getSignedPreKey().getPublicKey();
+        signedPreKeyId        = device.getSignedPreKey().getKeyId();
+        signedPreKeySignature = device.getSignedPreKey().getSignature();
+      }
 
-        bundles.add(new PreKeyBundle(device.getRegistrationId(), device.getDeviceId(), preKeyId,
-                                     preKey, signedPreKeyId, signedPreKey, signedPreKeySignature,
-                                     response.getIdentityKey()));
+      if (device.getPreKey() != null) {
+        preKeyId = device.getPreKey().getKeyId();
+        preKey   = device.getPreKey().getPublicKey();
       }
 
-      return bundles;
-    } catch (NotFoundException nfe) {
-      throw new UnregisteredUserException(destination.getIdentifier(), nfe);
+      bundles.add(new PreKeyBundle(device.getRegistrationId(), device.getDeviceId(), preKeyId,
+                                   preKey, signedPreKeyId, signedPreKey, signedPreKeySignature,
+                                   response.getIdentityKey()));
     }
+
+    return bundles;
   }
 
   public PreKeyBundle getPreKey(SignalServiceAddress destination, int deviceId) throws IOException {
@@ -405,7 +468,7 @@ public class PushServiceSocket {
         path = path + "?relay=" + destination.getRelay().get();
       }
 
-      String         responseText = makeServiceRequest(path, "GET", null);
+      String         responseText = makeServiceRequest(path, "GET", null, NO_HEADERS, Optional.<UnidentifiedAccess>absent(), false);
       PreKeyResponse response     = JsonUtil.fromJson(responseText, PreKeyResponse.class);
 
       if (response.getDevices() == null || response.getDevices().size() < 1)
@@ -438,7 +501,7 @@ public class PushServiceSocket {
 
   public SignedPreKeyEntity getCurrentSignedPreKey() throws IOException {
     try {
-      String responseText = makeServiceRequest(SIGNED_PREKEY_PATH, "GET", null);
+      String responseText = makeServiceRequest(SIGNED_PREKEY_PATH, "GET", null, true);
       return JsonUtil.fromJson(responseText, SignedPreKeyEntity.class);
     } catch (NotFoundException e) {
       Log.w(TAG, e);
@@ -450,20 +513,42 @@ public class PushServiceSocket {
     SignedPreKeyEntity signedPreKeyEntity = new SignedPreKeyEntity(signedPreKey.getId(),
                                                                    signedPreKey.getKeyPair().getPublicKey(),
                                                                    signedPreKey.getSignature());
-    makeServiceRequest(SIGNED_PREKEY_PATH, "PUT", JsonUtil.toJson(signedPreKeyEntity));
+    makeServiceRequest(SIGNED_PREKEY_PATH, "PUT", JsonUtil.toJson(signedPreKeyEntity), false);
   }
 
   public void retrieveAttachment(long attachmentId, File destination, int maxSizeBytes, ProgressListener listener)
       throws NonSuccessfulResponseCodeException, PushNetworkException
   {
-    downloadFromCdn(destination, String.format(Locale.US, ATTACHMENT_DOWNLOAD_PATH, attachmentId), maxSizeBytes, listener);
+    retrieveAttachment(attachmentId, destination, maxSizeBytes, listener, false);
+  }
+
+  /**
+   * @param resume Continue from the bytes already in destination, left by an earlier
+   *               interrupted call, rather than starting over.
+   */
+  public void retrieveAttachment(long attachmentId, File destination, int maxSizeBytes, ProgressListener listener, boolean resume)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    downloadFromCdn(destination, String.format(Locale.US, ATTACHMENT_DOWNLOAD_PATH, attachmentId), maxSizeBytes, listener, resume);
+  }
+
+  /**
+   * Downloads an attachment as several byte ranges in parallel. Falls back to a single
+   * stream when the attachment is too small to split or the CDN doesn't serve ranges.
+   *
+   * @param segments The most ranges to fetch at once.
+   */
+  public void retrieveAttachmentSegmented(long attachmentId, File destination, int maxSizeBytes, int segments, ProgressListener listener)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    downloadFromCdnSegmented(destination, String.format(Locale.US, ATTACHMENT_DOWNLOAD_PATH, attachmentId), maxSizeBytes, segments, listener);
   }
 
   public void retrieveSticker(File destination, byte[] packId, int stickerId)
       throws NonSuccessfulResponseCodeException, PushNetworkException
   {
     String hexPackId = Hex.toStringCondensed(packId);
-    downloadFromCdn(destination, String.format(Locale.US, STICKER_PATH, hexPackId, stickerId), 1024 * 1024, null);
+    downloadFromCdn(destination, String.format(Locale.US, STICKER_PATH, hexPackId, stickerId), 1024 * 1024, null, false);
   }
 
   public byte[] retrieveSticker(byte[] packId, int stickerId)
@@ -480,10 +565,25 @@ public class PushServiceSocket {
   public byte[] retrieveStickerManifest(byte[] packId)
       throws NonSuccessfulResponseCodeException, PushNetworkException
   {
-    String                hexPackId = Hex.toStringCondensed(packId);
-    ByteArrayOutputStream output    = new ByteArrayOutputStream();
+    final String          path   = String.format(STICKER_MANIFEST_PATH, Hex.toStringCondensed(packId));
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    if (isHedging(cdnClients)) {
+      Response response = executeHedged(cdnClients, new CallFactory<ConnectionHolder>() {
+        @Override
+        public Call create(ConnectionHolder connectionHolder) {
+          return createCdnCall(connectionHolder, path, "GET", Optional.<String>absent());
+        }
+      });
 
-    downloadFromCdn(output, String.format(STICKER_MANIFEST_PATH, hexPackId), 1024 * 1024, null);
+      try {
+        readCdnResponse(response, output, 1024 * 1024, null);
+      } finally {
+        response.close();
+      }
+    } else {
+      downloadFromCdn(output, path, 1024 * 1024, null);
+    }
 
     return output.toByteArray();
   }
@@ -492,7 +592,7 @@ public class PushServiceSocket {
       throws NonSuccessfulResponseCodeException, PushNetworkException
   {
     try {
-      String response = makeServiceRequest(String.format(PROFILE_PATH, target.getIdentifier()), "GET", null, NO_HEADERS, unidentifiedAccess);
+      String response = makeHedgedServiceRequest(String.format(PROFILE_PATH, target.getIdentifier()), unidentifiedAccess);
       return JsonUtil.fromJson(response, SignalServiceProfile.class);
     } catch (IOException e) {
       Log.w(TAG, e);
@@ -500,20 +600,36 @@ public class PushServiceSocket {
     }
   }
 
+  public ListenableFuture<SignalServiceProfile> retrieveProfileAsync(SignalServiceAddress target, Optional<UnidentifiedAccess> unidentifiedAccess) {
+    ListenableFuture<String> response = makeServiceRequestAsync(String.format(PROFILE_PATH, target.getIdentifier()), "GET", null, NO_HEADERS, NO_HANDLER, unidentifiedAccess);
+
+    return FutureTransformers.map(response, new Transformer<String, SignalServiceProfile>() {
+      @Override
+      public SignalServiceProfile transform(String responseText) throws NonSuccessfulResponseCodeException {
+        try {
+          return JsonUtil.fromJson(responseText, SignalServiceProfile.class);
+        } catch (IOException e) {
+          Log.w(TAG, e);
+          throw new NonSuccessfulResponseCodeException("Unable to parse entity");
+        }
+      }
+    });
+  }
+
   public void retrieveProfileAvatar(String path, File destination, int maxSizeBytes)
     throws NonSuccessfulResponseCodeException, PushNetworkException
   {
-    downloadFromCdn(destination, path, maxSizeBytes, null);
+    downloadFromCdn(destination, path, maxSizeBytes, null, false);
   }
 
   public void setProfileName(String name) throws NonSuccessfulResponseCodeException, PushNetworkException {
-    makeServiceRequest(String.format(PROFILE_PATH, "name/" + (name == null ? "" : URLEncoder.encode(name))), "PUT", "");
+    makeServiceRequest(String.format(PROFILE_PATH, "name/" + (name == null ? "" : URLEncoder.encode(name))), "PUT", "", false);
   }
 
   public void setProfileAvatar(ProfileAvatarData profileAvatar)
       throws NonSuccessfulResponseCodeException, PushNetworkException
   {
-    String                        response       = makeServiceRequest(String.format(PROFILE_PATH, "form/avatar"), "GET", null);
+    String                        response       = makeServiceRequest(String.format(PROFILE_PATH, "form/avatar"), "GET", null, true);
     ProfileAvatarUploadAttributes formAttributes;
 
     try {
@@ -538,7 +654,7 @@ public class PushServiceSocket {
   {
     try {
       ContactTokenList        contactTokenList = new ContactTokenList(new LinkedList<>(contactTokens));
-      String                  response         = makeServiceRequest(DIRECTORY_TOKENS_PATH, "PUT", JsonUtil.toJson(contactTokenList));
+      String                  response         = makeServiceRequest(DIRECTORY_TOKENS_PATH, "PUT", JsonUtil.toJson(contactTokenList), false);
       ContactTokenDetailsList activeTokens     = JsonUtil.fromJson(response, ContactTokenDetailsList.class);
 
       return activeTokens.getContacts();
@@ -550,7 +666,7 @@ public class PushServiceSocket {
 
   public ContactTokenDetails getContactTokenDetails(String contactToken) throws IOException {
     try {
-      String response = makeServiceRequest(String.format(DIRECTORY_VERIFY_PATH, contactToken), "GET", null);
+      String response = makeServiceRequest(String.format(DIRECTORY_VERIFY_PATH, contactToken), "GET", null, true);
       return JsonUtil.fromJson(response, ContactTokenDetails.class);
     } catch (NotFoundException nfe) {
       return null;
@@ -558,7 +674,7 @@ public class PushServiceSocket {
   }
 
   public String getContactDiscoveryAuthorization() throws IOException {
-    String response = makeServiceRequest(DIRECTORY_AUTH_PATH, "GET", null);
+    String response = makeServiceRequest(DIRECTORY_AUTH_PATH, "GET", null, true);
     ContactDiscoveryCredentials token = JsonUtil.fromJson(response, ContactDiscoveryCredentials.class);
     return Credentials.basic(token.getUsername(), token.getPassword());
   }
@@ -595,25 +711,25 @@ public class PushServiceSocket {
   }
 
   public void reportContactDiscoveryServiceMatch() throws IOException {
-    makeServiceRequest(String.format(DIRECTORY_FEEDBACK_PATH, "ok"), "PUT", "");
+    makeServiceRequest(String.format(DIRECTORY_FEEDBACK_PATH, "ok"), "PUT", "", false);
   }
 
   public void reportContactDiscoveryServiceMismatch() throws IOException {
-    makeServiceRequest(String.format(DIRECTORY_FEEDBACK_PATH, "mismatch"), "PUT", "");
+    makeServiceRequest(String.format(DIRECTORY_FEEDBACK_PATH, "mismatch"), "PUT", "", false);
   }
 
   public void reportContactDiscoveryServiceAttestationError(String reason) throws IOException {
     ContactDiscoveryFailureReason failureReason = new ContactDiscoveryFailureReason(reason);
-    makeServiceRequest(String.format(DIRECTORY_FEEDBACK_PATH, "attestation-error"), "PUT", JsonUtil.toJson(failureReason));
+    makeServiceRequest(String.format(DIRECTORY_FEEDBACK_PATH, "attestation-error"), "PUT", JsonUtil.toJson(failureReason), false);
   }
 
   public void reportContactDiscoveryServiceUnexpectedError(String reason) throws IOException {
     ContactDiscoveryFailureReason failureReason = new ContactDiscoveryFailureReason(reason);
-    makeServiceRequest(String.format(DIRECTORY_FEEDBACK_PATH, "unexpected-error"), "PUT", JsonUtil.toJson(failureReason));
+    makeServiceRequest(String.format(DIRECTORY_FEEDBACK_PATH, "unexpected-error"), "PUT", JsonUtil.toJson(failureReason), false);
   }
 
   public TurnServerInfo getTurnServerInfo() throws IOException {
-    String response = makeServiceRequest(TURN_SERVER_INFO, "GET", null);
+    String response = makeServiceRequest(TURN_SERVER_INFO, "GET", null, true);
     return JsonUtil.fromJson(response, TurnServerInfo.class);
   }
 
@@ -632,7 +748,7 @@ public class PushServiceSocket {
   }
 
   public AttachmentUploadAttributes getAttachmentUploadAttributes() throws NonSuccessfulResponseCodeException, PushNetworkException {
-    String response = makeServiceRequest(ATTACHMENT_PATH, "GET", null);
+    String response = makeServiceRequest(ATTACHMENT_PATH, "GET", null, true);
     try {
       return JsonUtil.fromJson(response, AttachmentUploadAttributes.class);
     } catch (IOException e) {
@@ -641,6 +757,17 @@ public class PushServiceSocket {
     }
   }
 
+  public ListenableFuture<AttachmentUploadAttributes> getAttachmentUploadAttributesAsync() {
+    ListenableFuture<String> response = makeServiceRequestAsync(ATTACHMENT_PATH, "GET", null, NO_HEADERS, NO_HANDLER, Optional.<UnidentifiedAccess>absent());
+
+    return FutureTransformers.map(response, new Transformer<String, AttachmentUploadAttributes>() {
+      @Override
+      public AttachmentUploadAttributes transform(String responseText) throws IOException {
+        return JsonUtil.fromJson(responseText, AttachmentUploadAttributes.class);
+      }
+    });
+  }
+
   public Pair<Long, byte[]> uploadAttachment(PushAttachmentData attachment, AttachmentUploadAttributes uploadAttributes)
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
@@ -655,65 +782,47 @@ public class PushServiceSocket {
     return new Pair<>(id, digest);
   }
 
-  private void downloadFromCdn(File destination, String path, int maxSizeBytes, ProgressListener listener)
-      throws PushNetworkException, NonSuccessfulResponseCodeException
-  {
-    try (FileOutputStream outputStream = new FileOutputStream(destination)) {
-      downloadFromCdn(outputStream, path, maxSizeBytes, listener);
-    } catch (IOException e) {
-      throw new PushNetworkException(e);
-    }
-  }
-
-  private void downloadFromCdn(OutputStream outputStream, String path, int maxSizeBytes, ProgressListener listener)
+  /**
+   * Opens a resumable upload session on the CDN.
+   *
+   * @param path The CDN path the upload was authorized for.
+   * @param headers The signed headers authorizing it.
+   * @return The session URL, for a {@link ResumableUploadSpec}.
+   */
+  public String createResumableUpload(String path, Map<String, String> headers)
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
-    ConnectionHolder connectionHolder = getRandom(cdnClients, random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
-
-    Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + "/" + path).get();
+    ConnectionHolder connectionHolder = select(cdnClients);
+    Request.Builder  request          = new Request.Builder().url(connectionHolder.getUrl() + "/" + path)
+                                                             .post(RequestBody.create(null, new byte[0]))
+                                                             .addHeader("x-goog-resumable", "start");
 
     if (connectionHolder.getHostHeader().isPresent()) {
       request.addHeader("Host", connectionHolder.getHostHeader().get());
     }
 
-    Call call = okHttpClient.newCall(request.build());
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      request.addHeader(header.getKey(), header.getValue());
+    }
+
+    Call call = connectionHolder.getClient(soTimeoutMillis).newCall(request.build());
 
     synchronized (connections) {
       connections.add(call);
     }
 
-    Response response;
-
-    try {
-      response = call.execute();
-
-      if (response.isSuccessful()) {
-        ResponseBody body = response.body();
-
-        if (body == null)                        throw new PushNetworkException("No response body!");
-        if (body.contentLength() > maxSizeBytes) throw new PushNetworkException("Response exceeds max size!");
-
-        InputStream  in     = body.byteStream();
-        byte[]       buffer = new byte[32768];
-
-        int read, totalRead = 0;
+    try (Response response = call.execute()) {
+      if (!response.isSuccessful()) {
+        throw new NonSuccessfulResponseCodeException("Response: " + response);
+      }
 
-        while ((read = in.read(buffer, 0, buffer.length)) != -1) {
-          outputStream.write(buffer, 0, read);
-          if ((totalRead += read) > maxSizeBytes) throw new PushNetworkException("Response exceeded max size!");
+      String location = response.header("Location");
 
-          if (listener != null) {
-            listener.onAttachmentProgress(body.contentLength(), totalRead);
-          }
-        }
+      if (location == null) throw new PushNetworkException("No upload location!");
 
-        return;
-      }
+      return response.request().url().resolve(location).toString();
+    } catch (PushNetworkException | NonSuccessfulResponseCodeException e) {
+      throw e;
     } catch (IOException e) {
       throw new PushNetworkException(e);
     } finally {
@@ -721,225 +830,921 @@ public class PushServiceSocket {
         connections.remove(call);
       }
     }
-
-    throw new NonSuccessfulResponseCodeException("Response: " + response);
   }
 
-  private byte[] uploadToCdn(String path, String acl, String key, String policy, String algorithm,
-                             String credential, String date, String signature,
-                             InputStream data, String contentType, long length,
-                             OutputStreamFactory outputStreamFactory, ProgressListener progressListener)
+  /**
+   * Encrypts and uploads an attachment to a resumable CDN session, in chunks.
+   *
+   * Ciphertext the session already holds is regenerated and skipped rather than sent
+   * again, so after a failure, calling this again with the same spec and a fresh copy
+   * of the data picks up where the CDN left off. Dropped chunks are retried within a
+   * call.
+   *
+   * @param spec The session and the key and IV to encrypt with.
+   * @param data The padded plaintext.
+   * @param dataSize The ciphertext length.
+   * @return The attachment digest.
+   */
+  public byte[] uploadResumableAttachment(ResumableUploadSpec spec, InputStream data, long dataSize, ProgressListener listener)
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
-    ConnectionHolder connectionHolder = getRandom(cdnClients, random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
-
-    DigestingRequestBody file = new DigestingRequestBody(data, outputStreamFactory, contentType, length, progressListener);
+    try {
+      ResumableUpload       upload = new ResumableUpload(select(cdnClients).getClient(soTimeoutMillis),
+                                                         spec.getResumeLocation(), dataSize, listener);
+      DigestingOutputStream out    = spec.createOutputStreamFactory().createFor(upload.pending.outputStream());
+      byte[]                buffer = new byte[64 * 1024];
+      int                   read;
 
-    RequestBody requestBody = new MultipartBody.Builder()
-        .setType(MultipartBody.FORM)
-        .addFormDataPart("acl", acl)
-        .addFormDataPart("key", key)
-        .addFormDataPart("policy", policy)
-        .addFormDataPart("Content-Type", contentType)
-        .addFormDataPart("x-amz-algorithm", algorithm)
-        .addFormDataPart("x-amz-credential", credential)
-        .addFormDataPart("x-amz-date", date)
-        .addFormDataPart("x-amz-signature", signature)
-        .addFormDataPart("file", "file", file)
-        .build();
+      upload.start();
 
-    Request.Builder request = new Request.Builder()
-                                         .url(connectionHolder.getUrl() + "/" + path)
-                                         .post(requestBody);
+      while ((read = data.read(buffer, 0, buffer.length)) != -1) {
+        out.write(buffer, 0, read);
+        upload.drain(false);
+      }
 
-    if (connectionHolder.getHostHeader().isPresent()) {
-      request.addHeader("Host", connectionHolder.getHostHeader().get());
-    }
+      out.flush();
+      upload.drain(true);
 
-    Call call = okHttpClient.newCall(request.build());
+      if (upload.committed != dataSize) {
+        throw new PushNetworkException("Upload ended at " + upload.committed + " of " + dataSize + " bytes");
+      }
 
-    synchronized (connections) {
-      connections.add(call);
+      return out.getTransmittedDigest();
+    } catch (PushNetworkException | NonSuccessfulResponseCodeException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
     }
+  }
 
-    try {
-      Response response;
-
-      try {
-        response = call.execute();
-      } catch (IOException e) {
-        throw new PushNetworkException(e);
+  /**
+   * Downloads into a file, picking up where the file leaves off with a ranged request
+   * whenever the connection drops mid-transfer.
+   */
+  private void downloadFromCdn(File destination, final String path, final int maxSizeBytes, final ProgressListener listener, boolean resume)
+      throws PushNetworkException, NonSuccessfulResponseCodeException
+  {
+    try (final RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+      if (!resume) {
+        file.setLength(0);
       }
 
-      if (response.isSuccessful()) return file.getTransmittedDigest();
-      else                         throw new NonSuccessfulResponseCodeException("Response: " + response);
-    } finally {
-      synchronized (connections) {
-        connections.remove(call);
-      }
+      withRetries(cdnClients, RetryPolicy.getRequestClass("GET", path), true, new RetryPolicy.Attempt<Void>() {
+        @Override
+        public Void run() throws NonSuccessfulResponseCodeException, PushNetworkException {
+          resumeDownloadFromCdn(file, path, maxSizeBytes, listener);
+          return null;
+        }
+      });
+    } catch (PushNetworkException | NonSuccessfulResponseCodeException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
     }
   }
 
-  private String makeServiceRequest(String urlFragment, String method, String body)
+  /**
+   * Downloads the rest of the object into file, resuming straight away for as long as
+   * each attempt makes progress.
+   */
+  private void resumeDownloadFromCdn(RandomAccessFile file, String path, int maxSizeBytes, ProgressListener listener)
       throws NonSuccessfulResponseCodeException, PushNetworkException
   {
-    return makeServiceRequest(urlFragment, method, body, NO_HEADERS, NO_HANDLER, Optional.<UnidentifiedAccess>absent());
-  }
+    try {
+      for (int retries = 0;; retries++) {
+        long offset = file.length();
 
-  private String makeServiceRequest(String urlFragment, String method, String body, Map<String, String> headers)
-      throws NonSuccessfulResponseCodeException, PushNetworkException
-  {
-    return makeServiceRequest(urlFragment, method, body, headers, NO_HANDLER, Optional.<UnidentifiedAccess>absent());
+        try {
+          downloadFromCdn(file, path, maxSizeBytes, listener);
+          return;
+        } catch (PushNetworkException | NonSuccessfulResponseCodeException e) {
+          throw e;
+        } catch (IOException e) {
+          if (retries >= MAX_DOWNLOAD_RETRIES || file.length() == offset) throw e;
+          Log.w(TAG, "Download interrupted at " + file.length() + " bytes, resuming", e);
+        }
+      }
+    } catch (PushNetworkException | NonSuccessfulResponseCodeException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    }
   }
 
-  private String makeServiceRequest(String urlFragment, String method, String body, Map<String, String> headers, ResponseCodeHandler responseCodeHandler)
-      throws NonSuccessfulResponseCodeException, PushNetworkException
+  /**
+   * Appends the rest of the object to file, requesting only the bytes it doesn't
+   * already have. Falls back to a full download if the server won't honor the range.
+   *
+   * Transport failures are thrown as plain IOExceptions so the caller can resume.
+   */
+  private void downloadFromCdn(RandomAccessFile file, String path, int maxSizeBytes, ProgressListener listener)
+      throws IOException
   {
-    return makeServiceRequest(urlFragment, method, body, headers, responseCodeHandler, Optional.<UnidentifiedAccess>absent());
-  }
+    long             offset           = file.length();
+    ConnectionHolder connectionHolder = select(cdnClients);
+    Optional<String> range            = offset > 0 ? Optional.of("bytes=" + offset + "-") : Optional.<String>absent();
+    Call             call             = createCdnCall(connectionHolder, path, "GET", range);
 
-  private String makeServiceRequest(String urlFragment, String method, String body, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccessKey)
-      throws NonSuccessfulResponseCodeException, PushNetworkException
-  {
-    return makeServiceRequest(urlFragment, method, body, headers, NO_HANDLER, unidentifiedAccessKey);
-  }
+    try (Response response = call.execute()) {
+      if (offset > 0 && response.code() == 416) {
+        if (getContentRangeLength(response) == offset) return;
 
-  private String makeServiceRequest(String urlFragment, String method, String body, Map<String, String> headers, ResponseCodeHandler responseCodeHandler, Optional<UnidentifiedAccess> unidentifiedAccessKey)
-      throws NonSuccessfulResponseCodeException, PushNetworkException
-  {
-    Response response = getServiceConnection(urlFragment, method, body, headers, unidentifiedAccessKey);
+        file.setLength(0);
+        throw new IOException("Partial download doesn't match the remote object");
+      }
 
-    int    responseCode;
-    String responseMessage;
-    String responseBody;
+      if (response.code() >= 500) {
+        throw new ServerErrorException("Response: " + response);
+      }
 
-    try {
-      responseCode    = response.code();
-      responseMessage = response.message();
-      responseBody    = response.body().string();
-    } catch (IOException ioe) {
-      throw new PushNetworkException(ioe);
-    }
+      if (!response.isSuccessful()) {
+        throw new NonSuccessfulResponseCodeException("Response: " + response);
+      }
 
-    responseCodeHandler.handle(responseCode);
+      ResponseBody body = response.body();
 
-    switch (responseCode) {
-      case 413:
-        throw new RateLimitException("Rate limit exceeded: " + responseCode);
-      case 401:
-      case 403:
-        throw new AuthorizationFailedException("Authorization failed!");
-      case 404:
-        throw new NotFoundException("Not found");
-      case 409:
-        MismatchedDevices mismatchedDevices;
+      if (body == null) throw new PushNetworkException("No response body!");
 
-        try {
-          mismatchedDevices = JsonUtil.fromJson(responseBody, MismatchedDevices.class);
-        } catch (JsonProcessingException e) {
-          Log.w(TAG, e);
-          throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode + " " + responseMessage);
-        } catch (IOException e) {
-          throw new PushNetworkException(e);
-        }
+      if (response.code() != 206) {
+        offset = 0;
+        file.setLength(0);
+      } else if (getContentRangeStart(response) != offset) {
+        file.setLength(0);
+        throw new IOException("Unexpected range: " + response.header("Content-Range"));
+      }
 
-        throw new MismatchedDevicesException(mismatchedDevices);
-      case 410:
-        StaleDevices staleDevices;
+      long contentLength = body.contentLength() == -1 ? -1 : offset + body.contentLength();
 
-        try {
-          staleDevices = JsonUtil.fromJson(responseBody, StaleDevices.class);
-        } catch (JsonProcessingException e) {
-          throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode + " " + responseMessage);
-        } catch (IOException e) {
-          throw new PushNetworkException(e);
-        }
+      if (contentLength > maxSizeBytes) throw new PushNetworkException("Response exceeds max size!");
 
-        throw new StaleDevicesException(staleDevices);
-      case 411:
-        DeviceLimit deviceLimit;
+      InputStream in        = body.byteStream();
+      byte[]      buffer    = new byte[32768];
+      long        totalRead = offset;
+      int         read;
 
-        try {
-          deviceLimit = JsonUtil.fromJson(responseBody, DeviceLimit.class);
-        } catch (JsonProcessingException e) {
-          throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode + " " + responseMessage);
-        } catch (IOException e) {
-          throw new PushNetworkException(e);
-        }
+      file.seek(offset);
 
-        throw new DeviceLimitExceededException(deviceLimit);
-      case 417:
-        throw new ExpectationFailedException();
-      case 423:
-        RegistrationLockFailure accountLockFailure;
+      while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+        file.write(buffer, 0, read);
+        if ((totalRead += read) > maxSizeBytes) throw new PushNetworkException("Response exceeded max size!");
 
-        try {
-          accountLockFailure = JsonUtil.fromJson(responseBody, RegistrationLockFailure.class);
-        } catch (JsonProcessingException e) {
-          Log.w(TAG, e);
-          throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode + " " + responseMessage);
-        } catch (IOException e) {
-          throw new PushNetworkException(e);
+        if (listener != null) {
+          listener.onAttachmentProgress(contentLength, totalRead);
         }
-
-        throw new LockedException(accountLockFailure.length, accountLockFailure.timeRemaining);
+      }
+    } finally {
+      synchronized (connections) {
+        connections.remove(call);
+      }
     }
+  }
 
-    if (responseCode != 200 && responseCode != 204) {
-        throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode + " " +
-                                                     responseMessage);
-    }
+  /**
+   * @return The first byte of a "Content-Range: bytes start-end/length" header, or -1.
+   */
+  private static long getContentRangeStart(Response response) {
+    String contentRange = response.header("Content-Range");
 
-    return responseBody;
-  }
+    if (contentRange == null || !contentRange.startsWith("bytes ")) return -1;
 
-  private Response getServiceConnection(String urlFragment, String method, String body, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccess)
-      throws PushNetworkException
-  {
     try {
-      ServiceConnectionHolder connectionHolder = (ServiceConnectionHolder) getRandom(serviceClients, random);
-      OkHttpClient            baseClient       = unidentifiedAccess.isPresent() ? connectionHolder.getUnidentifiedClient() : connectionHolder.getClient();
-      OkHttpClient            okHttpClient     = baseClient.newBuilder()
-                                                           .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                           .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                           .build();
+      return Long.parseLong(contentRange.substring("bytes ".length(), contentRange.indexOf('-')).trim());
+    } catch (NumberFormatException | IndexOutOfBoundsException e) {
+      return -1;
+    }
+  }
 
-      Log.w(TAG, "Push service URL: " + connectionHolder.getUrl());
-      Log.w(TAG, "Opening URL: " + String.format("%s%s", connectionHolder.getUrl(), urlFragment));
+  /**
+   * @return The complete length from a "Content-Range" header, or -1 if it's missing or unknown.
+   */
+  private static long getContentRangeLength(Response response) {
+    String contentRange = response.header("Content-Range");
 
-      Request.Builder request = new Request.Builder();
-      request.url(String.format("%s%s", connectionHolder.getUrl(), urlFragment));
+    if (contentRange == null || contentRange.indexOf('/') == -1) return -1;
 
-      if (body != null) {
-        request.method(method, RequestBody.create(MediaType.parse("application/json"), body));
-      } else {
-        request.method(method, null);
+    try {
+      return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Splits the object into byte ranges and fetches them concurrently over one CDN
+   * client, writing each at its offset. A segment whose connection drops is resumed
+   * from the last byte it wrote. The length probe and the segment fetches run under
+   * the {@link RetryPolicy} like any other CDN download, and each attempt picks a
+   * healthy endpoint afresh.
+   */
+  private void downloadFromCdnSegmented(File destination, final String path, int maxSizeBytes, int segments, ProgressListener listener)
+      throws PushNetworkException, NonSuccessfulResponseCodeException
+  {
+    long length = withRetries(cdnClients, RetryPolicy.getRequestClass("HEAD", path), true, new RetryPolicy.Attempt<Long>() {
+      @Override
+      public Long run() throws PushNetworkException, ServerErrorException {
+        return getRangedCdnObjectLength(select(cdnClients), path);
+      }
+    });
+
+    if (length > maxSizeBytes) throw new PushNetworkException("Response exceeds max size!");
+
+    int segmentCount = (int)Math.min(segments, length / MIN_DOWNLOAD_SEGMENT_SIZE);
+
+    if (segmentCount < 2) {
+      downloadFromCdn(destination, path, maxSizeBytes, listener, false);
+      return;
+    }
+
+    try (final RandomAccessFile file = new RandomAccessFile(destination, "rw")) {
+      file.setLength(length);
+
+      final DownloadProgress      progress = new DownloadProgress(length, listener);
+      final List<DownloadSegment> all      = new LinkedList<>();
+
+      for (int i = 0; i < segmentCount; i++) {
+        all.add(new DownloadSegment(length * i / segmentCount, length * (i + 1) / segmentCount));
+      }
+
+      withRetries(cdnClients, RetryPolicy.getRequestClass("GET", path), true, new RetryPolicy.Attempt<Void>() {
+        @Override
+        public Void run() throws NonSuccessfulResponseCodeException, PushNetworkException {
+          downloadSegments(select(cdnClients), path, file.getChannel(), all, progress);
+          return null;
+        }
+      });
+    } catch (PushNetworkException | NonSuccessfulResponseCodeException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    }
+  }
+
+  /**
+   * Fetches the unfinished segments concurrently from one endpoint, resuming straight
+   * away for as long as each round makes progress. Segments keep their positions when
+   * this throws, so the next attempt picks up where this one stopped.
+   */
+  private void downloadSegments(ConnectionHolder connectionHolder, String path, FileChannel channel,
+                                List<DownloadSegment> segments, DownloadProgress progress)
+      throws PushNetworkException, NonSuccessfulResponseCodeException
+  {
+    List<DownloadSegment> pending = new LinkedList<>();
+
+    for (DownloadSegment segment : segments) {
+      if (segment.position < segment.end) pending.add(segment);
+    }
+
+    for (int retries = 0; !pending.isEmpty(); retries++) {
+      List<DownloadSegment>        attempted = pending;
+      List<ListenableFuture<Void>> results   = new LinkedList<>();
+      long[]                       started   = new long[attempted.size()];
+
+      pending = new LinkedList<>();
+
+      for (int i = 0; i < attempted.size(); i++) {
+        started[i] = attempted.get(i).position;
+        results.add(downloadSegmentAsync(connectionHolder, path, channel, attempted.get(i), progress));
+      }
+
+      for (int i = 0; i < attempted.size(); i++) {
+        DownloadSegment segment = attempted.get(i);
+
+        try {
+          results.get(i).get();
+        } catch (ExecutionException e) {
+          Throwable cause = e.getCause();
+
+          if (cause instanceof PushNetworkException || cause instanceof NonSuccessfulResponseCodeException ||
+              retries >= MAX_DOWNLOAD_RETRIES || segment.position == started[i])
+          {
+            cancelSegments(attempted, results);
+
+            if (cause instanceof PushNetworkException)               throw (PushNetworkException)cause;
+            if (cause instanceof NonSuccessfulResponseCodeException) throw (NonSuccessfulResponseCodeException)cause;
+
+            throw new PushNetworkException(e);
+          }
+
+          Log.w(TAG, "Segment interrupted at " + segment.position + ", resuming", cause);
+          pending.add(segment);
+        } catch (InterruptedException e) {
+          cancelSegments(attempted, results);
+          throw new PushNetworkException(e);
+        }
+      }
+    }
+  }
+
+  private ListenableFuture<Void> downloadSegmentAsync(ConnectionHolder connectionHolder, String path,
+                                                      final FileChannel channel, final DownloadSegment segment,
+                                                      final DownloadProgress progress)
+  {
+    final SettableFuture<Void> result = new SettableFuture<>();
+
+    segment.call = createCdnCall(connectionHolder, path, "GET", Optional.of("bytes=" + segment.position + "-" + (segment.end - 1)));
+    segment.call.enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        synchronized (connections) {
+          connections.remove(call);
+        }
+
+        result.setException(e);
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) {
+        synchronized (connections) {
+          connections.remove(call);
+        }
+
+        try {
+          if (response.code() >= 500) {
+            throw new ServerErrorException("Response: " + response);
+          }
+
+          if (!response.isSuccessful()) {
+            throw new NonSuccessfulResponseCodeException("Response: " + response);
+          }
+
+          if (response.code() != 206 || getContentRangeStart(response) != segment.position) {
+            throw new PushNetworkException("Unexpected range: " + response.header("Content-Range"));
+          }
+
+          InputStream in      = response.body().byteStream();
+          byte[]      buffer  = new byte[32768];
+          ByteBuffer  wrapped = ByteBuffer.wrap(buffer);
+          int         read;
+
+          while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+            if (segment.position + read > segment.end) throw new PushNetworkException("Segment exceeded its range!");
+
+            wrapped.clear();
+            wrapped.limit(read);
+
+            while (wrapped.hasRemaining()) {
+              segment.position += channel.write(wrapped, segment.position);
+            }
+
+            progress.add(read);
+          }
+
+          if (segment.position != segment.end) {
+            throw new IOException("Segment ended at " + segment.position + ", expected " + segment.end);
+          }
+
+          result.set(null);
+        } catch (IOException | RuntimeException e) {
+          result.setException(e);
+        } finally {
+          response.close();
+        }
+      }
+    });
+
+    return result;
+  }
+
+  /**
+   * Cancels the segments' calls and waits for their callbacks to finish, so that none
+   * is still writing to the file once it's closed.
+   */
+  private static void cancelSegments(List<DownloadSegment> segments, List<ListenableFuture<Void>> results) {
+    boolean interrupted = false;
+
+    for (DownloadSegment segment : segments) {
+      segment.call.cancel();
+    }
+
+    for (ListenableFuture<Void> result : results) {
+      while (true) {
+        try {
+          result.get();
+          break;
+        } catch (ExecutionException e) {
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    }
+
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return The object's length, or -1 if it's unknown or the CDN won't serve byte ranges of it.
+   */
+  private long getRangedCdnObjectLength(ConnectionHolder connectionHolder, String path)
+      throws PushNetworkException, ServerErrorException
+  {
+    Call call = createCdnCall(connectionHolder, path, "HEAD", Optional.<String>absent());
+
+    try (Response response = call.execute()) {
+      if (response.code() >= 500) {
+        throw new ServerErrorException("Response: " + response);
       }
 
-      for (Map.Entry<String, String> header : headers.entrySet()) {
-        request.addHeader(header.getKey(), header.getValue());
-      }
+      if (!response.isSuccessful() || !"bytes".equals(response.header("Accept-Ranges"))) {
+        return -1;
+      }
+
+      return Long.parseLong(response.header("Content-Length", "-1"));
+    } catch (NumberFormatException e) {
+      return -1;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    } finally {
+      synchronized (connections) {
+        connections.remove(call);
+      }
+    }
+  }
+
+  /**
+   * Builds a call against the CDN and registers it so {@link #cancelInFlightRequests()}
+   * can reach it. Whoever runs the call is responsible for deregistering it.
+   */
+  private Call createCdnCall(ConnectionHolder connectionHolder, String path, String method, Optional<String> range) {
+    Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + "/" + path).method(method, null);
+
+    if (connectionHolder.getHostHeader().isPresent()) {
+      request.addHeader("Host", connectionHolder.getHostHeader().get());
+    }
+
+    if (range.isPresent()) {
+      request.addHeader("Range", range.get());
+    }
+
+    Call call = connectionHolder.getClient(soTimeoutMillis).newCall(request.build());
+
+    synchronized (connections) {
+      connections.add(call);
+    }
+
+    return call;
+  }
+
+  private void downloadFromCdn(OutputStream outputStream, final String path, int maxSizeBytes, ProgressListener listener)
+      throws PushNetworkException, NonSuccessfulResponseCodeException
+  {
+    final Call[] call = new Call[1];
+
+    Response response = withRetries(cdnClients, RetryPolicy.getRequestClass("GET", path), true, new RetryPolicy.Attempt<Response>() {
+      @Override
+      public Response run() throws PushNetworkException, ServerErrorException {
+        call[0] = createCdnCall(select(cdnClients), path, "GET", Optional.<String>absent());
+        return executeCall(call[0]);
+      }
+    });
+
+    try {
+      readCdnResponse(response, outputStream, maxSizeBytes, listener);
+    } finally {
+      response.close();
+
+      synchronized (connections) {
+        connections.remove(call[0]);
+      }
+    }
+  }
+
+  private void readCdnResponse(Response response, OutputStream outputStream, int maxSizeBytes, ProgressListener listener)
+      throws PushNetworkException, NonSuccessfulResponseCodeException
+  {
+    if (!response.isSuccessful()) {
+      throw new NonSuccessfulResponseCodeException("Response: " + response);
+    }
+
+    try {
+      ResponseBody body = response.body();
+
+      if (body == null)                        throw new PushNetworkException("No response body!");
+      if (body.contentLength() > maxSizeBytes) throw new PushNetworkException("Response exceeds max size!");
+
+      InputStream  in     = body.byteStream();
+      byte[]       buffer = new byte[32768];
+
+      int read, totalRead = 0;
+
+      while ((read = in.read(buffer, 0, buffer.length)) != -1) {
+        outputStream.write(buffer, 0, read);
+        if ((totalRead += read) > maxSizeBytes) throw new PushNetworkException("Response exceeded max size!");
+
+        if (listener != null) {
+          listener.onAttachmentProgress(body.contentLength(), totalRead);
+        }
+      }
+    } catch (PushNetworkException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new PushNetworkException(e);
+    }
+  }
+
+  private byte[] uploadToCdn(String path, String acl, String key, String policy, String algorithm,
+                             String credential, String date, String signature,
+                             InputStream data, String contentType, long length,
+                             OutputStreamFactory outputStreamFactory, ProgressListener progressListener)
+      throws PushNetworkException, NonSuccessfulResponseCodeException
+  {
+    ConnectionHolder connectionHolder = select(cdnClients);
+    OkHttpClient     okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
+
+    final DigestingRequestBody file = new DigestingRequestBody(data, outputStreamFactory, contentType, length, progressListener);
+
+    RequestBody requestBody = new MultipartBody.Builder()
+        .setType(MultipartBody.FORM)
+        .addFormDataPart("acl", acl)
+        .addFormDataPart("key", key)
+        .addFormDataPart("policy", policy)
+        .addFormDataPart("Content-Type", contentType)
+        .addFormDataPart("x-amz-algorithm", algorithm)
+        .addFormDataPart("x-amz-credential", credential)
+        .addFormDataPart("x-amz-date", date)
+        .addFormDataPart("x-amz-signature", signature)
+        .addFormDataPart("file", "file", file)
+        .build();
+
+    Request.Builder request = new Request.Builder()
+                                         .url(connectionHolder.getUrl() + "/" + path)
+                                         .post(requestBody);
+
+    if (connectionHolder.getHostHeader().isPresent()) {
+      request.addHeader("Host", connectionHolder.getHostHeader().get());
+    }
+
+    Call call = okHttpClient.newCall(request.build());
+
+    synchronized (connections) {
+      connections.add(call);
+    }
+
+    try {
+      final Call uploadCall = call;
+
+      return withRetries(cdnClients, RetryPolicy.getRequestClass("POST", path), false, new RetryPolicy.Attempt<byte[]>() {
+        @Override
+        public byte[] run() throws NonSuccessfulResponseCodeException, PushNetworkException {
+          Response response = executeCall(uploadCall);
+
+          if (response.isSuccessful()) return file.getTransmittedDigest();
+          else                         throw new NonSuccessfulResponseCodeException("Response: " + response);
+        }
+      });
+    } finally {
+      synchronized (connections) {
+        connections.remove(call);
+      }
+    }
+  }
+
+  private String makeServiceRequest(String urlFragment, String method, String body, boolean idempotent)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    return makeServiceRequest(urlFragment, method, body, NO_HEADERS, NO_HANDLER, Optional.<UnidentifiedAccess>absent(), idempotent);
+  }
+
+  private String makeServiceRequest(String urlFragment, String method, String body, Map<String, String> headers, ResponseCodeHandler responseCodeHandler, boolean idempotent)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    return makeServiceRequest(urlFragment, method, body, headers, responseCodeHandler, Optional.<UnidentifiedAccess>absent(), idempotent);
+  }
+
+  private String makeServiceRequest(String urlFragment, String method, String body, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccessKey, boolean idempotent)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    return makeServiceRequest(urlFragment, method, body, headers, NO_HANDLER, unidentifiedAccessKey, idempotent);
+  }
+
+  /**
+   * @param idempotent Whether the request can safely be sent again after a failure whose
+   *                   outcome is unknown. Only reads should be: anything that changes
+   *                   state, sends a message or an SMS, or hands out a code isn't. Nor
+   *                   is a prekey bundle fetch, which uses up a one-time prekey.
+   */
+  private String makeServiceRequest(final String urlFragment, final String method, final String body, final Map<String, String> headers, final ResponseCodeHandler responseCodeHandler, final Optional<UnidentifiedAccess> unidentifiedAccessKey, boolean idempotent)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    return withRetries(serviceClients, RetryPolicy.getRequestClass(method, urlFragment), idempotent, new RetryPolicy.Attempt<String>() {
+      @Override
+      public String run() throws NonSuccessfulResponseCodeException, PushNetworkException {
+        Response response = getServiceConnection(urlFragment, method, body, headers, unidentifiedAccessKey);
+        return readServiceResponse(response, responseCodeHandler);
+      }
+    });
+  }
+
+  /**
+   * Runs a request under the configured {@link RetryPolicy}, refusing each attempt with a
+   * {@link CircuitOpenException} while none of the given endpoints is available. Without a
+   * policy the request just runs once.
+   *
+   * @param requestClass The request's class for rate limit cool-downs, see
+   *                     {@link RetryPolicy#getRequestClass(String, String)}.
+   * @param retryable Whether the request may be repeated. Requests that aren't idempotent
+   *                  and uploads from streams are only subject to the policy's rate limit
+   *                  cool-downs.
+   */
+  private <T> T withRetries(final ConnectionHolder[] connections, String requestClass, boolean retryable, final RetryPolicy.Attempt<T> attempt)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    if (!retryPolicy.isPresent()) {
+      return attempt.run();
+    }
+
+    RetryPolicy.Attempt<T> guarded = new RetryPolicy.Attempt<T>() {
+      @Override
+      public T run() throws NonSuccessfulResponseCodeException, PushNetworkException {
+        checkCircuit(connections);
+        return attempt.run();
+      }
+    };
+
+    if (retryable) return retryPolicy.get().execute(requestClass, guarded);
+    else           return retryPolicy.get().executeOnce(requestClass, guarded);
+  }
+
+  private void checkCircuit(ConnectionHolder[] connections) throws CircuitOpenException {
+    long now = System.nanoTime();
+
+    for (ConnectionHolder connection : connections) {
+      if (connection.getHealth().isAvailable(now)) {
+        return;
+      }
+    }
+
+    throw new CircuitOpenException("No available endpoint among " + connections.length);
+  }
+
+  /**
+   * Executes a call, treating 5xx responses as {@link ServerErrorException}s. The call
+   * stays in {@link #connections} unless it fails.
+   */
+  private Response executeCall(Call call) throws PushNetworkException, ServerErrorException {
+    Response response;
+
+    try {
+      response = call.execute();
+    } catch (IOException e) {
+      synchronized (connections) {
+        connections.remove(call);
+      }
+
+      throw new PushNetworkException(e);
+    }
+
+    if (response.code() >= 500) {
+      response.close();
+
+      synchronized (connections) {
+        connections.remove(call);
+      }
+
+      throw new ServerErrorException("Response: " + response);
+    }
+
+    return response;
+  }
+
+  /**
+   * A GET through makeServiceRequest(), hedged across service URLs if a {@link HedgingPolicy}
+   * is configured. Only for reads without side effects: a prekey fetch, for one, hands
+   * out one of the recipient's one-time prekeys, so a hedge would use up a second.
+   */
+  private String makeHedgedServiceRequest(final String urlFragment, final Optional<UnidentifiedAccess> unidentifiedAccessKey)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    if (!isHedging(serviceClients)) {
+      return makeServiceRequest(urlFragment, "GET", null, NO_HEADERS, NO_HANDLER, unidentifiedAccessKey, true);
+    }
+
+    return withRetries(serviceClients, RetryPolicy.getRequestClass("GET", urlFragment), true, new RetryPolicy.Attempt<String>() {
+      @Override
+      public String run() throws NonSuccessfulResponseCodeException, PushNetworkException {
+        Response response = executeHedged(serviceClients, new CallFactory<ServiceConnectionHolder>() {
+          @Override
+          public Call create(ServiceConnectionHolder connectionHolder) {
+            return createServiceCall(connectionHolder, urlFragment, "GET", null, NO_HEADERS, unidentifiedAccessKey);
+          }
+        });
+
+        return readServiceResponse(response, NO_HANDLER);
+      }
+    });
+  }
+
+  private boolean isHedging(ConnectionHolder[] connections) {
+    return hedgingPolicy.isPresent() && connections.length > 1;
+  }
+
+  /**
+   * Sends a read to one endpoint and, if it hasn't answered within the hedging delay (or
+   * has already failed) and that endpoint's budget allows, to a second. The first
+   * successful or definitive response wins, and the other call is cancelled. Failures,
+   * including server errors, only fail the read once no call is left that could still
+   * answer.
+   */
+  private <T extends ConnectionHolder> Response executeHedged(T[] connections, CallFactory<T> callFactory)
+      throws PushNetworkException
+  {
+    HedgingPolicy policy  = hedgingPolicy.get();
+    T             primary = select(connections);
+    HedgedCall    hedged  = new HedgedCall();
+
+    primary.getHealth().depositHedgeBudget(policy.getBudgetRatio(), policy.getMaxBurst());
+    hedged.start(callFactory.create(primary));
+
+    try {
+      try {
+        return hedged.awaitHedge(getHedgeDelayMillis(policy, primary.getHealth()));
+      } catch (TimeoutException e) {
+        Optional<T> secondary = selectOther(connections, primary);
+
+        if (secondary.isPresent() && primary.getHealth().withdrawHedgeBudget()) {
+          Log.w(TAG, "Hedging request to " + primary.getUrl() + " with " + secondary.get().getUrl());
+          hedged.startHedge(callFactory.create(secondary.get()));
+        } else {
+          hedged.skipHedge();
+        }
+
+        return hedged.get();
+      }
+    } finally {
+      hedged.cancelLosers();
+    }
+  }
+
+  private static long getHedgeDelayMillis(HedgingPolicy policy, EndpointHealth health) {
+    long percentile = health.getLatencyPercentileNanos(policy.getPercentile());
+
+    if (percentile < 0) return policy.getMaxDelayMillis();
+    else                return Math.max(policy.getMinDelayMillis(), Math.min(policy.getMaxDelayMillis(), TimeUnit.NANOSECONDS.toMillis(percentile)));
+  }
+
+  /**
+   * Asynchronous equivalent of makeServiceRequest(). The request is enqueued on the
+   * OkHttp dispatcher rather than executed on the calling thread, and the returned
+   * future fails with the same exceptions the blocking call would have thrown.
+   */
+  private ListenableFuture<String> makeServiceRequestAsync(String urlFragment, String method, String body, Map<String, String> headers, final ResponseCodeHandler responseCodeHandler, Optional<UnidentifiedAccess> unidentifiedAccessKey) {
+    final SettableFuture<String> result       = new SettableFuture<>();
+    final String                 requestClass = RetryPolicy.getRequestClass(method, urlFragment);
+
+    if (retryPolicy.isPresent()) {
+      try {
+        retryPolicy.get().checkRateLimit(requestClass);
+      } catch (RateLimitException e) {
+        result.setException(e);
+        return result;
+      }
+    }
+
+    final Call call = createServiceCall(urlFragment, method, body, headers, unidentifiedAccessKey);
+
+    synchronized (connections) {
+      connections.add(call);
+    }
+
+    call.enqueue(new Callback() {
+      @Override
+      public void onFailure(Call call, IOException e) {
+        synchronized (connections) {
+          connections.remove(call);
+        }
+
+        result.setException(new PushNetworkException(e));
+      }
+
+      @Override
+      public void onResponse(Call call, Response response) {
+        synchronized (connections) {
+          connections.remove(call);
+        }
+
+        try {
+          result.set(readServiceResponse(response, responseCodeHandler));
+        } catch (IOException e) {
+          if (e instanceof RateLimitException && retryPolicy.isPresent()) {
+            retryPolicy.get().onRateLimited(requestClass);
+          }
+
+          result.setException(e);
+        }
+      }
+    });
+
+    return result;
+  }
+
+  private ListenableFuture<String> asUnregisteredOnNotFound(ListenableFuture<String> response, final String identifier) {
+    return FutureTransformers.mapFailure(response, new FailureTransformer() {
+      @Override
+      public Throwable transform(Throwable failure) {
+        if (failure instanceof NotFoundException) return new UnregisteredUserException(identifier, (NotFoundException) failure);
+        else                                      return failure;
+      }
+    });
+  }
+
+  private String readServiceResponse(Response response, ResponseCodeHandler responseCodeHandler)
+      throws NonSuccessfulResponseCodeException, PushNetworkException
+  {
+    int    responseCode;
+    String responseMessage;
+    String responseBody;
+
+    try {
+      responseCode    = response.code();
+      responseMessage = response.message();
+      responseBody    = response.body().string();
+    } catch (IOException ioe) {
+      throw new PushNetworkException(ioe);
+    }
+
+    responseCodeHandler.handle(responseCode);
+
+    switch (responseCode) {
+      case 413:
+        throw new RateLimitException("Rate limit exceeded: " + responseCode);
+      case 401:
+      case 403:
+        throw new AuthorizationFailedException("Authorization failed!");
+      case 404:
+        throw new NotFoundException("Not found");
+      case 409:
+        MismatchedDevices mismatchedDevices;
+
+        try {
+          mismatchedDevices = JsonUtil.fromJson(responseBody, MismatchedDevices.class);
+        } catch (JsonProcessingException e) {
+          Log.w(TAG, e);
+          throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode + " " + responseMessage);
+        } catch (IOException e) {
+          throw new PushNetworkException(e);
+        }
+
+        throw new MismatchedDevicesException(mismatchedDevices);
+      case 410:
+        StaleDevices staleDevices;
+
+        try {
+          staleDevices = JsonUtil.fromJson(responseBody, StaleDevices.class);
+        } catch (JsonProcessingException e) {
+          throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode + " " + responseMessage);
+        } catch (IOException e) {
+          throw new PushNetworkException(e);
+        }
+
+        throw new StaleDevicesException(staleDevices);
+      case 411:
+        DeviceLimit deviceLimit;
+
+        try {
+          deviceLimit = JsonUtil.fromJson(responseBody, DeviceLimit.class);
+        } catch (JsonProcessingException e) {
+          throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode + " " + responseMessage);
+        } catch (IOException e) {
+          throw new PushNetworkException(e);
+        }
+
+        throw new DeviceLimitExceededException(deviceLimit);
+      case 417:
+        throw new ExpectationFailedException();
+      case 423:
+        RegistrationLockFailure accountLockFailure;
 
-      if (unidentifiedAccess.isPresent()) {
-        request.addHeader("Unidentified-Access-Key", Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
-      } else if (credentialsProvider.getPassword() != null) {
-        request.addHeader("Authorization", getAuthorizationHeader(credentialsProvider));
-      }
+        try {
+          accountLockFailure = JsonUtil.fromJson(responseBody, RegistrationLockFailure.class);
+        } catch (JsonProcessingException e) {
+          Log.w(TAG, e);
+          throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode + " " + responseMessage);
+        } catch (IOException e) {
+          throw new PushNetworkException(e);
+        }
 
-      if (userAgent != null) {
-        request.addHeader("X-Signal-Agent", userAgent);
-      }
+        throw new LockedException(accountLockFailure.length, accountLockFailure.timeRemaining);
+    }
 
-      if (connectionHolder.getHostHeader().isPresent()) {
-        request.addHeader("Host", connectionHolder.getHostHeader().get());
-      }
+    if (responseCode >= 500) {
+      throw new ServerErrorException("Bad response: " + responseCode + " " + responseMessage);
+    }
+
+    if (responseCode != 200 && responseCode != 204) {
+        throw new NonSuccessfulResponseCodeException("Bad response: " + responseCode + " " +
+                                                     responseMessage);
+    }
+
+    return responseBody;
+  }
 
-      Call call = okHttpClient.newCall(request.build());
+  private Response getServiceConnection(String urlFragment, String method, String body, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccess)
+      throws PushNetworkException
+  {
+    try {
+      Call call = createServiceCall(urlFragment, method, body, headers, unidentifiedAccess);
 
       synchronized (connections) {
         connections.add(call);
@@ -957,15 +1762,52 @@ public class PushServiceSocket {
     }
   }
 
+  private Call createServiceCall(String urlFragment, String method, String body, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccess) {
+    return createServiceCall(select(serviceClients), urlFragment, method, body, headers, unidentifiedAccess);
+  }
+
+  private Call createServiceCall(ServiceConnectionHolder connectionHolder, String urlFragment, String method, String body, Map<String, String> headers, Optional<UnidentifiedAccess> unidentifiedAccess) {
+    OkHttpClient            okHttpClient     = unidentifiedAccess.isPresent() ? connectionHolder.getUnidentifiedClient(soTimeoutMillis)
+                                                                             : connectionHolder.getClient(soTimeoutMillis);
+
+    Log.w(TAG, "Push service URL: " + connectionHolder.getUrl());
+    Log.w(TAG, "Opening URL: " + String.format("%s%s", connectionHolder.getUrl(), urlFragment));
+
+    Request.Builder request = new Request.Builder();
+    request.url(String.format("%s%s", connectionHolder.getUrl(), urlFragment));
+
+    if (body != null) {
+      request.method(method, RequestBody.create(MediaType.parse("application/json"), body));
+    } else {
+      request.method(method, null);
+    }
+
+    for (Map.Entry<String, String> header : headers.entrySet()) {
+      request.addHeader(header.getKey(), header.getValue());
+    }
+
+    if (unidentifiedAccess.isPresent()) {
+      request.addHeader("Unidentified-Access-Key", Base64.encodeBytes(unidentifiedAccess.get().getUnidentifiedAccessKey()));
+    } else if (credentialsProvider.getPassword() != null) {
+      request.addHeader("Authorization", getAuthorizationHeader(credentialsProvider));
+    }
+
+    if (userAgent != null) {
+      request.addHeader("X-Signal-Agent", userAgent);
+    }
+
+    if (connectionHolder.getHostHeader().isPresent()) {
+      request.addHeader("Host", connectionHolder.getHostHeader().get());
+    }
+
+    return okHttpClient.newCall(request.build());
+  }
+
   private Response makeContactDiscoveryRequest(String authorization, List<String> cookies, String path, String method, String body)
       throws PushNetworkException, NonSuccessfulResponseCodeException
   {
-    ConnectionHolder connectionHolder = getRandom(contactDiscoveryClients, random);
-    OkHttpClient     okHttpClient     = connectionHolder.getClient()
-                                                        .newBuilder()
-                                                        .connectTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .readTimeout(soTimeoutMillis, TimeUnit.MILLISECONDS)
-                                                        .build();
+    ConnectionHolder connectionHolder = select(contactDiscoveryClients);
+    OkHttpClient     okHttpClient     = connectionHolder.getClient(soTimeoutMillis);
 
     Request.Builder request = new Request.Builder().url(connectionHolder.getUrl() + path);
 
@@ -1022,73 +1864,93 @@ public class PushServiceSocket {
     throw new NonSuccessfulResponseCodeException("Response: " + response);
   }
 
-  private ServiceConnectionHolder[] createServiceConnectionHolders(SignalUrl[] urls) {
+  private ServiceConnectionHolder[] createServiceConnectionHolders(OkHttpClientFactory clientFactory, SignalUrl[] urls) {
     List<ServiceConnectionHolder> serviceConnectionHolders = new LinkedList<>();
 
     for (SignalUrl url : urls) {
-      serviceConnectionHolders.add(new ServiceConnectionHolder(createConnectionClient(url),
-                                                               createConnectionClient(url),
+      serviceConnectionHolders.add(new ServiceConnectionHolder(clientFactory.getClient(url),
+                                                               clientFactory.getUnidentifiedClient(url),
                                                                url.getUrl(), url.getHostHeader()));
     }
 
     return serviceConnectionHolders.toArray(new ServiceConnectionHolder[0]);
   }
 
-  private ConnectionHolder[] createConnectionHolders(SignalUrl[] urls) {
+  private ConnectionHolder[] createConnectionHolders(OkHttpClientFactory clientFactory, SignalUrl[] urls) {
     List<ConnectionHolder> connectionHolders = new LinkedList<>();
 
     for (SignalUrl url : urls) {
-      connectionHolders.add(new ConnectionHolder(createConnectionClient(url), url.getUrl(), url.getHostHeader()));
+      connectionHolders.add(new ConnectionHolder(clientFactory.getClient(url), url.getUrl(), url.getHostHeader()));
     }
 
     return connectionHolders.toArray(new ConnectionHolder[0]);
   }
 
-  private OkHttpClient createConnectionClient(SignalUrl url) {
+  private String getAuthorizationHeader(CredentialsProvider credentialsProvider) {
     try {
-      TrustManager[] trustManagers = BlacklistingTrustManager.createFor(url.getTrustStore());
-
-      SSLContext context = SSLContext.getInstance("TLS");
-      context.init(null, trustManagers, null);
-
-      return new OkHttpClient.Builder()
-                             .sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()), (X509TrustManager)trustManagers[0])
-                             .connectionSpecs(url.getConnectionSpecs().or(Util.immutableList(ConnectionSpec.RESTRICTED_TLS)))
-                             .build();
-    } catch (NoSuchAlgorithmException | KeyManagementException e) {
+      String identifier = credentialsProvider.getUuid() != null ? credentialsProvider.getUuid().toString() : credentialsProvider.getE164();
+      return "Basic " + Base64.encodeBytes((identifier + ":" + credentialsProvider.getPassword()).getBytes("UTF-8"));
+    } catch (UnsupportedEncodingException e) {
       throw new AssertionError(e);
     }
   }
 
-  private OkHttpClient createAttachmentClient() {
-    try {
-      SSLContext context = SSLContext.getInstance("TLS");
-      context.init(null, null, null);
-
-      TrustManagerFactory trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-      trustManagerFactory.init((KeyStore)null);
-
-      return new OkHttpClient.Builder()
-                             .sslSocketFactory(new Tls12SocketFactory(context.getSocketFactory()),
-                                               (X509TrustManager)trustManagerFactory.getTrustManagers()[0])
-                             .connectionSpecs(Util.immutableList(ConnectionSpec.RESTRICTED_TLS))
-                             .build();
-    } catch (NoSuchAlgorithmException | KeyManagementException | KeyStoreException e) {
-      throw new AssertionError(e);
+  /**
+   * Picks an endpoint by comparing two at random and taking the healthier, cheaper one
+   * (see {@link EndpointHealth}). If both are ejected, any endpoint that isn't is used,
+   * and failing that the one whose ejection ends soonest.
+   */
+  private <T extends ConnectionHolder> T select(T[] connections) {
+    if (connections.length == 1) {
+      return connections[0];
     }
-  }
 
-  private String getAuthorizationHeader(CredentialsProvider credentialsProvider) {
-    try {
-      String identifier = credentialsProvider.getUuid() != null ? credentialsProvider.getUuid().toString() : credentialsProvider.getE164();
-      return "Basic " + Base64.encodeBytes((identifier + ":" + credentialsProvider.getPassword()).getBytes("UTF-8"));
-    } catch (UnsupportedEncodingException e) {
-      throw new AssertionError(e);
+    long now    = System.nanoTime();
+    int  first  = random.nextInt(connections.length);
+    int  second = random.nextInt(connections.length - 1);
+
+    if (second >= first) second++;
+
+    T candidate = connections[first];
+    T other     = connections[second];
+
+    if (candidate.getHealth().isAvailable(now) || other.getHealth().isAvailable(now)) {
+      return EndpointHealth.isBetter(candidate.getHealth(), other.getHealth(), now) ? candidate : other;
+    }
+
+    T soonest = candidate;
+
+    for (T connection : connections) {
+      if (connection.getHealth().isAvailable(now)) {
+        return connection;
+      }
+
+      if (connection.getHealth().getEjectedUntil() < soonest.getHealth().getEjectedUntil()) {
+        soonest = connection;
+      }
     }
+
+    return soonest;
   }
 
-  private ConnectionHolder getRandom(ConnectionHolder[] connections, SecureRandom random) {
-    return connections[random.nextInt(connections.length)];
+  /**
+   * @return The healthiest available endpoint other than the one given, if there is one.
+   */
+  private <T extends ConnectionHolder> Optional<T> selectOther(T[] connections, T excluded) {
+    long now  = System.nanoTime();
+    T    best = null;
+
+    for (T connection : connections) {
+      if (connection == excluded || !connection.getHealth().isAvailable(now)) {
+        continue;
+      }
+
+      if (best == null || EndpointHealth.isBetter(connection.getHealth(), best.getHealth(), now)) {
+        best = connection;
+      }
+    }
+
+    return Optional.fromNullable(best);
   }
 
   private static class GcmRegistrationId {
@@ -1143,22 +2005,258 @@ public class PushServiceSocket {
   }
 
 
+  private static OkHttpClient withTimeout(OkHttpClient client, OkHttpClient cached, long timeoutMillis) {
+    if (cached != null && cached.connectTimeoutMillis() == timeoutMillis && cached.readTimeoutMillis() == timeoutMillis) {
+      return cached;
+    }
+
+    return client.newBuilder()
+                 .connectTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                 .readTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                 .build();
+  }
+
+  /**
+   * Tracks a resumable upload session as ciphertext is produced into {@link #pending}.
+   * Transport failures are thrown as plain IOExceptions.
+   */
+  private class ResumableUpload {
+
+    private final OkHttpClient     client;
+    private final String           location;
+    private final long             length;
+    private final ProgressListener listener;
+    private final Buffer           pending = new Buffer();
+
+    /** Ciphertext offset of the first byte in pending. */
+    private long position;
+
+    /** Ciphertext bytes the CDN has stored. */
+    private long committed;
+
+    private int failures;
+
+    private ResumableUpload(OkHttpClient client, String location, long length, ProgressListener listener) {
+      this.client   = client;
+      this.location = location;
+      this.length   = length;
+      this.listener = listener;
+    }
+
+    void start() throws IOException {
+      committed = queryCommitted();
+    }
+
+    /**
+     * Discards pending ciphertext the CDN already has, then sends the rest in full
+     * chunks, or all of it once the ciphertext is complete.
+     */
+    void drain(boolean finished) throws IOException {
+      while (true) {
+        if (committed > position) {
+          long skip = Math.min(committed - position, pending.size());
+
+          pending.skip(skip);
+          position += skip;
+        }
+
+        if (pending.size() == 0 || (!finished && pending.size() < RESUMABLE_UPLOAD_CHUNK_SIZE)) {
+          return;
+        }
+
+        long chunk = finished ? pending.size() : RESUMABLE_UPLOAD_CHUNK_SIZE;
+        long acknowledged;
+
+        try {
+          acknowledged = putChunk(chunk);
+          failures     = 0;
+        } catch (PushNetworkException | NonSuccessfulResponseCodeException e) {
+          throw e;
+        } catch (IOException e) {
+          Log.w(TAG, "Upload interrupted at " + position + " bytes, resuming", e);
+          acknowledged = resume(e);
+        }
+
+        if (acknowledged < position) {
+          throw new PushNetworkException("CDN dropped committed bytes!");
+        }
+
+        committed = acknowledged;
+
+        if (listener != null) {
+          listener.onAttachmentProgress(length, committed);
+        }
+      }
+    }
+
+    /**
+     * Asks the CDN how much it has stored after a transport failure, backing off before
+     * each attempt. Transport failures of the query itself count against the same
+     * retries as failed chunks.
+     */
+    private long resume(IOException failure) throws IOException {
+      while (true) {
+        if (++failures > MAX_UPLOAD_RETRIES) throw failure;
+
+        if (retryPolicy.isPresent()) {
+          retryPolicy.get().backoff(failures - 1);
+        }
+
+        try {
+          return queryCommitted();
+        } catch (PushNetworkException | NonSuccessfulResponseCodeException e) {
+          throw e;
+        } catch (IOException e) {
+          Log.w(TAG, "Upload status query failed", e);
+          failure = e;
+        }
+      }
+    }
+
+    private long putChunk(final long chunk) throws IOException {
+      RequestBody body = new RequestBody() {
+        @Override
+        public MediaType contentType() {
+          return MediaType.parse("application/octet-stream");
+        }
+
+        @Override
+        public long contentLength() {
+          return chunk;
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+          pending.copyTo(sink.buffer(), 0, chunk);
+          sink.emitCompleteSegments();
+        }
+      };
+
+      return execute(new Request.Builder().url(location)
+                                          .put(body)
+                                          .addHeader("Content-Range", "bytes " + position + "-" + (position + chunk - 1) + "/" + length)
+                                          .build());
+    }
+
+    private long queryCommitted() throws IOException {
+      return execute(new Request.Builder().url(location)
+                                          .put(RequestBody.create(null, new byte[0]))
+                                          .addHeader("Content-Range", "bytes */" + length)
+                                          .build());
+    }
+
+    /**
+     * @return How many bytes the CDN reports having stored after the request.
+     */
+    private long execute(Request request) throws IOException {
+      Call call = client.newCall(request);
+
+      synchronized (connections) {
+        connections.add(call);
+      }
+
+      try (Response response = call.execute()) {
+        if (response.code() == 200 || response.code() == 201) {
+          return length;
+        }
+
+        if (response.code() != 308) {
+          throw new NonSuccessfulResponseCodeException("Response: " + response);
+        }
+
+        String range = response.header("Range");
+
+        if (range == null) {
+          return 0;
+        }
+
+        try {
+          return Long.parseLong(range.substring(range.indexOf('-') + 1).trim()) + 1;
+        } catch (NumberFormatException e) {
+          throw new PushNetworkException("Bad range: " + range);
+        }
+      } finally {
+        synchronized (connections) {
+          connections.remove(call);
+        }
+      }
+    }
+  }
+
+  private static class DownloadSegment {
+
+    private final long end;
+
+    private volatile long position;
+    private volatile Call call;
+
+    private DownloadSegment(long start, long end) {
+      this.position = start;
+      this.end      = end;
+    }
+  }
+
+  private static class DownloadProgress {
+
+    private final long             total;
+    private final ProgressListener listener;
+
+    private long progress;
+
+    private DownloadProgress(long total, ProgressListener listener) {
+      this.total    = total;
+      this.listener = listener;
+    }
+
+    synchronized void add(long read) {
+      progress += read;
+
+      if (listener != null) {
+        listener.onAttachmentProgress(total, progress);
+      }
+    }
+  }
+
   private static class ConnectionHolder {
 
+    private final EndpointHealth   health;
     private final OkHttpClient     client;
     private final String           url;
     private final Optional<String> hostHeader;
 
+    private volatile OkHttpClient timedClient;
+
     private ConnectionHolder(OkHttpClient client, String url, Optional<String> hostHeader) {
-      this.client     = client;
+      this.health     = new EndpointHealth(url);
+      this.client     = withHealth(client);
       this.url        = url;
       this.hostHeader = hostHeader;
     }
 
+    /**
+     * @return A client sharing the given one's connection pool and dispatcher, whose
+     *         requests are recorded against this endpoint's health.
+     */
+    OkHttpClient withHealth(OkHttpClient client) {
+      return client.newBuilder().addInterceptor(health).build();
+    }
+
+    EndpointHealth getHealth() {
+      return health;
+    }
+
     OkHttpClient getClient() {
       return client;
     }
 
+    /**
+     * @return A client sharing this holder's connection pool and dispatcher, with
+     *         connect and read timeouts applied. Rebuilt only when the timeout changes.
+     */
+    OkHttpClient getClient(long timeoutMillis) {
+      return timedClient = withTimeout(client, timedClient, timeoutMillis);
+    }
+
     public String getUrl() {
       return url;
     }
@@ -1172,14 +2270,195 @@ public class PushServiceSocket {
 
     private final OkHttpClient unidentifiedClient;
 
+    private volatile OkHttpClient timedUnidentifiedClient;
+
     private ServiceConnectionHolder(OkHttpClient identifiedClient, OkHttpClient unidentifiedClient, String url, Optional<String> hostHeader) {
       super(identifiedClient, url, hostHeader);
-      this.unidentifiedClient = unidentifiedClient;
+      this.unidentifiedClient = withHealth(unidentifiedClient);
     }
 
     OkHttpClient getUnidentifiedClient() {
       return unidentifiedClient;
     }
+
+    OkHttpClient getUnidentifiedClient(long timeoutMillis) {
+      return timedUnidentifiedClient = withTimeout(unidentifiedClient, timedUnidentifiedClient, timeoutMillis);
+    }
+  }
+
+  private interface CallFactory<T extends ConnectionHolder> {
+    Call create(T connectionHolder);
+  }
+
+  /**
+   * The calls racing to answer one hedged read.
+   *
+   * Only a successful response or a definitive client error (any 4xx but 429) wins. A
+   * server error or 429 counts as a failed call, though the last one is still handed
+   * back if no call wins. Until the caller has decided whether to hedge, a hedge is
+   * assumed to be outstanding, so a primary that fails just as the hedge is sent can't
+   * fail the read.
+   */
+  private class HedgedCall implements Callback {
+
+    private final List<Call> calls = new LinkedList<>();
+
+    private int         outstanding;
+    private boolean     hedgePending = true;
+    private boolean     abandoned;
+    private Call        winner;
+    private Response    response;
+    private Call        fallbackCall;
+    private Response    fallback;
+    private IOException failure;
+
+    void start(Call call) {
+      synchronized (this) {
+        calls.add(call);
+        outstanding++;
+      }
+
+      synchronized (connections) {
+        connections.add(call);
+      }
+
+      call.enqueue(this);
+    }
+
+    void startHedge(Call call) {
+      start(call);
+
+      synchronized (this) {
+        hedgePending = false;
+      }
+    }
+
+    synchronized void skipHedge() {
+      hedgePending = false;
+      notifyAll();
+    }
+
+    /**
+     * Waits for a winner until it's time to hedge.
+     *
+     * @throws TimeoutException If the timeout passed, or every call sent so far failed,
+     *                          without a winner.
+     */
+    synchronized Response awaitHedge(long timeoutMillis) throws PushNetworkException, TimeoutException {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+
+      try {
+        while (winner == null && outstanding > 0) {
+          long remaining = deadline - System.currentTimeMillis();
+
+          if (remaining <= 0) throw new TimeoutException();
+
+          wait(remaining);
+        }
+      } catch (InterruptedException e) {
+        abandon();
+        throw new PushNetworkException(e);
+      }
+
+      if (winner == null) throw new TimeoutException();
+
+      return response;
+    }
+
+    synchronized Response get() throws PushNetworkException {
+      try {
+        while (winner == null && (outstanding > 0 || hedgePending)) {
+          wait();
+        }
+      } catch (InterruptedException e) {
+        abandon();
+        throw new PushNetworkException(e);
+      }
+
+      if (winner != null) {
+        return response;
+      }
+
+      if (fallback != null) {
+        winner   = fallbackCall;
+        response = fallback;
+        fallback = null;
+
+        return response;
+      }
+
+      throw new PushNetworkException(failure);
+    }
+
+    /**
+     * The caller has given up, so close anything it won't be around to read.
+     */
+    private void abandon() {
+      abandoned = true;
+
+      if (response != null) response.close();
+      if (fallback != null) fallback.close();
+    }
+
+    void cancelLosers() {
+      List<Call> losers;
+
+      synchronized (this) {
+        losers = new LinkedList<>(calls);
+        losers.remove(winner);
+      }
+
+      for (Call loser : losers) {
+        loser.cancel();
+      }
+    }
+
+    @Override
+    public void onResponse(Call call, Response response) {
+      int      code     = response.code();
+      boolean  wins     = response.isSuccessful() || (code >= 400 && code < 500 && code != 429);
+      Response unneeded;
+
+      synchronized (connections) {
+        connections.remove(call);
+      }
+
+      synchronized (this) {
+        outstanding--;
+
+        if (abandoned || winner != null) {
+          unneeded = response;
+        } else if (wins) {
+          unneeded      = fallback;
+          winner        = call;
+          this.response = response;
+          fallback      = null;
+        } else {
+          unneeded     = fallback;
+          fallbackCall = call;
+          fallback     = response;
+        }
+
+        notifyAll();
+      }
+
+      if (unneeded != null) {
+        unneeded.close();
+      }
+    }
+
+    @Override
+    public void onFailure(Call call, IOException e) {
+      synchronized (connections) {
+        connections.remove(call);
+      }
+
+      synchronized (this) {
+        outstanding--;
+        failure = e;
+        notifyAll();
+      }
+    }
   }
 
   private interface ResponseCodeHandler {
@@ -0,0 +1,57 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.push;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import org.whispersystems.signalservice.internal.push.http.AttachmentCipherOutputStreamFactory;
+import org.whispersystems.signalservice.internal.push.http.OutputStreamFactory;
+
+/**
+ * Everything needed to pick a resumable attachment upload back up: the CDN session
+ * it is being uploaded to, and the key and IV it is encrypted with. Encryption is
+ * deterministic given these, so the ciphertext the CDN already holds can be skipped
+ * rather than re-sent.
+ *
+ * Serializes with {@link org.whispersystems.signalservice.internal.util.JsonUtil}, so
+ * it can be persisted across restarts.
+ */
+public class ResumableUploadSpec {
+
+  @JsonProperty
+  private byte[] attachmentKey;
+
+  @JsonProperty
+  private byte[] attachmentIv;
+
+  @JsonProperty
+  private String resumeLocation;
+
+  public ResumableUploadSpec() {}
+
+  public ResumableUploadSpec(byte[] attachmentKey, byte[] attachmentIv, String resumeLocation) {
+    this.attachmentKey  = attachmentKey;
+    this.attachmentIv   = attachmentIv;
+    this.resumeLocation = resumeLocation;
+  }
+
+  public byte[] getAttachmentKey() {
+    return attachmentKey;
+  }
+
+  public byte[] getAttachmentIv() {
+    return attachmentIv;
+  }
+
+  public String getResumeLocation() {
+    return resumeLocation;
+  }
+
+  public OutputStreamFactory createOutputStreamFactory() {
+    return new AttachmentCipherOutputStreamFactory(attachmentKey, attachmentIv);
+  }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.push;
+
+import org.whispersystems.libsignal.logging.Log;
+import org.whispersystems.signalservice.api.push.exceptions.CircuitOpenException;
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
+import org.whispersystems.signalservice.api.push.exceptions.RateLimitException;
+import org.whispersystems.signalservice.api.push.exceptions.ServerErrorException;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+/**
+ * Decides when service and CDN requests are retried, and stops them from being sent
+ * at all while the service has asked us to back off.
+ *
+ * Transport failures and 5xx responses are retried up to maxAttempts times in all,
+ * after an exponentially growing delay with full jitter. A rate limit (413) starts a
+ * cool-down during which every request of the same class (see
+ * {@link #getRequestClass(String, String)}) fails fast with a {@link RateLimitException},
+ * since the service limits each kind of request separately. Requests refused because
+ * every endpoint's circuit is open ({@link CircuitOpenException}) aren't retried.
+ *
+ * Cool-downs are shared by everything using the same policy, so a policy should be
+ * shared by the sockets and pipes of one account but not across accounts.
+ */
+public class RetryPolicy {
+
+  private static final String TAG = RetryPolicy.class.getSimpleName();
+
+  private static final Pattern CLASS_SEGMENT            = Pattern.compile("[a-z]+(-[a-z]+)*[0-9]*");
+  private static final int     MAX_CLASS_SEGMENTS       = 4;
+  private static final int     MAX_CLASS_SEGMENT_LENGTH = 20;
+
+  private final int                             maxAttempts;
+  private final long                            baseDelayMillis;
+  private final long                            maxDelayMillis;
+  private final long                            rateLimitCooldownMillis;
+  private final SecureRandom                    random    = new SecureRandom();
+  private final Metrics                         metrics   = new Metrics();
+  private final ConcurrentHashMap<String, Long> cooldowns = new ConcurrentHashMap<>();
+
+  /**
+   * Three attempts, backing off from 500ms up to 10s, with a one minute cool-down on
+   * rate limits.
+   */
+  public RetryPolicy() {
+    this(3, 500, TimeUnit.SECONDS.toMillis(10), TimeUnit.MINUTES.toMillis(1));
+  }
+
+  public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long rateLimitCooldownMillis) {
+    if (maxAttempts < 1) throw new IllegalArgumentException("Bad attempt count: " + maxAttempts);
+
+    this.maxAttempts             = maxAttempts;
+    this.baseDelayMillis         = baseDelayMillis;
+    this.maxDelayMillis          = maxDelayMillis;
+    this.rateLimitCooldownMillis = rateLimitCooldownMillis;
+  }
+
+  /**
+   * The class a request falls in for rate limit cool-downs: its method and the leading
+   * segments of its path that name the endpoint, stopping at the first that looks like
+   * an identifier or parameter. "PUT /v1/messages/+14152222222" is "PUT /v1/messages".
+   */
+  public static String getRequestClass(String method, String path) {
+    StringBuilder requestClass = new StringBuilder(method).append(' ');
+    int           query        = path.indexOf('?');
+    int           segments     = 0;
+
+    for (String segment : (query == -1 ? path : path.substring(0, query)).split("/")) {
+      if (segment.isEmpty()) continue;
+      if (segments == MAX_CLASS_SEGMENTS || segment.length() > MAX_CLASS_SEGMENT_LENGTH || !CLASS_SEGMENT.matcher(segment).matches()) break;
+
+      requestClass.append('/').append(segment);
+      segments++;
+    }
+
+    return requestClass.toString();
+  }
+
+  /**
+   * Runs a request, retrying it as this policy allows.
+   *
+   * @param requestClass The request's class, see {@link #getRequestClass(String, String)}.
+   */
+  public <T> T execute(String requestClass, Attempt<T> attempt) throws NonSuccessfulResponseCodeException, PushNetworkException {
+    return execute(requestClass, attempt, true);
+  }
+
+  /**
+   * Runs a request that can't be repeated, such as a message send or an upload from a
+   * stream: it is subject to cool-downs, but never retried.
+   *
+   * @param requestClass The request's class, see {@link #getRequestClass(String, String)}.
+   */
+  public <T> T executeOnce(String requestClass, Attempt<T> attempt) throws NonSuccessfulResponseCodeException, PushNetworkException {
+    return execute(requestClass, attempt, false);
+  }
+
+  /**
+   * @throws RateLimitException If a rate limit cool-down is in progress for the request class.
+   */
+  public void checkRateLimit(String requestClass) throws RateLimitException {
+    Long until = cooldowns.get(requestClass);
+
+    if (until == null) {
+      return;
+    }
+
+    long remaining = until - System.currentTimeMillis();
+
+    if (remaining > 0) {
+      metrics.cooldownRejections.incrementAndGet();
+      throw new RateLimitException("Rate limited, cooling down " + requestClass + " for " + remaining + "ms");
+    }
+
+    cooldowns.remove(requestClass, until);
+  }
+
+  /**
+   * Starts a rate limit cool-down for a request class, for rate limits seen outside
+   * {@link #execute(String, Attempt)}.
+   */
+  public void onRateLimited(String requestClass) {
+    metrics.rateLimits.incrementAndGet();
+    cooldowns.put(requestClass, System.currentTimeMillis() + rateLimitCooldownMillis);
+
+    Log.w(TAG, "Rate limited, cooling down " + requestClass + " for " + rateLimitCooldownMillis + "ms");
+  }
+
+  /**
+   * @return The delay before retry number attempt (from 0): a uniformly random time up
+   *         to baseDelayMillis * 2^attempt, capped at maxDelayMillis.
+   */
+  public long getBackoffMillis(int attempt) {
+    long ceiling = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt, 30));
+
+    synchronized (random) {
+      return (long) (random.nextDouble() * ceiling);
+    }
+  }
+
+  /**
+   * Waits out the delay before retry number attempt.
+   */
+  public void backoff(int attempt) throws PushNetworkException {
+    long delay = getBackoffMillis(attempt);
+
+    metrics.retries.incrementAndGet();
+
+    try {
+      Thread.sleep(delay);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new PushNetworkException(e);
+    }
+  }
+
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  public Metrics getMetrics() {
+    return metrics;
+  }
+
+  private <T> T execute(String requestClass, Attempt<T> attempt, boolean retryable) throws NonSuccessfulResponseCodeException, PushNetworkException {
+    for (int i = 0;; i++) {
+      checkRateLimit(requestClass);
+      metrics.attempts.incrementAndGet();
+
+      try {
+        return attempt.run();
+      } catch (RateLimitException e) {
+        onRateLimited(requestClass);
+        throw e;
+      } catch (CircuitOpenException e) {
+        metrics.circuitRejections.incrementAndGet();
+        throw e;
+      } catch (PushNetworkException | ServerErrorException e) {
+        metrics.failures.incrementAndGet();
+
+        if (!retryable || i + 1 >= maxAttempts) throw e;
+
+        Log.w(TAG, "Attempt " + (i + 1) + " of " + maxAttempts + " failed, retrying", e);
+        backoff(i);
+      }
+    }
+  }
+
+  public interface Attempt<T> {
+    T run() throws NonSuccessfulResponseCodeException, PushNetworkException;
+  }
+
+  /**
+   * Running totals for everything using a policy.
+   */
+  public static class Metrics {
+
+    private final AtomicLong attempts           = new AtomicLong();
+    private final AtomicLong failures           = new AtomicLong();
+    private final AtomicLong retries            = new AtomicLong();
+    private final AtomicLong rateLimits         = new AtomicLong();
+    private final AtomicLong cooldownRejections = new AtomicLong();
+    private final AtomicLong circuitRejections  = new AtomicLong();
+
+    /**
+     * @return Requests sent, counting each retry.
+     */
+    public long getAttempts() {
+      return attempts.get();
+    }
+
+    /**
+     * @return Attempts that failed with a transport error or 5xx response.
+     */
+    public long getFailures() {
+      return failures.get();
+    }
+
+    public long getRetries() {
+      return retries.get();
+    }
+
+    /**
+     * @return Rate limit responses, each of which started a cool-down.
+     */
+    public long getRateLimits() {
+      return rateLimits.get();
+    }
+
+    /**
+     * @return Requests refused during a rate limit cool-down.
+     */
+    public long getCooldownRejections() {
+      return cooldownRejections.get();
+    }
+
+    /**
+     * @return Requests refused because every endpoint's circuit was open.
+     */
+    public long getCircuitRejections() {
+      return circuitRejections.get();
+    }
+  }
+}
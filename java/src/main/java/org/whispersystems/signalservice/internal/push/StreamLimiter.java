@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2019 Open Whisper Systems
+ *
+ * Licensed according to the LICENSE file in this repository.
+ */
+
+package org.whispersystems.signalservice.internal.push;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Caps how many requests a client has outstanding to each host, so that on a
+ * multiplexed HTTP/2 connection a burst of calls queues here rather than opening
+ * more streams than we want the server to see at once.
+ *
+ * A permit is held until the response body is closed or read to the end, since
+ * the stream stays open on the connection until then. Unlike the Dispatcher's
+ * per-host limit, this also applies to synchronous calls.
+ */
+class StreamLimiter implements Interceptor {
+
+  private final int                    maxStreams;
+  private final Map<String, Semaphore> hosts = new HashMap<>();
+
+  StreamLimiter(int maxStreams) {
+    this.maxStreams = maxStreams;
+  }
+
+  @Override
+  public Response intercept(Chain chain) throws IOException {
+    Semaphore streams = getStreams(chain.request().url());
+
+    try {
+      streams.acquire();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while waiting for a stream: " + e.getMessage());
+    }
+
+    Permit   permit = new Permit(streams);
+    Response response;
+
+    try {
+      response = chain.proceed(chain.request());
+    } catch (IOException | RuntimeException | Error e) {
+      permit.release();
+      throw e;
+    }
+
+    if (response.body() == null) {
+      permit.release();
+      return response;
+    }
+
+    return response.newBuilder()
+                   .body(new PermitBody(response.body(), permit))
+                   .build();
+  }
+
+  private synchronized Semaphore getStreams(HttpUrl url) {
+    String    host    = url.host() + ":" + url.port();
+    Semaphore streams = hosts.get(host);
+
+    if (streams == null) {
+      streams = new Semaphore(maxStreams, true);
+      hosts.put(host, streams);
+    }
+
+    return streams;
+  }
+
+  private static class Permit {
+
+    private final Semaphore     streams;
+    private final AtomicBoolean released = new AtomicBoolean();
+
+    private Permit(Semaphore streams) {
+      this.streams = streams;
+    }
+
+    void release() {
+      if (released.compareAndSet(false, true)) {
+        streams.release();
+      }
+    }
+  }
+
+  /**
+   * A response body that gives its permit back once it has been closed or exhausted.
+   */
+  private static class PermitBody extends ResponseBody {
+
+    private final ResponseBody   body;
+    private final BufferedSource source;
+
+    private PermitBody(ResponseBody body, final Permit permit) {
+      this.body   = body;
+      this.source = Okio.buffer(new ForwardingSource(body.source()) {
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+          long read = super.read(sink, byteCount);
+
+          if (read == -1) {
+            permit.release();
+          }
+
+          return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            permit.release();
+          }
+        }
+      });
+    }
+
+    @Override
+    public MediaType contentType() {
+      return body.contentType();
+    }
+
+    @Override
+    public long contentLength() {
+      return body.contentLength();
+    }
+
+    @Override
+    public BufferedSource source() {
+      return source;
+    }
+  }
+}
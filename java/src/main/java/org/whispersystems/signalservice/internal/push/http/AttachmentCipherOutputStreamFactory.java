@@ -1,6 +1,7 @@
 package org.whispersystems.signalservice.internal.push.http;
 
 
+import org.whispersystems.libsignal.util.guava.Optional;
 import org.whispersystems.signalservice.api.crypto.AttachmentCipherOutputStream;
 import org.whispersystems.signalservice.api.crypto.DigestingOutputStream;
 
@@ -9,15 +10,27 @@ import java.io.OutputStream;
 
 public class AttachmentCipherOutputStreamFactory implements OutputStreamFactory {
 
-  private final byte[] key;
+  private final byte[]           key;
+  private final Optional<byte[]> iv;
 
   public AttachmentCipherOutputStreamFactory(byte[] key) {
     this.key = key;
+    this.iv  = Optional.absent();
+  }
+
+  /**
+   * Every stream from this factory encrypts with the same IV, so re-encrypting the
+   * same plaintext reproduces the same ciphertext.
+   */
+  public AttachmentCipherOutputStreamFactory(byte[] key, byte[] iv) {
+    this.key = key;
+    this.iv  = Optional.of(iv);
   }
 
   @Override
   public DigestingOutputStream createFor(OutputStream wrap) throws IOException {
-    return new AttachmentCipherOutputStream(key, wrap);
+    if (iv.isPresent()) return new AttachmentCipherOutputStream(key, iv.get(), wrap);
+    else                return new AttachmentCipherOutputStream(key, wrap);
   }
 
 }
@@ -0,0 +1,23 @@
+package org.whispersystems.signalservice.internal.push.http;
+
+
+import org.whispersystems.signalservice.api.crypto.ChunkedAttachmentCipherOutputStream;
+import org.whispersystems.signalservice.api.crypto.DigestingOutputStream;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class ChunkedAttachmentCipherOutputStreamFactory implements OutputStreamFactory {
+
+  private final byte[] key;
+
+  public ChunkedAttachmentCipherOutputStreamFactory(byte[] key) {
+    this.key = key;
+  }
+
+  @Override
+  public DigestingOutputStream createFor(OutputStream wrap) throws IOException {
+    return new ChunkedAttachmentCipherOutputStream(key, wrap);
+  }
+
+}
@@ -13,6 +13,9 @@ import okio.BufferedSink;
 
 public class DigestingRequestBody extends RequestBody {
 
+  private static final int SMALL_BUFFER_SIZE = 8192;
+  private static final int LARGE_BUFFER_SIZE = 64 * 1024;
+
   private final InputStream         inputStream;
   private final OutputStreamFactory outputStreamFactory;
   private final String              contentType;
@@ -41,7 +44,7 @@ public class DigestingRequestBody extends RequestBody {
   @Override
   public void writeTo(BufferedSink sink) throws IOException {
     DigestingOutputStream outputStream = outputStreamFactory.createFor(sink.outputStream());
-    byte[]                buffer       = new byte[8192];
+    byte[]                buffer       = new byte[contentLength >= LARGE_BUFFER_SIZE ? LARGE_BUFFER_SIZE : SMALL_BUFFER_SIZE];
 
     int read;
     long total = 0;
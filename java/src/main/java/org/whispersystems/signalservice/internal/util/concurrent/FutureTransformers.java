@@ -0,0 +1,54 @@
+package org.whispersystems.signalservice.internal.util.concurrent;
+
+import java.util.concurrent.ExecutionException;
+
+public class FutureTransformers {
+
+  public static <Input, Output> ListenableFuture<Output> map(ListenableFuture<Input> future, final Transformer<Input, Output> transformer) {
+    final SettableFuture<Output> result = new SettableFuture<>();
+
+    future.addListener(new ListenableFuture.Listener<Input>() {
+      @Override
+      public void onSuccess(Input value) {
+        try {
+          result.set(transformer.transform(value));
+        } catch (Throwable e) {
+          result.setException(e);
+        }
+      }
+
+      @Override
+      public void onFailure(ExecutionException e) {
+        result.setException(e.getCause());
+      }
+    });
+
+    return result;
+  }
+
+  public static <T> ListenableFuture<T> mapFailure(ListenableFuture<T> future, final FailureTransformer failureTransformer) {
+    final SettableFuture<T> result = new SettableFuture<>();
+
+    future.addListener(new ListenableFuture.Listener<T>() {
+      @Override
+      public void onSuccess(T value) {
+        result.set(value);
+      }
+
+      @Override
+      public void onFailure(ExecutionException e) {
+        result.setException(failureTransformer.transform(e.getCause()));
+      }
+    });
+
+    return result;
+  }
+
+  public interface Transformer<Input, Output> {
+    Output transform(Input input) throws Exception;
+  }
+
+  public interface FailureTransformer {
+    Throwable transform(Throwable failure);
+  }
+}
@@ -0,0 +1,267 @@
+package org.whispersystems.signalservice.internal.util.concurrent;
+
+import org.whispersystems.libsignal.logging.Log;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on a shared executor such that tasks submitted for the same partition
+ * execute one at a time, in submission order, while tasks for different partitions
+ * run in parallel.
+ *
+ * Exclusive tasks are for work whose partition can't be known up front. Each is a
+ * barrier: it waits for every task submitted before it to finish, runs alone, and
+ * no task submitted after it starts until it has finished.
+ *
+ * If the executor rejects a task, this executor fails: the task being submitted is
+ * rejected with the executor's exception, every other task that hasn't started is
+ * handed to the {@link DropListener}, and later submissions are rejected.
+ */
+public class PartitionedExecutor {
+
+  private static final String TAG = PartitionedExecutor.class.getSimpleName();
+
+  private static final Object EXCLUSIVE_PARTITION = new Object();
+
+  private final Executor               executor;
+  private final DropListener           dropListener;
+  private final Map<Object, Lane>      lanes   = new HashMap<>();
+  private final LinkedList<Submission> blocked = new LinkedList<>();
+
+  private int     active;
+  private Barrier barrier;
+  private boolean failed;
+
+  public PartitionedExecutor(Executor executor, DropListener dropListener) {
+    this.executor     = executor;
+    this.dropListener = dropListener;
+  }
+
+  public void execute(Object partition, Runnable task) {
+    List<Runnable> ready = new LinkedList<>();
+
+    synchronized (this) {
+      checkNotFailed();
+
+      if (barrier != null) blocked.add(new Submission(partition, task));
+      else                 dispatch(partition, task, ready);
+    }
+
+    start(ready, task);
+  }
+
+  public void executeExclusive(Runnable task) {
+    List<Runnable> ready = new LinkedList<>();
+
+    synchronized (this) {
+      checkNotFailed();
+
+      if (barrier != null) blocked.add(new Submission(EXCLUSIVE_PARTITION, task));
+      else                 raiseBarrier(task, ready);
+    }
+
+    start(ready, task);
+  }
+
+  private void checkNotFailed() {
+    if (failed) {
+      throw new RejectedExecutionException("Executor previously rejected a task");
+    }
+  }
+
+  private void dispatch(Object partition, Runnable task, List<Runnable> ready) {
+    Lane lane = lanes.get(partition);
+
+    if (lane == null) {
+      lane = new Lane(partition);
+      lanes.put(partition, lane);
+      ready.add(lane);
+    }
+
+    lane.tasks.add(task);
+    active++;
+  }
+
+  private void raiseBarrier(Runnable task, List<Runnable> ready) {
+    barrier = new Barrier(task);
+
+    if (active == 0) {
+      ready.add(barrier);
+    }
+  }
+
+  /**
+   * Called once the barrier's task has finished: dispatches what was blocked behind
+   * it, up to and including the next exclusive task.
+   */
+  private void lowerBarrier(List<Runnable> ready) {
+    barrier = null;
+
+    while (!blocked.isEmpty() && barrier == null) {
+      Submission submission = blocked.removeFirst();
+
+      if (submission.isExclusive()) raiseBarrier(submission.task, ready);
+      else                          dispatch(submission.partition, submission.task, ready);
+    }
+  }
+
+  /**
+   * @param submitted The task being submitted, if on the submitting thread. Should
+   *                  the executor reject it, it is rethrown to the submitter rather
+   *                  than passed to the drop listener.
+   */
+  private void start(List<Runnable> ready, Runnable submitted) {
+    for (Runnable runnable : ready) {
+      try {
+        executor.execute(runnable);
+      } catch (RejectedExecutionException e) {
+        fail(submitted);
+
+        if (submitted != null) throw e;
+
+        Log.w(TAG, "Executor rejected a task, dropping everything queued", e);
+        return;
+      }
+    }
+  }
+
+  private void fail(Runnable submitted) {
+    List<Runnable> dropped = new LinkedList<>();
+
+    synchronized (this) {
+      failed = true;
+
+      for (Lane lane : lanes.values()) {
+        dropped.addAll(lane.tasks);
+        lane.tasks.clear();
+      }
+
+      if (barrier != null && !barrier.started) {
+        dropped.add(barrier.task);
+      }
+
+      for (Submission submission : blocked) {
+        dropped.add(submission.task);
+      }
+
+      lanes.clear();
+      blocked.clear();
+      barrier = null;
+    }
+
+    for (Runnable task : dropped) {
+      if (task != submitted) {
+        dropListener.onDropped(task);
+      }
+    }
+  }
+
+  private static void runTask(Runnable task) {
+    try {
+      task.run();
+    } catch (Throwable t) {
+      Log.w(TAG, t);
+    }
+  }
+
+  public interface DropListener {
+    /**
+     * Called for each accepted task that will never run because the executor rejected
+     * a task.
+     */
+    void onDropped(Runnable task);
+  }
+
+  /**
+   * Runs a single task per scheduling so that busy partitions yield their thread
+   * to others between tasks.
+   */
+  private class Lane implements Runnable {
+
+    private final Object               partition;
+    private final LinkedList<Runnable> tasks = new LinkedList<>();
+
+    private Lane(Object partition) {
+      this.partition = partition;
+    }
+
+    @Override
+    public void run() {
+      Runnable task;
+
+      synchronized (PartitionedExecutor.this) {
+        if (tasks.isEmpty()) return;
+        task = tasks.removeFirst();
+      }
+
+      runTask(task);
+
+      List<Runnable> ready = new LinkedList<>();
+
+      synchronized (PartitionedExecutor.this) {
+        active--;
+
+        if (failed) return;
+
+        if (tasks.isEmpty()) lanes.remove(partition);
+        else                 ready.add(this);
+
+        if (active == 0 && barrier != null) {
+          ready.add(barrier);
+        }
+      }
+
+      start(ready, null);
+    }
+  }
+
+  private class Barrier implements Runnable {
+
+    private final Runnable task;
+
+    private boolean started;
+
+    private Barrier(Runnable task) {
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      synchronized (PartitionedExecutor.this) {
+        if (failed) return;
+        started = true;
+      }
+
+      runTask(task);
+
+      List<Runnable> ready = new LinkedList<>();
+
+      synchronized (PartitionedExecutor.this) {
+        if (failed) return;
+        lowerBarrier(ready);
+      }
+
+      start(ready, null);
+    }
+  }
+
+  private static class Submission {
+
+    private final Object   partition;
+    private final Runnable task;
+
+    private Submission(Object partition, Runnable task) {
+      this.partition = partition;
+      this.task      = task;
+    }
+
+    boolean isExclusive() {
+      return partition == EXCLUSIVE_PARTITION;
+    }
+  }
+}
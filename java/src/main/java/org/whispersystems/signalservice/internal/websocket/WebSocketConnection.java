@@ -1,6 +1,6 @@
 package org.whispersystems.signalservice.internal.websocket;
 
-import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.CodedInputStream;
 
 import org.whispersystems.libsignal.logging.Log;
 import org.whispersystems.libsignal.util.Pair;
@@ -15,13 +15,15 @@ import org.whispersystems.signalservice.internal.util.Util;
 import org.whispersystems.signalservice.internal.util.concurrent.SettableFuture;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -48,8 +50,17 @@ public class WebSocketConnection extends WebSocketListener {
   private static final String TAG                       = WebSocketConnection.class.getSimpleName();
   private static final int    KEEPALIVE_TIMEOUT_SECONDS = 55;
 
-  private final LinkedList<WebSocketRequestMessage>              incomingRequests = new LinkedList<>();
-  private final Map<Long, SettableFuture<Pair<Integer, String>>> outgoingRequests = new HashMap<>();
+  /**
+   * Queued to wake readers blocked in readRequest() when the connection is shut down.
+   */
+  private static final WebSocketRequestMessage CLOSED_SENTINEL = WebSocketRequestMessage.newBuilder().build();
+
+  /**
+   * Unbounded: onMessage() runs on OkHttp's reader thread, which also delivers the responses
+   * to outgoing requests and answers pings, so it never blocks waiting for a slow reader.
+   */
+  private final BlockingQueue<WebSocketRequestMessage>           incomingRequests = new LinkedBlockingQueue<>();
+  private final Map<Long, SettableFuture<Pair<Integer, String>>> outgoingRequests = new ConcurrentHashMap<>();
 
   private final String                        wsUri;
   private final TrustStore                    trustStore;
@@ -58,10 +69,10 @@ public class WebSocketConnection extends WebSocketListener {
   private final ConnectivityListener          listener;
   private final SleepTimer                    sleepTimer;
 
-  private WebSocket           client;
-  private KeepAliveSender     keepAliveSender;
-  private int                 attempts;
-  private boolean             connected;
+  private volatile WebSocket client;
+  private KeepAliveSender    keepAliveSender;
+  private int                attempts;
+  private volatile boolean   connected;
 
   public WebSocketConnection(String httpUri,
                              TrustStore trustStore,
@@ -116,6 +127,8 @@ public class WebSocketConnection extends WebSocketListener {
         listener.onConnecting();
       }
 
+      incomingRequests.remove(CLOSED_SENTINEL);
+
       this.connected = false;
       this.client    = okHttpClient.newWebSocket(requestBuilder.build(), this);
     }
@@ -134,9 +147,16 @@ public class WebSocketConnection extends WebSocketListener {
       keepAliveSender.shutdown();
       keepAliveSender = null;
     }
+
+    incomingRequests.offer(CLOSED_SENTINEL);
   }
 
-  public synchronized WebSocketRequestMessage readRequest(long timeoutMillis)
+  /**
+   * Blocks until the server pushes a request, the timeout expires, or the connection is
+   * shut down. Doesn't hold the connection lock, so concurrent sends and responses are
+   * never stalled behind a waiting reader.
+   */
+  public WebSocketRequestMessage readRequest(long timeoutMillis)
       throws TimeoutException, IOException
   {
     if (client == null) {
@@ -145,16 +165,39 @@ public class WebSocketConnection extends WebSocketListener {
 
     long startTime = System.currentTimeMillis();
 
-    while (client != null && incomingRequests.isEmpty() && elapsedTime(startTime) < timeoutMillis) {
-      Util.wait(this, Math.max(1, timeoutMillis - elapsedTime(startTime)));
-    }
+    while (true) {
+      WebSocketRequestMessage request;
+
+      try {
+        request = incomingRequests.poll(Math.max(0, timeoutMillis - elapsedTime(startTime)), TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
 
-    if      (incomingRequests.isEmpty() && client == null) throw new IOException("Connection closed!");
-    else if (incomingRequests.isEmpty())                   throw new TimeoutException("Timeout exceeded");
-    else                                                   return incomingRequests.removeFirst();
+      if (request == null) {
+        if (client == null) throw new IOException("Connection closed!");
+        else                throw new TimeoutException("Timeout exceeded");
+      }
+
+      if (request != CLOSED_SENTINEL) {
+        return request;
+      }
+
+      if (client == null) {
+        incomingRequests.offer(CLOSED_SENTINEL);
+        throw new IOException("Connection closed!");
+      }
+    }
   }
 
-  public synchronized Future<Pair<Integer, String>> sendRequest(WebSocketRequestMessage request) throws IOException {
+  /**
+   * Sends a request without waiting for earlier ones to complete, so any number of
+   * requests can be in flight on the socket at once. Responses are matched back to
+   * the returned future by request id.
+   */
+  public Future<Pair<Integer, String>> sendRequest(WebSocketRequestMessage request) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null || !connected) throw new IOException("No connection!");
 
     WebSocketMessage message = WebSocketMessage.newBuilder()
@@ -165,14 +208,22 @@ public class WebSocketConnection extends WebSocketListener {
     SettableFuture<Pair<Integer, String>> future = new SettableFuture<>();
     outgoingRequests.put(request.getId(), future);
 
+    if (!connected) {
+      outgoingRequests.remove(request.getId());
+      throw new IOException("No connection!");
+    }
+
     if (!client.send(ByteString.of(message.toByteArray()))) {
+      outgoingRequests.remove(request.getId());
       throw new IOException("Write failed!");
     }
 
     return future;
   }
 
-  public synchronized void sendResponse(WebSocketResponseMessage response) throws IOException {
+  public void sendResponse(WebSocketResponseMessage response) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null) {
       throw new IOException("Connection closed!");
     }
@@ -187,7 +238,9 @@ public class WebSocketConnection extends WebSocketListener {
     }
   }
 
-  private synchronized void sendKeepAlive() throws IOException {
+  private void sendKeepAlive() throws IOException {
+    WebSocket client = this.client;
+
     if (keepAliveSender != null && client != null) {
       byte[] message = WebSocketMessage.newBuilder()
                                        .setType(WebSocketMessage.Type.REQUEST)
@@ -218,23 +271,21 @@ public class WebSocketConnection extends WebSocketListener {
   }
 
   @Override
-  public synchronized void onMessage(WebSocket webSocket, ByteString payload) {
+  public void onMessage(WebSocket webSocket, ByteString payload) {
     Log.w(TAG, "WSC onMessage()");
     try {
-      WebSocketMessage message = WebSocketMessage.parseFrom(payload.toByteArray());
+      WebSocketMessage message = parseWebSocketMessage(payload);
 
       Log.w(TAG, "Message Type: " + message.getType().getNumber());
 
       if (message.getType().getNumber() == WebSocketMessage.Type.REQUEST_VALUE)  {
-        incomingRequests.add(message.getRequest());
+        incomingRequests.offer(message.getRequest());
       } else if (message.getType().getNumber() == WebSocketMessage.Type.RESPONSE_VALUE) {
-        SettableFuture<Pair<Integer, String>> listener = outgoingRequests.get(message.getResponse().getId());
+        SettableFuture<Pair<Integer, String>> listener = outgoingRequests.remove(message.getResponse().getId());
         if (listener != null) listener.set(new Pair<>(message.getResponse().getStatus(),
-                                                      new String(message.getResponse().getBody().toByteArray())));
+                                                      message.getResponse().getBody().toStringUtf8()));
       }
-
-      notifyAll();
-    } catch (InvalidProtocolBufferException e) {
+    } catch (IOException e) {
       Log.w(TAG, e);
     }
   }
@@ -268,9 +319,9 @@ public class WebSocketConnection extends WebSocketListener {
       client    = null;
       connected = false;
       connect();
+    } else {
+      incomingRequests.offer(CLOSED_SENTINEL);
     }
-
-    notifyAll();
   }
 
   @Override
@@ -298,6 +349,17 @@ public class WebSocketConnection extends WebSocketListener {
     webSocket.close(1000, "OK");
   }
 
+  /**
+   * Parses a frame with a single copy out of the OkHttp buffer. The request and response
+   * bodies are views onto that copy rather than further copies of their own.
+   */
+  private static WebSocketMessage parseWebSocketMessage(ByteString payload) throws IOException {
+    CodedInputStream input = CodedInputStream.newInstance(ByteBuffer.wrap(payload.toByteArray()));
+    input.enableAliasing(true);
+
+    return WebSocketMessage.parseFrom(input);
+  }
+
   private long elapsedTime(long startTime) {
     return System.currentTimeMillis() - startTime;
   }
@@ -0,0 +1,187 @@
+package org.whispersystems.signalservice.api;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.AttachmentUploadCache;
+import org.whispersystems.signalservice.api.messages.AttachmentUploadResult;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachment;
+import org.whispersystems.signalservice.api.messages.SignalServiceAttachmentStream;
+import org.whispersystems.signalservice.internal.util.Util;
+import org.whispersystems.signalservice.push.MockServiceConfiguration;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+public class AttachmentBatchUploadTest extends TestCase {
+
+  private MockWebServer   server;
+  private UploadServer    dispatcher;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws IOException {
+    dispatcher = new UploadServer();
+    executor   = Executors.newFixedThreadPool(4);
+    server     = new MockWebServer();
+
+    server.setDispatcher(dispatcher);
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    executor.shutdown();
+    server.shutdown();
+  }
+
+  public void testUploadsConcurrently() throws IOException {
+    List<AttachmentUploadResult> results = createSender(Optional.of(executor)).uploadAttachments(createAttachments(4), 2);
+
+    assertEquals(4, results.size());
+    assertEquals(2, dispatcher.maxUploadsInFlight);
+
+    Set<Long> ids = new HashSet<>();
+
+    for (AttachmentUploadResult result : results) {
+      assertTrue(result.isSuccess());
+      assertTrue(result.getPointer().get().getDigest().isPresent());
+      ids.add(result.getPointer().get().getId());
+    }
+
+    assertEquals(4, ids.size());
+  }
+
+  public void testUploadsSeriallyWithoutExecutor() throws IOException {
+    List<AttachmentUploadResult> results = createSender(Optional.<ExecutorService>absent()).uploadAttachments(createAttachments(3), 4);
+
+    assertEquals(3, results.size());
+    assertEquals(1, dispatcher.maxUploadsInFlight);
+
+    for (AttachmentUploadResult result : results) {
+      assertTrue(result.isSuccess());
+    }
+  }
+
+  public void testReportsFailuresPerAttachment() throws IOException {
+    dispatcher.failingId = 2;
+
+    List<AttachmentUploadResult> results  = createSender(Optional.of(executor)).uploadAttachments(createAttachments(3), 3);
+    int                          failures = 0;
+
+    for (AttachmentUploadResult result : results) {
+      if (result.isSuccess()) {
+        assertFalse(result.getPointer().get().getId() == 2);
+      } else {
+        assertTrue(result.getFailure().isPresent());
+        failures++;
+      }
+    }
+
+    assertEquals(1, failures);
+  }
+
+  public void testDoesNotCacheUploadWithWrongContentHash() throws IOException {
+    AttachmentUploadCache      cache  = new AttachmentUploadCache(10, 60 * 1000);
+    SignalServiceMessageSender sender = createSender(Optional.<ExecutorService>absent());
+    byte[]                     data   = Util.getSecretBytes(64 * 1024);
+
+    sender.setAttachmentUploadCache(cache);
+
+    SignalServiceAttachmentStream attachment = SignalServiceAttachment.newStreamBuilder()
+                                                                      .withStream(new ByteArrayInputStream(data))
+                                                                      .withContentType("image/jpeg")
+                                                                      .withLength(data.length)
+                                                                      .withContentHash(Util.getSecretBytes(32))
+                                                                      .build();
+
+    List<AttachmentUploadResult> results = sender.uploadAttachments(Collections.singletonList(attachment), 1);
+
+    assertFalse(results.get(0).isSuccess());
+    assertEquals(0, cache.size());
+  }
+
+  private SignalServiceMessageSender createSender(Optional<ExecutorService> executor) {
+    return new SignalServiceMessageSender(MockServiceConfiguration.forServer(server),
+                                          MockServiceConfiguration.createCredentials(),
+                                          null, "test", false,
+                                          Optional.<SignalServiceMessagePipe>absent(),
+                                          Optional.<SignalServiceMessagePipe>absent(),
+                                          Optional.<SignalServiceMessageSender.EventListener>absent(),
+                                          executor, 4);
+  }
+
+  private static List<SignalServiceAttachmentStream> createAttachments(int count) {
+    List<SignalServiceAttachmentStream> attachments = new LinkedList<>();
+
+    for (int i = 0; i < count; i++) {
+      byte[] data = Util.getSecretBytes(64 * 1024);
+
+      attachments.add(SignalServiceAttachment.newStreamBuilder()
+                                             .withStream(new ByteArrayInputStream(data))
+                                             .withContentType("image/jpeg")
+                                             .withLength(data.length)
+                                             .build());
+    }
+
+    return attachments;
+  }
+
+  /**
+   * Hands out upload forms and accepts uploads against them, slowly enough that
+   * concurrent uploads overlap.
+   */
+  private static class UploadServer extends Dispatcher {
+
+    private final AtomicInteger nextId          = new AtomicInteger(1);
+    private final AtomicInteger uploadsInFlight = new AtomicInteger();
+
+    private volatile int maxUploadsInFlight;
+    private volatile int failingId = -1;
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+      if (request.getMethod().equals("GET") && request.getPath().equals("/v2/attachments/form/upload")) {
+        int id = nextId.getAndIncrement();
+        return new MockResponse().setBody("{\"attachmentId\":\"" + id + "\",\"key\":\"attachments/" + id + "\"," +
+                                          "\"acl\":\"private\",\"policy\":\"p\",\"algorithm\":\"a\"," +
+                                          "\"credential\":\"c\",\"date\":\"d\",\"signature\":\"s\"}");
+      }
+
+      if (request.getMethod().equals("POST") && request.getPath().equals("/attachments/")) {
+        int inFlight = uploadsInFlight.incrementAndGet();
+
+        synchronized (this) {
+          maxUploadsInFlight = Math.max(maxUploadsInFlight, inFlight);
+        }
+
+        try {
+          Thread.sleep(200);
+        } finally {
+          uploadsInFlight.decrementAndGet();
+        }
+
+        if (request.getBody().readUtf8().contains("attachments/" + failingId + "\r\n")) {
+          return new MockResponse().setResponseCode(403);
+        }
+
+        return new MockResponse();
+      }
+
+      return new MockResponse().setResponseCode(404);
+    }
+  }
+}
@@ -0,0 +1,188 @@
+package org.whispersystems.signalservice.api;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.util.CredentialsProvider;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Envelope;
+import org.whispersystems.signalservice.internal.util.StaticCredentialsProvider;
+import org.whispersystems.signalservice.internal.websocket.WebSocketConnection;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketRequestMessage;
+import static org.whispersystems.signalservice.internal.websocket.WebSocketProtos.WebSocketResponseMessage;
+
+public class PipelinedReadTest extends TestCase {
+
+  private static final String ALICE = UUID.randomUUID().toString();
+  private static final String BOB   = UUID.randomUUID().toString();
+  private static final String CAROL = UUID.randomUUID().toString();
+
+  private ExecutorService pool;
+
+  @Override
+  protected void setUp() {
+    pool = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  protected void tearDown() {
+    pool.shutdownNow();
+  }
+
+  public void testAcknowledgesInSenderOrder() throws Exception {
+    FakeWebSocketConnection  websocket = new FakeWebSocketConnection();
+    final List<Long>         processed = Collections.synchronizedList(new LinkedList<Long>());
+
+    websocket.add(1, Envelope.Type.CIPHERTEXT, ALICE);
+    websocket.add(2, Envelope.Type.CIPHERTEXT, BOB);
+    websocket.add(3, Envelope.Type.UNIDENTIFIED_SENDER, null);
+    websocket.add(4, Envelope.Type.CIPHERTEXT, ALICE);
+    websocket.add(5, Envelope.Type.CIPHERTEXT, BOB);
+
+    try {
+      createPipe(websocket).read(100, TimeUnit.MILLISECONDS, pool, 3, new SignalServiceMessagePipe.PipelinedMessageCallback() {
+        @Override
+        public void onMessage(SignalServiceEnvelope envelope) throws Exception {
+          Thread.sleep(envelope.getTimestamp() == 1 ? 100 : 10);
+          processed.add(envelope.getTimestamp());
+        }
+      });
+      fail();
+    } catch (TimeoutException e) {
+      // Expected
+    }
+
+    assertEquals(5, processed.size());
+    assertEquals(Long.valueOf(3), processed.get(2));
+    assertTrue(processed.indexOf(1L) < processed.indexOf(4L));
+    assertTrue(processed.indexOf(2L) < processed.indexOf(5L));
+    assertEquals(5, websocket.getAcknowledged().size());
+  }
+
+  public void testFailedCallbackIsNotAcknowledged() throws Exception {
+    FakeWebSocketConnection websocket = new FakeWebSocketConnection();
+
+    websocket.add(1, Envelope.Type.CIPHERTEXT, ALICE);
+    websocket.add(2, Envelope.Type.CIPHERTEXT, ALICE);
+
+    try {
+      createPipe(websocket).read(100, TimeUnit.MILLISECONDS, pool, 2, new SignalServiceMessagePipe.PipelinedMessageCallback() {
+        @Override
+        public void onMessage(SignalServiceEnvelope envelope) throws Exception {
+          if (envelope.getTimestamp() == 1) throw new IOException("Storage failed");
+        }
+      });
+      fail();
+    } catch (TimeoutException e) {
+      // Expected
+    }
+
+    assertEquals(Collections.singletonList(2L), websocket.getAcknowledged());
+  }
+
+  public void testRejectedExecutionDoesNotHang() throws Exception {
+    final FakeWebSocketConnection    websocket = new FakeWebSocketConnection();
+    final AtomicReference<Exception> result    = new AtomicReference<>();
+    final Executor                   executor  = new Executor() {
+      private int accepted;
+
+      @Override
+      public void execute(Runnable runnable) {
+        if (++accepted > 2) throw new RejectedExecutionException();
+      }
+    };
+
+    websocket.add(1, Envelope.Type.CIPHERTEXT, ALICE);
+    websocket.add(2, Envelope.Type.CIPHERTEXT, BOB);
+    websocket.add(3, Envelope.Type.CIPHERTEXT, CAROL);
+
+    Thread reader = new Thread() {
+      @Override
+      public void run() {
+        try {
+          createPipe(websocket).read(100, TimeUnit.MILLISECONDS, executor, 4, new SignalServiceMessagePipe.PipelinedMessageCallback() {
+            @Override
+            public void onMessage(SignalServiceEnvelope envelope) {}
+          });
+        } catch (Exception e) {
+          result.set(e);
+        }
+      }
+    };
+
+    reader.start();
+    reader.join(5000);
+
+    assertFalse(reader.isAlive());
+    assertTrue(result.get() instanceof IOException);
+    assertTrue(websocket.getAcknowledged().isEmpty());
+  }
+
+  private static SignalServiceMessagePipe createPipe(WebSocketConnection websocket) {
+    CredentialsProvider credentials = new StaticCredentialsProvider(UUID.randomUUID(), "+14152222222", "password", null);
+    return new SignalServiceMessagePipe(websocket, Optional.of(credentials));
+  }
+
+  private static class FakeWebSocketConnection extends WebSocketConnection {
+
+    private final LinkedBlockingQueue<WebSocketRequestMessage> requests     = new LinkedBlockingQueue<>();
+    private final List<Long>                                   acknowledged = Collections.synchronizedList(new LinkedList<Long>());
+
+    private FakeWebSocketConnection() {
+      super("http://localhost", null, Optional.<CredentialsProvider>absent(), "test", null, null);
+    }
+
+    void add(long id, Envelope.Type type, String source) {
+      Envelope.Builder envelope = Envelope.newBuilder()
+                                          .setType(type)
+                                          .setTimestamp(id);
+
+      if (source != null) {
+        envelope.setSourceUuid(source).setSourceDevice(1);
+      }
+
+      requests.add(WebSocketRequestMessage.newBuilder()
+                                          .setId(id)
+                                          .setVerb("PUT")
+                                          .setPath("/api/v1/message")
+                                          .addHeaders("X-Signal-Key: false")
+                                          .setBody(envelope.build().toByteString())
+                                          .build());
+    }
+
+    List<Long> getAcknowledged() {
+      return acknowledged;
+    }
+
+    @Override
+    public synchronized void connect() {}
+
+    @Override
+    public WebSocketRequestMessage readRequest(long timeoutMillis) throws TimeoutException {
+      WebSocketRequestMessage request = requests.poll();
+
+      if (request == null) throw new TimeoutException();
+      else                 return request;
+    }
+
+    @Override
+    public void sendResponse(WebSocketResponseMessage response) {
+      acknowledged.add(response.getId());
+    }
+  }
+}
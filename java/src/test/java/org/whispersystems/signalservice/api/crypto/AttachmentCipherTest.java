@@ -9,12 +9,23 @@ import org.whispersystems.signalservice.internal.util.Util;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.Security;
 import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 public class AttachmentCipherTest extends TestCase {
 
@@ -145,6 +156,336 @@ public class AttachmentCipherTest extends TestCase {
     assertTrue(hitCorrectException);
   }
 
+  public void test_attachment_decryptSmallReadsAndSkips() throws IOException, InvalidMessageException {
+    byte[]        key             = Util.getSecretBytes(64);
+    byte[]        plaintextInput  = Util.getSecretBytes(100 * 1024 + 3);
+    EncryptResult encryptResult   = encryptData(plaintextInput, key);
+    File          cipherFile      = writeToFile(encryptResult.ciphertext);
+    InputStream   inputStream     = AttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+    byte[]        plaintextOutput = new byte[plaintextInput.length];
+    byte[]        buffer          = new byte[40];
+    int           position        = 0;
+    int           read;
+
+    assertEquals(5000, inputStream.skip(5000));
+    position += 5000;
+
+    while ((read = inputStream.read(buffer, 0, 1 + position % buffer.length)) != -1) {
+      System.arraycopy(buffer, 0, plaintextOutput, position, read);
+      position += read;
+    }
+
+    assertEquals(plaintextInput.length, position);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(plaintextInput, 5000, plaintextInput.length),
+                             Arrays.copyOfRange(plaintextOutput, 5000, plaintextOutput.length)));
+
+    cipherFile.delete();
+  }
+
+  public void test_attachment_decryptToFile() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(3 * 1024 * 1024 + 7);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key);
+    File          cipherFile     = writeToFile(encryptResult.ciphertext);
+    File          plaintextFile  = new File(cipherFile.getParentFile(), cipherFile.getName() + ".plain");
+
+    AttachmentCipherInputStream.decryptAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest, plaintextFile);
+
+    byte[] plaintextOutput = readInputStreamFully(new FileInputStream(plaintextFile));
+
+    assertTrue(Arrays.equals(plaintextInput, plaintextOutput));
+
+    cipherFile.delete();
+    plaintextFile.delete();
+  }
+
+  public void test_attachment_decryptToFileFailOnBadMac() throws IOException {
+    byte[]        key              = Util.getSecretBytes(64);
+    byte[]        plaintextInput   = "Mary Jane".getBytes();
+    EncryptResult encryptResult    = encryptData(plaintextInput, key);
+    byte[]        badMacCiphertext = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+
+    badMacCiphertext[badMacCiphertext.length - 1] = 0;
+
+    File    cipherFile          = writeToFile(badMacCiphertext);
+    File    plaintextFile       = new File(cipherFile.getParentFile(), cipherFile.getName() + ".plain");
+    boolean hitCorrectException = false;
+
+    try {
+      AttachmentCipherInputStream.decryptAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest, plaintextFile);
+    } catch (InvalidMessageException e) {
+      hitCorrectException = true;
+    } finally {
+      cipherFile.delete();
+    }
+
+    assertTrue(hitCorrectException);
+    assertFalse(plaintextFile.exists());
+  }
+
+  public void test_attachment_decryptToChannel() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(2 * 1024 * 1024 + 11);
+    EncryptResult encryptResult  = encryptData(plaintextInput, key);
+    File          cipherFile     = writeToFile(encryptResult.ciphertext);
+    File          plaintextFile  = writeToFile("header".getBytes());
+
+    try (FileInputStream  in  = new FileInputStream(cipherFile);
+         RandomAccessFile out = new RandomAccessFile(plaintextFile, "rw"))
+    {
+      out.seek(6);
+      AttachmentCipherInputStream.decryptAttachment(in.getChannel(), plaintextInput.length, key, encryptResult.digest, out.getChannel());
+    }
+
+    byte[] plaintextOutput = readInputStreamFully(new FileInputStream(plaintextFile));
+
+    assertTrue(Arrays.equals("header".getBytes(), Arrays.copyOfRange(plaintextOutput, 0, 6)));
+    assertTrue(Arrays.equals(plaintextInput, Arrays.copyOfRange(plaintextOutput, 6, plaintextOutput.length)));
+
+    cipherFile.delete();
+    plaintextFile.delete();
+  }
+
+  public void test_attachment_decryptToChannelFailOnBadMac() throws IOException {
+    byte[]        key              = Util.getSecretBytes(64);
+    byte[]        plaintextInput   = Util.getSecretBytes(64 * 1024);
+    EncryptResult encryptResult    = encryptData(plaintextInput, key);
+    byte[]        badMacCiphertext = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+    byte[]        existing         = "header and data the caller already had".getBytes();
+
+    badMacCiphertext[badMacCiphertext.length - 1] = 0;
+
+    File    cipherFile          = writeToFile(badMacCiphertext);
+    File    plaintextFile       = writeToFile(existing);
+    boolean hitCorrectException = false;
+
+    try (FileInputStream  in  = new FileInputStream(cipherFile);
+         RandomAccessFile out = new RandomAccessFile(plaintextFile, "rw"))
+    {
+      out.seek(6);
+      AttachmentCipherInputStream.decryptAttachment(in.getChannel(), plaintextInput.length, key, encryptResult.digest, out.getChannel());
+    } catch (InvalidMessageException e) {
+      hitCorrectException = true;
+    }
+
+    assertTrue(hitCorrectException);
+    assertTrue(Arrays.equals(existing, readInputStreamFully(new FileInputStream(plaintextFile))));
+
+    cipherFile.delete();
+    plaintextFile.delete();
+  }
+
+  public void test_chunked_encryptDecrypt() throws IOException, InvalidMessageException {
+    byte[] key = Util.getSecretBytes(64);
+
+    for (int length : new int[] {0, 1, 999, 1000, 1001, 3000, 3001}) {
+      byte[]        plaintextInput = Util.getSecretBytes(length);
+      EncryptResult encryptResult  = encryptChunkedData(plaintextInput, key, 1000);
+      File          cipherFile     = writeToFile(encryptResult.ciphertext);
+      InputStream   inputStream    = ChunkedAttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+
+      assertEquals(ChunkedAttachmentCipher.getCiphertextLength(length, 1000), encryptResult.ciphertext.length);
+      assertTrue(Arrays.equals(plaintextInput, readInputStreamFully(inputStream)));
+
+      inputStream.close();
+      cipherFile.delete();
+    }
+  }
+
+  public void test_chunked_decryptSeeksAndSkips() throws IOException, InvalidMessageException {
+    byte[]                             key            = Util.getSecretBytes(64);
+    byte[]                             plaintextInput = Util.getSecretBytes(10 * 1000 + 7);
+    EncryptResult                      encryptResult  = encryptChunkedData(plaintextInput, key, 1000);
+    File                               cipherFile     = writeToFile(encryptResult.ciphertext);
+    ChunkedAttachmentCipherInputStream inputStream    = ChunkedAttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest);
+    byte[]                             buffer         = new byte[1500];
+
+    assertEquals(plaintextInput.length, inputStream.getLength());
+
+    inputStream.seek(7500);
+    assertEquals(500, inputStream.read(buffer));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(plaintextInput, 7500, 8000), Arrays.copyOf(buffer, 500)));
+
+    inputStream.seek(10);
+    assertEquals(990, inputStream.skip(990));
+    assertEquals(plaintextInput[1000] & 0xff, inputStream.read());
+
+    assertEquals(9006, inputStream.skip(100 * 1000));
+    assertEquals(-1, inputStream.read());
+
+    inputStream.close();
+    cipherFile.delete();
+  }
+
+  public void test_chunked_decryptFailOnBadDigest() throws IOException {
+    byte[]        key                 = Util.getSecretBytes(64);
+    byte[]        plaintextInput      = "Miles Morales".getBytes();
+    EncryptResult encryptResult       = encryptChunkedData(plaintextInput, key, 1000);
+    File          cipherFile          = writeToFile(encryptResult.ciphertext);
+    boolean       hitCorrectException = false;
+
+    try {
+      ChunkedAttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, new byte[32]);
+    } catch (InvalidMessageException e) {
+      hitCorrectException = true;
+    } finally {
+      cipherFile.delete();
+    }
+
+    assertTrue(hitCorrectException);
+  }
+
+  public void test_chunked_decryptFailOnTamperedChunk() throws IOException, InvalidMessageException {
+    byte[]        key            = Util.getSecretBytes(64);
+    byte[]        plaintextInput = Util.getSecretBytes(5000);
+    EncryptResult encryptResult  = encryptChunkedData(plaintextInput, key, 1000);
+    byte[]        tampered       = Arrays.copyOf(encryptResult.ciphertext, encryptResult.ciphertext.length);
+
+    tampered[ChunkedAttachmentCipher.HEADER_SIZE + 2 * 1016 + 5] ^= 1;
+
+    File        cipherFile  = writeToFile(tampered);
+    byte[]      digest      = sha256(tampered);
+    InputStream inputStream = ChunkedAttachmentCipherInputStream.createForAttachment(cipherFile, plaintextInput.length, key, digest);
+    byte[]      buffer      = new byte[1000];
+
+    assertEquals(1000, inputStream.read(buffer));
+    assertEquals(1000, inputStream.read(buffer));
+
+    try {
+      inputStream.read(buffer);
+      fail();
+    } catch (IOException e) {
+      assertTrue(e.getCause() instanceof InvalidMessageException);
+    }
+
+    inputStream.close();
+
+    File    plaintextFile       = new File(cipherFile.getParentFile(), cipherFile.getName() + ".plain");
+    boolean hitCorrectException = false;
+
+    try {
+      ChunkedAttachmentCipherInputStream.decryptAttachment(cipherFile, plaintextInput.length, key, digest, plaintextFile, null);
+    } catch (InvalidMessageException e) {
+      hitCorrectException = true;
+    } finally {
+      cipherFile.delete();
+    }
+
+    assertTrue(hitCorrectException);
+    assertFalse(plaintextFile.exists());
+  }
+
+  public void test_chunked_decryptFailOnTruncation() throws IOException {
+    byte[]        key                 = Util.getSecretBytes(64);
+    byte[]        plaintextInput      = Util.getSecretBytes(3000);
+    EncryptResult encryptResult       = encryptChunkedData(plaintextInput, key, 1000);
+    byte[]        truncated           = Arrays.copyOf(encryptResult.ciphertext, ChunkedAttachmentCipher.HEADER_SIZE + 2 * 1016);
+    File          cipherFile          = writeToFile(truncated);
+    File          plaintextFile       = new File(cipherFile.getParentFile(), cipherFile.getName() + ".plain");
+    boolean       hitCorrectException = false;
+
+    try {
+      ChunkedAttachmentCipherInputStream.decryptAttachment(cipherFile, 0, key, sha256(truncated), plaintextFile, null);
+    } catch (InvalidMessageException e) {
+      hitCorrectException = true;
+    } finally {
+      cipherFile.delete();
+    }
+
+    assertTrue(hitCorrectException);
+    assertFalse(plaintextFile.exists());
+  }
+
+  public void test_chunked_decryptToChannelInParallel() throws IOException, InvalidMessageException {
+    byte[]          key            = Util.getSecretBytes(64);
+    byte[]          plaintextInput = Util.getSecretBytes(1024 * 1024 + 11);
+    EncryptResult   encryptResult  = encryptChunkedData(plaintextInput, key, 4096);
+    File            cipherFile     = writeToFile(encryptResult.ciphertext);
+    File            plaintextFile  = writeToFile("header".getBytes());
+    ExecutorService executor       = Executors.newFixedThreadPool(4);
+
+    try (RandomAccessFile out = new RandomAccessFile(plaintextFile, "rw")) {
+      out.seek(6);
+      ChunkedAttachmentCipherInputStream.decryptAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest, out.getChannel(), executor);
+    } finally {
+      executor.shutdown();
+    }
+
+    byte[] plaintextOutput = readInputStreamFully(new FileInputStream(plaintextFile));
+
+    assertTrue(Arrays.equals("header".getBytes(), Arrays.copyOfRange(plaintextOutput, 0, 6)));
+    assertTrue(Arrays.equals(plaintextInput, Arrays.copyOfRange(plaintextOutput, 6, plaintextOutput.length)));
+
+    cipherFile.delete();
+    plaintextFile.delete();
+  }
+
+  public void test_chunked_decryptToChannelFailOnBadDigest() throws IOException {
+    byte[]          key                 = Util.getSecretBytes(64);
+    byte[]          plaintextInput      = Util.getSecretBytes(64 * 1024);
+    EncryptResult   encryptResult       = encryptChunkedData(plaintextInput, key, 4096);
+    byte[]          existing            = "header and data the caller already had".getBytes();
+    File            cipherFile          = writeToFile(encryptResult.ciphertext);
+    File            plaintextFile       = writeToFile(existing);
+    ExecutorService executor            = Executors.newFixedThreadPool(4);
+    boolean         hitCorrectException = false;
+
+    try (RandomAccessFile out = new RandomAccessFile(plaintextFile, "rw")) {
+      out.seek(6);
+      ChunkedAttachmentCipherInputStream.decryptAttachment(cipherFile, plaintextInput.length, key, new byte[32], out.getChannel(), executor);
+    } catch (InvalidMessageException e) {
+      hitCorrectException = true;
+    } finally {
+      executor.shutdown();
+    }
+
+    assertTrue(hitCorrectException);
+    assertTrue(Arrays.equals(existing, readInputStreamFully(new FileInputStream(plaintextFile))));
+
+    cipherFile.delete();
+    plaintextFile.delete();
+  }
+
+  public void test_chunked_decryptToChannelAwaitsTasksOnRejection() throws IOException, InvalidMessageException {
+    byte[]                key            = Util.getSecretBytes(64);
+    byte[]                plaintextInput = Util.getSecretBytes(1024 * 1024);
+    EncryptResult         encryptResult  = encryptChunkedData(plaintextInput, key, 4096);
+    File                  cipherFile     = writeToFile(encryptResult.ciphertext);
+    File                  plaintextFile  = writeToFile(new byte[0]);
+    final ExecutorService pool           = Executors.newFixedThreadPool(2);
+    final List<Future<?>> accepted       = new LinkedList<>();
+    boolean               rejected       = false;
+
+    Executor executor = new Executor() {
+      @Override
+      public void execute(Runnable task) {
+        if (accepted.size() == 3) {
+          throw new RejectedExecutionException();
+        }
+
+        accepted.add((Future<?>) task);
+        pool.execute(task);
+      }
+    };
+
+    try (RandomAccessFile out = new RandomAccessFile(plaintextFile, "rw")) {
+      ChunkedAttachmentCipherInputStream.decryptAttachment(cipherFile, plaintextInput.length, key, encryptResult.digest, out.getChannel(), executor);
+    } catch (IOException e) {
+      rejected = e.getCause() instanceof RejectedExecutionException;
+
+      for (Future<?> task : accepted) {
+        assertTrue(task.isDone());
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    assertTrue(rejected);
+
+    cipherFile.delete();
+    plaintextFile.delete();
+  }
+
   public void test_sticker_encryptDecrypt() throws IOException, InvalidMessageException {
     byte[]        packKey         = Util.getSecretBytes(32);
     byte[]        plaintextInput  = "Peter Parker".getBytes();
@@ -212,6 +553,25 @@ public class AttachmentCipherTest extends TestCase {
     return new EncryptResult(outputStream.toByteArray(), encryptStream.getTransmittedDigest());
   }
 
+  private static EncryptResult encryptChunkedData(byte[] data, byte[] keyMaterial, int chunkSize) throws IOException {
+    ByteArrayOutputStream               outputStream  = new ByteArrayOutputStream();
+    ChunkedAttachmentCipherOutputStream encryptStream = new ChunkedAttachmentCipherOutputStream(keyMaterial, chunkSize, outputStream);
+
+    encryptStream.write(data);
+    encryptStream.flush();
+    encryptStream.close();
+
+    return new EncryptResult(outputStream.toByteArray(), encryptStream.getTransmittedDigest());
+  }
+
+  private static byte[] sha256(byte[] data) {
+    try {
+      return MessageDigest.getInstance("SHA256").digest(data);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   private static File writeToFile(byte[] data) throws IOException {
     File         file         = File.createTempFile("temp", ".data");
     OutputStream outputStream = new FileOutputStream(file);
@@ -0,0 +1,157 @@
+package org.whispersystems.signalservice.api.crypto;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.messages.SignalServiceContent;
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.internal.push.SignalServiceProtos.Envelope;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+public class ParallelEnvelopeDecryptorTest extends TestCase {
+
+  private static final SignalServiceAddress ALICE = new SignalServiceAddress(UUID.randomUUID(), "+14151111111");
+  private static final SignalServiceAddress BOB   = new SignalServiceAddress(UUID.randomUUID(), "+14152222222");
+
+  private ExecutorService pool;
+
+  @Override
+  protected void setUp() {
+    pool = Executors.newFixedThreadPool(4);
+  }
+
+  @Override
+  protected void tearDown() {
+    pool.shutdownNow();
+  }
+
+  public void testInterleavedSealedAndUnsealedEnvelopesCompleteInOrder() throws InterruptedException {
+    ParallelEnvelopeDecryptor decryptor = new ParallelEnvelopeDecryptor(new SlowCipher(), pool);
+    RecordingCallback         callback  = new RecordingCallback(6);
+
+    decryptor.decrypt(createEnvelope(ALICE, 1), callback);
+    decryptor.decrypt(createSealedEnvelope(2), callback);
+    decryptor.decrypt(createEnvelope(ALICE, 3), callback);
+    decryptor.decrypt(createSealedEnvelope(4), callback);
+    decryptor.decrypt(createEnvelope(ALICE, 5), callback);
+    decryptor.decrypt(createEnvelope(BOB, 6), callback);
+
+    assertTrue(callback.await());
+    assertEquals(Arrays.asList(1L, 2L, 3L, 4L), callback.getDecrypted().subList(0, 4));
+    assertTrue(callback.getDecrypted().containsAll(Arrays.asList(5L, 6L)));
+  }
+
+  public void testDecryptsSessionsInParallel() throws InterruptedException {
+    ParallelEnvelopeDecryptor decryptor = new ParallelEnvelopeDecryptor(new SlowCipher(), pool);
+    RecordingCallback         callback  = new RecordingCallback(2);
+
+    decryptor.decrypt(createEnvelope(ALICE, 1), callback);
+    decryptor.decrypt(createEnvelope(BOB, 2), callback);
+
+    assertTrue(callback.await());
+    assertEquals(Arrays.asList(2L, 1L), callback.getDecrypted());
+  }
+
+  public void testRejectionFailsQueuedEnvelopes() {
+    Executor rejecting = new Executor() {
+      private int accepted;
+
+      @Override
+      public void execute(Runnable runnable) {
+        if (++accepted > 1) throw new RejectedExecutionException();
+      }
+    };
+
+    ParallelEnvelopeDecryptor decryptor = new ParallelEnvelopeDecryptor(new SlowCipher(), rejecting);
+    RecordingCallback         callback  = new RecordingCallback(2);
+
+    decryptor.decrypt(createEnvelope(ALICE, 1), callback);
+    decryptor.decrypt(createEnvelope(ALICE, 2), callback);
+
+    try {
+      decryptor.decrypt(createEnvelope(BOB, 3), callback);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // Expected
+    }
+
+    assertEquals(Arrays.asList(1L, 2L), callback.getFailed());
+    assertTrue(callback.getDecrypted().isEmpty());
+  }
+
+  private static SignalServiceEnvelope createEnvelope(SignalServiceAddress sender, long timestamp) {
+    return new SignalServiceEnvelope(Envelope.Type.CIPHERTEXT_VALUE, Optional.of(sender), 1, timestamp, null, new byte[0], 0, null);
+  }
+
+  private static SignalServiceEnvelope createSealedEnvelope(long timestamp) {
+    return new SignalServiceEnvelope(Envelope.Type.UNIDENTIFIED_SENDER_VALUE, timestamp, null, new byte[0], 0, null);
+  }
+
+  /**
+   * Takes longer over earlier envelopes, so any reordering shows up in completion order.
+   */
+  private static class SlowCipher extends SignalServiceCipher {
+
+    private SlowCipher() {
+      super(new SignalServiceAddress(UUID.randomUUID(), "+14153333333"), null, null);
+    }
+
+    @Override
+    public SignalServiceContent decrypt(SignalServiceEnvelope envelope) {
+      try {
+        Thread.sleep(Math.max(0, 150 - envelope.getTimestamp() * 25));
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+
+      return null;
+    }
+  }
+
+  private static class RecordingCallback implements ParallelEnvelopeDecryptor.DecryptionCallback {
+
+    private final List<Long>     decrypted = Collections.synchronizedList(new LinkedList<Long>());
+    private final List<Long>     failed    = Collections.synchronizedList(new LinkedList<Long>());
+    private final CountDownLatch latch;
+
+    private RecordingCallback(int count) {
+      this.latch = new CountDownLatch(count);
+    }
+
+    @Override
+    public void onDecrypted(SignalServiceEnvelope envelope, SignalServiceContent content) {
+      decrypted.add(envelope.getTimestamp());
+      latch.countDown();
+    }
+
+    @Override
+    public void onFailure(SignalServiceEnvelope envelope, Exception exception) {
+      failed.add(envelope.getTimestamp());
+      latch.countDown();
+    }
+
+    boolean await() throws InterruptedException {
+      return latch.await(10, TimeUnit.SECONDS);
+    }
+
+    List<Long> getDecrypted() {
+      return decrypted;
+    }
+
+    List<Long> getFailed() {
+      return failed;
+    }
+  }
+}
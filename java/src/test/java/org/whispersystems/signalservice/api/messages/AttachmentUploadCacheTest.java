@@ -0,0 +1,66 @@
+package org.whispersystems.signalservice.api.messages;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.signalservice.internal.util.Util;
+
+public class AttachmentUploadCacheTest extends TestCase {
+
+  public void testReturnsCachedUpload() {
+    AttachmentUploadCache cache = new AttachmentUploadCache(10, 60 * 1000);
+    byte[]                hash  = Util.getSecretBytes(32);
+
+    cache.put(hash, createEntry(1, 100, System.currentTimeMillis()));
+
+    assertEquals(1, cache.get(hash, 100).get().getId());
+    assertFalse(cache.get(Util.getSecretBytes(32), 100).isPresent());
+  }
+
+  public void testIgnoresLengthMismatch() {
+    AttachmentUploadCache cache = new AttachmentUploadCache(10, 60 * 1000);
+    byte[]                hash  = Util.getSecretBytes(32);
+
+    cache.put(hash, createEntry(1, 100, System.currentTimeMillis()));
+
+    assertFalse(cache.get(hash, 101).isPresent());
+  }
+
+  public void testExpiresEntries() {
+    AttachmentUploadCache cache = new AttachmentUploadCache(10, 60 * 1000);
+    byte[]                stale = Util.getSecretBytes(32);
+    byte[]                fresh = Util.getSecretBytes(32);
+
+    cache.put(stale, createEntry(1, 100, System.currentTimeMillis() - 61 * 1000));
+    cache.put(fresh, createEntry(2, 100, System.currentTimeMillis()));
+
+    assertFalse(cache.get(stale, 100).isPresent());
+    assertEquals(1, cache.size());
+
+    cache.put(stale, createEntry(1, 100, System.currentTimeMillis() - 61 * 1000));
+    cache.prune();
+
+    assertEquals(1, cache.size());
+    assertTrue(cache.get(fresh, 100).isPresent());
+  }
+
+  public void testEvictsLeastRecentlyUsed() {
+    AttachmentUploadCache cache  = new AttachmentUploadCache(2, 60 * 1000);
+    byte[]                first  = Util.getSecretBytes(32);
+    byte[]                second = Util.getSecretBytes(32);
+    byte[]                third  = Util.getSecretBytes(32);
+
+    cache.put(first, createEntry(1, 100, System.currentTimeMillis()));
+    cache.put(second, createEntry(2, 100, System.currentTimeMillis()));
+    cache.get(first, 100);
+    cache.put(third, createEntry(3, 100, System.currentTimeMillis()));
+
+    assertEquals(2, cache.size());
+    assertTrue(cache.get(first, 100).isPresent());
+    assertFalse(cache.get(second, 100).isPresent());
+    assertTrue(cache.get(third, 100).isPresent());
+  }
+
+  private static AttachmentUploadCache.Entry createEntry(long id, long length, long timestamp) {
+    return new AttachmentUploadCache.Entry(id, Util.getSecretBytes(64), Util.getSecretBytes(32), length, timestamp);
+  }
+}
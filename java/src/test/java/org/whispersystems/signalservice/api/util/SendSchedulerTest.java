@@ -0,0 +1,104 @@
+package org.whispersystems.signalservice.api.util;
+
+import junit.framework.TestCase;
+
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SendSchedulerTest extends TestCase {
+
+  private static final SendScheduler.Rate UNLIMITED = new SendScheduler.Rate(1000, 1000);
+
+  public void testPacesDestination() throws Exception {
+    SendScheduler scheduler = new SendScheduler(UNLIMITED, UNLIMITED, new SendScheduler.Rate(20, 1));
+    long          start     = System.nanoTime();
+
+    for (int i = 0; i < 3; i++) {
+      scheduler.acquire("account", "destination", SendScheduler.Priority.INTERACTIVE);
+    }
+
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 90);
+  }
+
+  public void testDestinationsAreIndependent() throws Exception {
+    SendScheduler scheduler = new SendScheduler(UNLIMITED, UNLIMITED, new SendScheduler.Rate(0.1, 1));
+    long          start     = System.nanoTime();
+
+    for (int i = 0; i < 10; i++) {
+      scheduler.acquire("account", "destination-" + i, SendScheduler.Priority.INTERACTIVE);
+    }
+
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+  }
+
+  public void testForgetsLeastRecentlyUsedDestinations() throws Exception {
+    SendScheduler.Rate unlimited = new SendScheduler.Rate(1000000, 10000);
+    SendScheduler      scheduler = new SendScheduler(unlimited, unlimited, new SendScheduler.Rate(0.01, 1));
+
+    scheduler.acquire("account", "forgotten", SendScheduler.Priority.INTERACTIVE);
+
+    for (int i = 0; i < 1024; i++) {
+      scheduler.acquire("account", "destination-" + i, SendScheduler.Priority.INTERACTIVE);
+    }
+
+    long start = System.nanoTime();
+
+    scheduler.acquire("account", "forgotten", SendScheduler.Priority.INTERACTIVE);
+
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+  }
+
+  public void testInteractiveBeforeBulk() throws Exception {
+    final SendScheduler scheduler = new SendScheduler(new SendScheduler.Rate(5, 1), UNLIMITED, UNLIMITED);
+    final List<String>  order     = Collections.synchronizedList(new LinkedList<String>());
+
+    scheduler.acquire("account", "warmup", SendScheduler.Priority.INTERACTIVE);
+
+    Thread bulk        = createSender(scheduler, "bulk", SendScheduler.Priority.BULK, order);
+    Thread interactive = createSender(scheduler, "interactive", SendScheduler.Priority.INTERACTIVE, order);
+
+    bulk.start();
+    Thread.sleep(50);
+    interactive.start();
+
+    bulk.join(5000);
+    interactive.join(5000);
+
+    assertEquals(2, order.size());
+    assertEquals("interactive", order.get(0));
+    assertEquals("bulk", order.get(1));
+  }
+
+  public void testRateLimitDrainsAccount() throws Exception {
+    SendScheduler scheduler = new SendScheduler(UNLIMITED, new SendScheduler.Rate(10, 5), UNLIMITED);
+
+    scheduler.acquire("account", "destination", SendScheduler.Priority.INTERACTIVE);
+    scheduler.onRateLimited("account");
+
+    long start = System.nanoTime();
+    scheduler.acquire("account", "destination", SendScheduler.Priority.INTERACTIVE);
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 80);
+
+    start = System.nanoTime();
+    scheduler.acquire("other", "destination", SendScheduler.Priority.INTERACTIVE);
+    assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 50);
+  }
+
+  private Thread createSender(final SendScheduler scheduler, final String destination,
+                              final SendScheduler.Priority priority, final List<String> order)
+  {
+    return new Thread() {
+      @Override
+      public void run() {
+        try {
+          scheduler.acquire("account", destination, priority);
+          order.add(destination);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+  }
+}
@@ -0,0 +1,241 @@
+package org.whispersystems.signalservice.internal.util.concurrent;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PartitionedExecutorTest extends TestCase {
+
+  private ExecutorService pool;
+
+  @Override
+  protected void setUp() {
+    pool = Executors.newFixedThreadPool(8);
+  }
+
+  @Override
+  protected void tearDown() {
+    pool.shutdownNow();
+  }
+
+  public void testRunsPartitionInSubmissionOrder() throws InterruptedException {
+    PartitionedExecutor executor = new PartitionedExecutor(pool, new FailingDropListener());
+    List<List<Integer>> results  = new ArrayList<>();
+    CountDownLatch      done     = new CountDownLatch(200);
+
+    for (int i = 0; i < 4; i++) {
+      results.add(Collections.synchronizedList(new LinkedList<Integer>()));
+    }
+
+    for (int i = 0; i < 200; i++) {
+      executor.execute(i % 4, new RecordingTask(results.get(i % 4), i, done));
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+
+    for (List<Integer> result : results) {
+      assertEquals(50, result.size());
+
+      for (int i = 1; i < result.size(); i++) {
+        assertTrue(result.get(i - 1) < result.get(i));
+      }
+    }
+  }
+
+  public void testExclusiveWaitsForEarlierTasks() throws InterruptedException {
+    PartitionedExecutor executor = new PartitionedExecutor(pool, new FailingDropListener());
+    List<String>        order    = Collections.synchronizedList(new LinkedList<String>());
+    CountDownLatch      done     = new CountDownLatch(3);
+
+    executor.execute("a", new SlowTask(order, "a1", 200, done));
+    executor.execute("b", new SlowTask(order, "b1", 100, done));
+    executor.executeExclusive(new SlowTask(order, "exclusive", 0, done));
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals("exclusive", order.get(2));
+  }
+
+  public void testLaterTasksWaitForExclusive() throws InterruptedException {
+    PartitionedExecutor executor = new PartitionedExecutor(pool, new FailingDropListener());
+    List<String>        order    = Collections.synchronizedList(new LinkedList<String>());
+    CountDownLatch      done     = new CountDownLatch(5);
+
+    executor.execute("a", new SlowTask(order, "a1", 100, done));
+    executor.executeExclusive(new SlowTask(order, "exclusive1", 200, done));
+    executor.execute("b", new SlowTask(order, "b1", 0, done));
+    executor.executeExclusive(new SlowTask(order, "exclusive2", 0, done));
+    executor.execute("a", new SlowTask(order, "a2", 0, done));
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(5, order.size());
+    assertEquals(order.toString(), "[a1, exclusive1, b1, exclusive2, a2]", order.toString());
+  }
+
+  public void testExclusiveRunsAlone() throws InterruptedException {
+    final PartitionedExecutor executor = new PartitionedExecutor(pool, new FailingDropListener());
+    final AtomicInteger       running  = new AtomicInteger();
+    final AtomicInteger       overlaps = new AtomicInteger();
+    final CountDownLatch      done     = new CountDownLatch(100);
+
+    for (int i = 0; i < 100; i++) {
+      final boolean exclusive = i % 10 == 0;
+
+      Runnable task = new Runnable() {
+        @Override
+        public void run() {
+          int concurrent = running.incrementAndGet();
+
+          if (exclusive && concurrent != 1) overlaps.incrementAndGet();
+
+          try {
+            Thread.sleep(2);
+          } catch (InterruptedException e) {
+            throw new AssertionError(e);
+          }
+
+          if (exclusive && running.get() != 1) overlaps.incrementAndGet();
+
+          running.decrementAndGet();
+          done.countDown();
+        }
+      };
+
+      if (exclusive) executor.executeExclusive(task);
+      else           executor.execute(i % 7, task);
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertEquals(0, overlaps.get());
+  }
+
+  public void testRejectionDropsQueuedTasks() {
+    final List<Runnable> dropped  = new LinkedList<>();
+    ManualExecutor       manual   = new ManualExecutor(2);
+    PartitionedExecutor  executor = new PartitionedExecutor(manual, new PartitionedExecutor.DropListener() {
+      @Override
+      public void onDropped(Runnable task) {
+        dropped.add(task);
+      }
+    });
+
+    Runnable a1 = new NoopTask();
+    Runnable a2 = new NoopTask();
+    Runnable b1 = new NoopTask();
+    Runnable c1 = new NoopTask();
+
+    executor.execute("a", a1);
+    executor.execute("a", a2);
+    executor.execute("b", b1);
+
+    try {
+      executor.execute("c", c1);
+      fail();
+    } catch (RejectedExecutionException e) {
+      // Expected
+    }
+
+    assertEquals(3, dropped.size());
+    assertTrue(dropped.containsAll(Arrays.asList(a1, a2, b1)));
+
+    try {
+      executor.execute("d", new NoopTask());
+      fail();
+    } catch (RejectedExecutionException e) {
+      // Expected
+    }
+
+    manual.runAll();
+    assertEquals(3, dropped.size());
+  }
+
+  private static class RecordingTask implements Runnable {
+
+    private final List<Integer>  result;
+    private final int            value;
+    private final CountDownLatch done;
+
+    private RecordingTask(List<Integer> result, int value, CountDownLatch done) {
+      this.result = result;
+      this.value  = value;
+      this.done   = done;
+    }
+
+    @Override
+    public void run() {
+      result.add(value);
+      done.countDown();
+    }
+  }
+
+  private static class SlowTask implements Runnable {
+
+    private final List<String>   order;
+    private final String         name;
+    private final long           delayMillis;
+    private final CountDownLatch done;
+
+    private SlowTask(List<String> order, String name, long delayMillis, CountDownLatch done) {
+      this.order       = order;
+      this.name        = name;
+      this.delayMillis = delayMillis;
+      this.done        = done;
+    }
+
+    @Override
+    public void run() {
+      try {
+        Thread.sleep(delayMillis);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+
+      order.add(name);
+      done.countDown();
+    }
+  }
+
+  private static class NoopTask implements Runnable {
+    @Override
+    public void run() {}
+  }
+
+  private static class FailingDropListener implements PartitionedExecutor.DropListener {
+    @Override
+    public void onDropped(Runnable task) {
+      throw new AssertionError("Dropped " + task);
+    }
+  }
+
+  private static class ManualExecutor implements Executor {
+
+    private final List<Runnable> queued = new LinkedList<>();
+    private final int            capacity;
+
+    private ManualExecutor(int capacity) {
+      this.capacity = capacity;
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+      if (queued.size() >= capacity) throw new RejectedExecutionException();
+      queued.add(runnable);
+    }
+
+    void runAll() {
+      for (Runnable runnable : new ArrayList<>(queued)) {
+        runnable.run();
+      }
+    }
+  }
+}
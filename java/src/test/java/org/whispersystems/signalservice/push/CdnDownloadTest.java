@@ -0,0 +1,243 @@
+package org.whispersystems.signalservice.push;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.signalservice.internal.push.PushServiceSocket;
+import org.whispersystems.signalservice.internal.push.RetryPolicy;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import okio.Buffer;
+
+public class CdnDownloadTest extends TestCase {
+
+  private static final int ATTACHMENT_SIZE = 3 * 1024 * 1024 + 17;
+
+  private MockWebServer     server;
+  private RangedDispatcher  dispatcher;
+  private PushServiceSocket socket;
+  private byte[]            attachment;
+  private File              destination;
+
+  @Override
+  protected void setUp() throws IOException {
+    attachment  = Util.getSecretBytes(ATTACHMENT_SIZE);
+    dispatcher  = new RangedDispatcher(attachment);
+    destination = File.createTempFile("attachment", ".download");
+    server      = new MockWebServer();
+
+    server.setDispatcher(dispatcher);
+    server.start();
+
+    socket = new PushServiceSocket(MockServiceConfiguration.forServer(server), null, "test");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    server.shutdown();
+    destination.delete();
+  }
+
+  public void testResumesInterruptedDownload() throws IOException {
+    dispatcher.interrupt(0);
+
+    socket.retrieveAttachment(1, destination, ATTACHMENT_SIZE, null);
+
+    assertTrue(Arrays.equals(attachment, readFully(destination)));
+    assertEquals(2, dispatcher.gets.size());
+    assertNull(dispatcher.gets.get(0));
+    assertTrue(dispatcher.gets.get(1).startsWith("bytes="));
+    assertFalse(dispatcher.gets.get(1).equals("bytes=0-"));
+  }
+
+  public void testResumesPartialFile() throws IOException {
+    try (RandomAccessFile partial = new RandomAccessFile(destination, "rw")) {
+      partial.write(attachment, 0, 1000);
+    }
+
+    socket.retrieveAttachment(1, destination, ATTACHMENT_SIZE, null, true);
+
+    assertTrue(Arrays.equals(attachment, readFully(destination)));
+    assertEquals(Collections.singletonList("bytes=1000-"), dispatcher.gets);
+  }
+
+  public void testSegmentedDownload() throws IOException {
+    socket.retrieveAttachmentSegmented(1, destination, ATTACHMENT_SIZE, 8, null);
+
+    assertTrue(Arrays.equals(attachment, readFully(destination)));
+    assertEquals(3, dispatcher.gets.size());
+  }
+
+  public void testSegmentedDownloadResumesInterruptedSegment() throws IOException {
+    dispatcher.interrupt(ATTACHMENT_SIZE / 3);
+
+    socket.retrieveAttachmentSegmented(1, destination, ATTACHMENT_SIZE, 3, null);
+
+    assertTrue(Arrays.equals(attachment, readFully(destination)));
+    assertEquals(4, dispatcher.gets.size());
+  }
+
+  public void testSegmentedDownloadFallsBackWithoutRangeSupport() throws IOException {
+    dispatcher.rangesSupported = false;
+
+    socket.retrieveAttachmentSegmented(1, destination, ATTACHMENT_SIZE, 3, null);
+
+    assertTrue(Arrays.equals(attachment, readFully(destination)));
+    assertEquals(1, dispatcher.gets.size());
+  }
+
+  public void testSegmentedDownloadStopsSegmentsOnFailure() throws IOException, InterruptedException {
+    dispatcher.fail(0);
+    dispatcher.throttled = true;
+
+    try {
+      socket.retrieveAttachmentSegmented(1, destination, ATTACHMENT_SIZE, 3, null);
+      fail();
+    } catch (NonSuccessfulResponseCodeException e) {
+      // Expected
+    }
+
+    byte[] afterFailure = readFully(destination);
+
+    Thread.sleep(250);
+
+    assertTrue(Arrays.equals(afterFailure, readFully(destination)));
+  }
+
+  public void testSegmentedDownloadRetriesServerErrors() throws IOException {
+    RetryPolicy policy = new RetryPolicy(3, 10, 50, 60 * 1000);
+
+    socket = new PushServiceSocket(MockServiceConfiguration.forServer(server, policy), null, "test");
+
+    dispatcher.serverErrors(1, ATTACHMENT_SIZE / 3);
+
+    socket.retrieveAttachmentSegmented(1, destination, ATTACHMENT_SIZE, 3, null);
+
+    assertTrue(Arrays.equals(attachment, readFully(destination)));
+    assertEquals(2, policy.getMetrics().getRetries());
+  }
+
+  public void testSegmentedDownloadRejectsOversizedAttachment() {
+    try {
+      socket.retrieveAttachmentSegmented(1, destination, ATTACHMENT_SIZE - 1, 3, null);
+      fail();
+    } catch (IOException e) {
+      assertTrue(dispatcher.gets.isEmpty());
+    }
+  }
+
+  private static byte[] readFully(File file) throws IOException {
+    try (InputStream in = new FileInputStream(file)) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      Util.copy(in, out);
+      return out.toByteArray();
+    }
+  }
+
+  /**
+   * Serves one object, honoring single byte ranges, and can drop the connection
+   * halfway through the first response that starts at a given offset, fail every
+   * request for a range that starts there, or answer with server errors.
+   */
+  private static class RangedDispatcher extends Dispatcher {
+
+    private final byte[]       data;
+    private final List<String> gets = Collections.synchronizedList(new LinkedList<String>());
+
+    private volatile boolean rangesSupported = true;
+    private volatile long    interruptAt     = -1;
+    private volatile long    failAt          = -1;
+    private volatile boolean throttled;
+    private volatile int     failHeads;
+    private volatile long    serverErrorAt   = -1;
+
+    private RangedDispatcher(byte[] data) {
+      this.data = data;
+    }
+
+    void interrupt(long offset) {
+      interruptAt = offset;
+    }
+
+    void fail(long offset) {
+      failAt = offset;
+    }
+
+    /**
+     * Answers the next HEADs, and the first range request starting at the offset, with 503s.
+     */
+    void serverErrors(int heads, long offset) {
+      failHeads     = heads;
+      serverErrorAt = offset;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+      if (request.getMethod().equals("HEAD")) {
+        if (failHeads > 0) {
+          failHeads--;
+          return new MockResponse().setResponseCode(503);
+        }
+
+        MockResponse response = new MockResponse().setHeader("Content-Length", data.length);
+        return rangesSupported ? response.setHeader("Accept-Ranges", "bytes") : response;
+      }
+
+      String range = request.getHeader("Range");
+      gets.add(range);
+
+      if (range == null || !rangesSupported) {
+        return interruptIfRequested(0, new MockResponse().setBody(new Buffer().write(data)));
+      }
+
+      String[] bounds = range.substring("bytes=".length()).split("-", -1);
+      int      start  = Integer.parseInt(bounds[0]);
+      int      end    = bounds[1].isEmpty() ? data.length : Integer.parseInt(bounds[1]) + 1;
+
+      if (start == failAt) {
+        return new MockResponse().setResponseCode(404);
+      }
+
+      if (start == serverErrorAt) {
+        serverErrorAt = -1;
+        return new MockResponse().setResponseCode(503);
+      }
+
+      MockResponse response = new MockResponse().setResponseCode(206)
+                                                .setHeader("Content-Range", "bytes " + start + "-" + (end - 1) + "/" + data.length)
+                                                .setBody(new Buffer().write(Arrays.copyOfRange(data, start, end)));
+
+      if (throttled) {
+        response.throttleBody(64 * 1024, 50, TimeUnit.MILLISECONDS);
+      }
+
+      return interruptIfRequested(start, response);
+    }
+
+    private synchronized MockResponse interruptIfRequested(long start, MockResponse response) {
+      if (start == interruptAt) {
+        interruptAt = -1;
+        return response.setSocketPolicy(SocketPolicy.DISCONNECT_DURING_RESPONSE_BODY);
+      }
+
+      return response;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package org.whispersystems.signalservice.push;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.signalservice.internal.push.PushServiceSocket;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+public class EndpointSelectionTest extends TestCase {
+
+  private MockWebServer first;
+  private MockWebServer second;
+
+  @Override
+  protected void setUp() throws IOException {
+    first  = new MockWebServer();
+    second = new MockWebServer();
+
+    first.start();
+    second.start();
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    first.shutdown();
+    second.shutdown();
+  }
+
+  public void testAvoidsFailingEndpoint() {
+    first.setDispatcher(new PreKeyCountDispatcher(500, 0));
+    second.setDispatcher(new PreKeyCountDispatcher(200, 0));
+
+    PushServiceSocket socket    = createSocket();
+    int               succeeded = 0;
+
+    for (int i = 0; i < 20; i++) {
+      try {
+        assertEquals(5, socket.getAvailablePreKeys());
+        succeeded++;
+      } catch (IOException e) {
+        // The failing endpoint was tried first.
+      }
+    }
+
+    assertTrue(first.getRequestCount() <= 1);
+    assertEquals(20 - first.getRequestCount(), succeeded);
+  }
+
+  public void testPrefersFasterEndpoint() throws IOException {
+    first.setDispatcher(new PreKeyCountDispatcher(200, 300));
+    second.setDispatcher(new PreKeyCountDispatcher(200, 0));
+
+    PushServiceSocket socket = createSocket();
+
+    for (int i = 0; i < 20; i++) {
+      assertEquals(5, socket.getAvailablePreKeys());
+    }
+
+    assertTrue(first.getRequestCount() <= 1);
+  }
+
+  private PushServiceSocket createSocket() {
+    return new PushServiceSocket(MockServiceConfiguration.forServers(first, second),
+                                 MockServiceConfiguration.createCredentials(),
+                                 "test");
+  }
+
+  private static class PreKeyCountDispatcher extends Dispatcher {
+
+    private final int  responseCode;
+    private final long delayMillis;
+
+    private PreKeyCountDispatcher(int responseCode, long delayMillis) {
+      this.responseCode = responseCode;
+      this.delayMillis  = delayMillis;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+      return new MockResponse().setResponseCode(responseCode)
+                               .setHeadersDelay(delayMillis, TimeUnit.MILLISECONDS)
+                               .setBody("{\"count\":5}");
+    }
+  }
+}
@@ -0,0 +1,196 @@
+package org.whispersystems.signalservice.push;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.signalservice.api.push.exceptions.UnregisteredUserException;
+import org.whispersystems.signalservice.internal.push.HedgingPolicy;
+import org.whispersystems.signalservice.internal.push.PushServiceSocket;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+public class HedgedRequestTest extends TestCase {
+
+  private MockWebServer first;
+  private MockWebServer second;
+
+  @Override
+  protected void setUp() throws IOException {
+    first  = new MockWebServer();
+    second = new MockWebServer();
+
+    first.start();
+    second.start();
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    first.shutdown();
+    second.shutdown();
+  }
+
+  public void testHedgesSlowEndpoint() throws IOException {
+    first.setDispatcher(new DelayedDispatcher(2000));
+    second.setDispatcher(new DelayedDispatcher(0));
+
+    PushServiceSocket socket = createSocket(new HedgingPolicy(0.95, 100, 100, 1.0, 10));
+
+    for (int i = 0; i < 3; i++) {
+      long start = System.currentTimeMillis();
+
+      assertEquals(5, socket.getAvailablePreKeys());
+      assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+  }
+
+  public void testHedgesCdnReads() throws IOException {
+    first.setDispatcher(new DelayedDispatcher(2000));
+    second.setDispatcher(new DelayedDispatcher(0));
+
+    PushServiceSocket socket = createSocket(new HedgingPolicy(0.95, 100, 100, 1.0, 10));
+    long              start  = System.currentTimeMillis();
+
+    assertTrue(Arrays.equals("{\"count\":5}".getBytes(), socket.retrieveStickerManifest(new byte[16])));
+    assertTrue(System.currentTimeMillis() - start < 1500);
+  }
+
+  public void testHedgesServerError() throws IOException {
+    first.setDispatcher(new FixedDispatcher(new MockResponse().setResponseCode(500)));
+    second.setDispatcher(new DelayedDispatcher(200));
+
+    PushServiceSocket socket = createSocket(new HedgingPolicy(0.95, 2000, 2000, 1.0, 10));
+
+    for (int i = 0; i < 3; i++) {
+      long start = System.currentTimeMillis();
+
+      assertEquals(5, socket.getAvailablePreKeys());
+      assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+  }
+
+  public void testHedgesFailedPrimary() throws IOException {
+    first.setDispatcher(new FixedDispatcher(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START)));
+    second.setDispatcher(new DelayedDispatcher(200));
+
+    PushServiceSocket socket = createSocket(new HedgingPolicy(0.95, 2000, 2000, 1.0, 10));
+
+    for (int i = 0; i < 3; i++) {
+      long start = System.currentTimeMillis();
+
+      assertEquals(5, socket.getAvailablePreKeys());
+      assertTrue(System.currentTimeMillis() - start < 1500);
+    }
+  }
+
+  public void testReturnsServerErrorWhenNoCallWins() {
+    first.setDispatcher(new FixedDispatcher(new MockResponse().setResponseCode(503)));
+    second.setDispatcher(new FixedDispatcher(new MockResponse().setResponseCode(503)));
+
+    PushServiceSocket socket = createSocket(new HedgingPolicy(0.95, 50, 50, 1.0, 10));
+
+    try {
+      socket.getAvailablePreKeys();
+      fail();
+    } catch (NonSuccessfulResponseCodeException e) {
+      // Expected
+    } catch (IOException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  public void testDoesNotHedgePreKeyFetches() throws IOException {
+    MockResponse notFound = new MockResponse().setResponseCode(404).setHeadersDelay(300, TimeUnit.MILLISECONDS);
+
+    first.setDispatcher(new FixedDispatcher(notFound));
+    second.setDispatcher(new FixedDispatcher(notFound));
+
+    PushServiceSocket socket = createSocket(new HedgingPolicy(0.95, 50, 50, 1.0, 10));
+
+    try {
+      socket.getPreKeys(new SignalServiceAddress(Optional.<UUID>absent(), Optional.of("+14151111111")), Optional.<UnidentifiedAccess>absent(), 1);
+      fail();
+    } catch (UnregisteredUserException e) {
+      // Expected
+    }
+
+    assertEquals(1, first.getRequestCount() + second.getRequestCount());
+  }
+
+  public void testBudgetLimitsHedges() throws IOException {
+    first.setDispatcher(new DelayedDispatcher(300));
+    second.setDispatcher(new DelayedDispatcher(300));
+
+    PushServiceSocket socket = createSocket(new HedgingPolicy(0.95, 50, 50, 0.0, 10));
+
+    for (int i = 0; i < 4; i++) {
+      assertEquals(5, socket.getAvailablePreKeys());
+    }
+
+    assertEquals(4, first.getRequestCount() + second.getRequestCount());
+  }
+
+  public void testHedgesWithinBudget() throws IOException {
+    first.setDispatcher(new DelayedDispatcher(300));
+    second.setDispatcher(new DelayedDispatcher(300));
+
+    PushServiceSocket socket = createSocket(new HedgingPolicy(0.95, 50, 50, 1.0, 10));
+
+    for (int i = 0; i < 4; i++) {
+      assertEquals(5, socket.getAvailablePreKeys());
+    }
+
+    assertEquals(8, first.getRequestCount() + second.getRequestCount());
+  }
+
+  private PushServiceSocket createSocket(HedgingPolicy hedgingPolicy) {
+    return new PushServiceSocket(MockServiceConfiguration.forServers(first, second, hedgingPolicy),
+                                 MockServiceConfiguration.createCredentials(),
+                                 "test");
+  }
+
+  private static class FixedDispatcher extends Dispatcher {
+
+    private final MockResponse response;
+
+    private FixedDispatcher(MockResponse response) {
+      this.response = response;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+      return response;
+    }
+
+    @Override
+    public MockResponse peek() {
+      return response;
+    }
+  }
+
+  private static class DelayedDispatcher extends Dispatcher {
+
+    private final long delayMillis;
+
+    private DelayedDispatcher(long delayMillis) {
+      this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) {
+      return new MockResponse().setHeadersDelay(delayMillis, TimeUnit.MILLISECONDS)
+                               .setBody("{\"count\":5}");
+    }
+  }
+}
@@ -0,0 +1,182 @@
+package org.whispersystems.signalservice.push;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.signalservice.internal.configuration.SignalServiceUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalUrl;
+import org.whispersystems.signalservice.internal.push.OkHttpClientFactory;
+import org.whispersystems.signalservice.internal.push.PushServiceSocket;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+public class Http2ConnectionTest extends TestCase {
+
+  private MockWebServer server;
+
+  @Override
+  protected void setUp() throws IOException {
+    server = new MockWebServer();
+    server.setProtocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE));
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  public void testMultiplexesConcurrentRequests() throws Exception {
+    ConcurrencyDispatcher dispatcher = new ConcurrencyDispatcher(200);
+    server.setDispatcher(dispatcher);
+
+    sendConcurrently(createSocket(new PlaintextClientFactory(8)), 8);
+
+    assertEquals(8, server.getRequestCount());
+    assertEquals(8, dispatcher.getSequenceNumbers().size());
+    assertTrue(dispatcher.getMaxConcurrent() > 1);
+  }
+
+  public void testLimitsConcurrentStreams() throws Exception {
+    ConcurrencyDispatcher dispatcher = new ConcurrencyDispatcher(200);
+    server.setDispatcher(dispatcher);
+
+    sendConcurrently(createSocket(new PlaintextClientFactory(2)), 6);
+
+    assertEquals(6, server.getRequestCount());
+    assertEquals(6, dispatcher.getSequenceNumbers().size());
+    assertTrue(dispatcher.getMaxConcurrent() <= 2);
+  }
+
+  public void testHoldsStreamUntilBodyIsRead() throws Exception {
+    server.setDispatcher(new Dispatcher() {
+      @Override
+      public MockResponse dispatch(RecordedRequest request) {
+        return new MockResponse().setBody("{\"count\":5}")
+                                 .throttleBody(1, 30, TimeUnit.MILLISECONDS);
+      }
+    });
+
+    long start = System.currentTimeMillis();
+
+    sendConcurrently(createSocket(new PlaintextClientFactory(1)), 2);
+
+    assertTrue(System.currentTimeMillis() - start >= 600);
+  }
+
+  public void testKeepsDefaultProtocolsWithoutHttp2() {
+    OkHttpClientFactory factory = MockServiceConfiguration.createPlaintextClientFactory();
+    SignalServiceUrl    url     = new SignalServiceUrl(MockServiceConfiguration.getUrl(server), null);
+
+    assertEquals(new OkHttpClient().protocols(), factory.getClient(url).protocols());
+  }
+
+  public void testLeavesSharedDispatcherAlone() {
+    final okhttp3.Dispatcher shared = new okhttp3.Dispatcher();
+
+    OkHttpClientFactory factory = new OkHttpClientFactory(2) {
+      @Override
+      protected OkHttpClient createClient(SignalUrl url) {
+        return new OkHttpClient.Builder().dispatcher(shared).build();
+      }
+    };
+
+    OkHttpClient client = factory.getClient(new SignalServiceUrl(MockServiceConfiguration.getUrl(server), null));
+
+    assertEquals(5, shared.getMaxRequestsPerHost());
+    assertEquals(2, client.dispatcher().getMaxRequestsPerHost());
+  }
+
+  private void sendConcurrently(final PushServiceSocket socket, int count) throws Exception {
+    ExecutorService       executor = Executors.newFixedThreadPool(count);
+    List<Future<Integer>> results  = new LinkedList<>();
+
+    try {
+      for (int i = 0; i < count; i++) {
+        results.add(executor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws IOException {
+            return socket.getAvailablePreKeys();
+          }
+        }));
+      }
+
+      for (Future<Integer> result : results) {
+        assertEquals(5, (int) result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private PushServiceSocket createSocket(OkHttpClientFactory clientFactory) {
+    return new PushServiceSocket(MockServiceConfiguration.forServer(server, clientFactory), MockServiceConfiguration.createCredentials(), "test");
+  }
+
+  private static class PlaintextClientFactory extends OkHttpClientFactory {
+
+    private PlaintextClientFactory(int maxConcurrentStreams) {
+      super(maxConcurrentStreams);
+    }
+
+    @Override
+    protected OkHttpClient createClient(SignalUrl url) {
+      return new OkHttpClient();
+    }
+  }
+
+  private static class ConcurrencyDispatcher extends Dispatcher {
+
+    private final long          delayMillis;
+    private final AtomicInteger concurrent      = new AtomicInteger();
+    private final AtomicInteger maxConcurrent   = new AtomicInteger();
+    private final Set<Integer>  sequenceNumbers = Collections.synchronizedSet(new HashSet<Integer>());
+
+    private ConcurrencyDispatcher(long delayMillis) {
+      this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+      sequenceNumbers.add(request.getSequenceNumber());
+
+      int current = concurrent.incrementAndGet();
+
+      synchronized (maxConcurrent) {
+        maxConcurrent.set(Math.max(maxConcurrent.get(), current));
+      }
+
+      try {
+        Thread.sleep(delayMillis);
+        return new MockResponse().setBody("{\"count\":5}");
+      } finally {
+        concurrent.decrementAndGet();
+      }
+    }
+
+    int getMaxConcurrent() {
+      return maxConcurrent.get();
+    }
+
+    Set<Integer> getSequenceNumbers() {
+      return sequenceNumbers;
+    }
+  }
+}
@@ -0,0 +1,98 @@
+package org.whispersystems.signalservice.push;
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.push.TrustStore;
+import org.whispersystems.signalservice.internal.configuration.SignalCdnUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalContactDiscoveryUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceConfiguration;
+import org.whispersystems.signalservice.internal.configuration.SignalServiceUrl;
+import org.whispersystems.signalservice.internal.configuration.SignalUrl;
+import org.whispersystems.signalservice.internal.push.HedgingPolicy;
+import org.whispersystems.signalservice.internal.push.OkHttpClientFactory;
+import org.whispersystems.signalservice.internal.push.RetryPolicy;
+import org.whispersystems.signalservice.internal.util.StaticCredentialsProvider;
+
+import java.io.InputStream;
+import java.util.UUID;
+
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * Configurations that point the service, CDN and contact discovery URLs at
+ * MockWebServers over plaintext HTTP.
+ */
+public class MockServiceConfiguration {
+
+  private static final TrustStore UNUSED_TRUST_STORE = new TrustStore() {
+    @Override
+    public InputStream getKeyStoreInputStream() {
+      throw new AssertionError();
+    }
+
+    @Override
+    public String getKeyStorePassword() {
+      throw new AssertionError();
+    }
+  };
+
+  public static SignalServiceConfiguration forServer(MockWebServer server) {
+    return forServer(server, createPlaintextClientFactory());
+  }
+
+  public static SignalServiceConfiguration forServer(MockWebServer server, OkHttpClientFactory clientFactory) {
+    return create(new MockWebServer[] {server}, clientFactory, Optional.<HedgingPolicy>absent(), Optional.<RetryPolicy>absent());
+  }
+
+  public static SignalServiceConfiguration forServer(MockWebServer server, RetryPolicy retryPolicy) {
+    return create(new MockWebServer[] {server}, createPlaintextClientFactory(), Optional.<HedgingPolicy>absent(), Optional.of(retryPolicy));
+  }
+
+  /**
+   * Service and CDN requests may go to either server, contact discovery only to the first.
+   */
+  public static SignalServiceConfiguration forServers(MockWebServer first, MockWebServer second) {
+    return create(new MockWebServer[] {first, second}, createPlaintextClientFactory(), Optional.<HedgingPolicy>absent(), Optional.<RetryPolicy>absent());
+  }
+
+  public static SignalServiceConfiguration forServers(MockWebServer first, MockWebServer second, HedgingPolicy hedgingPolicy) {
+    return create(new MockWebServer[] {first, second}, createPlaintextClientFactory(), Optional.of(hedgingPolicy), Optional.<RetryPolicy>absent());
+  }
+
+  /**
+   * @return A factory whose clients are plain OkHttpClients, which unlike the default
+   *         ones don't need a trust store.
+   */
+  public static OkHttpClientFactory createPlaintextClientFactory() {
+    return new OkHttpClientFactory() {
+      @Override
+      protected OkHttpClient createClient(SignalUrl url) {
+        return new OkHttpClient();
+      }
+    };
+  }
+
+  public static StaticCredentialsProvider createCredentials() {
+    return new StaticCredentialsProvider(UUID.randomUUID(), "+14152222222", "password", null);
+  }
+
+  public static String getUrl(MockWebServer server) {
+    return "http://" + server.getHostName() + ":" + server.getPort();
+  }
+
+  private static SignalServiceConfiguration create(MockWebServer[] servers, OkHttpClientFactory clientFactory,
+                                                   Optional<HedgingPolicy> hedgingPolicy, Optional<RetryPolicy> retryPolicy)
+  {
+    SignalServiceUrl[] serviceUrls = new SignalServiceUrl[servers.length];
+    SignalCdnUrl[]     cdnUrls     = new SignalCdnUrl[servers.length];
+
+    for (int i = 0; i < servers.length; i++) {
+      serviceUrls[i] = new SignalServiceUrl(getUrl(servers[i]), UNUSED_TRUST_STORE);
+      cdnUrls[i]     = new SignalCdnUrl(getUrl(servers[i]), UNUSED_TRUST_STORE);
+    }
+
+    return new SignalServiceConfiguration(serviceUrls, cdnUrls,
+                                          new SignalContactDiscoveryUrl[] {new SignalContactDiscoveryUrl(getUrl(servers[0]), UNUSED_TRUST_STORE)},
+                                          clientFactory, hedgingPolicy, retryPolicy);
+  }
+}
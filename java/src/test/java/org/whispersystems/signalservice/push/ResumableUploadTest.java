@@ -0,0 +1,200 @@
+package org.whispersystems.signalservice.push;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.signalservice.api.crypto.AttachmentCipherOutputStream;
+import org.whispersystems.signalservice.api.push.exceptions.NonSuccessfulResponseCodeException;
+import org.whispersystems.signalservice.internal.push.PushServiceSocket;
+import org.whispersystems.signalservice.internal.push.ResumableUploadSpec;
+import org.whispersystems.signalservice.internal.util.JsonUtil;
+import org.whispersystems.signalservice.internal.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+public class ResumableUploadTest extends TestCase {
+
+  private static final int PLAINTEXT_SIZE = 3 * 1024 * 1024 + 5;
+
+  private MockWebServer       server;
+  private ResumableCdn        cdn;
+  private PushServiceSocket   socket;
+  private ResumableUploadSpec spec;
+  private byte[]              plaintext;
+  private byte[]              ciphertext;
+  private byte[]              digest;
+
+  @Override
+  protected void setUp() throws IOException {
+    byte[] key = Util.getSecretBytes(64);
+    byte[] iv  = Util.getSecretBytes(16);
+
+    ByteArrayOutputStream        expected = new ByteArrayOutputStream();
+    AttachmentCipherOutputStream encrypt  = new AttachmentCipherOutputStream(key, iv, expected);
+
+    plaintext = Util.getSecretBytes(PLAINTEXT_SIZE);
+    encrypt.write(plaintext);
+    encrypt.flush();
+
+    ciphertext = expected.toByteArray();
+    digest     = encrypt.getTransmittedDigest();
+    cdn        = new ResumableCdn(ciphertext.length);
+    server     = new MockWebServer();
+
+    server.setDispatcher(cdn);
+    server.start();
+
+    socket = new PushServiceSocket(MockServiceConfiguration.forServer(server), null, "test");
+    spec   = new ResumableUploadSpec(key, iv, socket.createResumableUpload("attachments/upload", Collections.singletonMap("Authorization", "signed")));
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  public void testUploadsInChunks() throws IOException {
+    byte[] uploadDigest = upload();
+
+    assertTrue(Arrays.equals(ciphertext, cdn.stored.toByteArray()));
+    assertTrue(Arrays.equals(digest, uploadDigest));
+    assertEquals(4, cdn.chunks);
+  }
+
+  public void testResendsUncommittedPartOfChunk() throws IOException {
+    cdn.partialChunk = 2;
+
+    byte[] uploadDigest = upload();
+
+    assertTrue(Arrays.equals(ciphertext, cdn.stored.toByteArray()));
+    assertTrue(Arrays.equals(digest, uploadDigest));
+  }
+
+  public void testRetriesDroppedChunk() throws IOException {
+    cdn.dropChunk = 2;
+
+    byte[] uploadDigest = upload();
+
+    assertTrue(Arrays.equals(ciphertext, cdn.stored.toByteArray()));
+    assertTrue(Arrays.equals(digest, uploadDigest));
+  }
+
+  public void testRetriesFailedStatusQuery() throws IOException {
+    cdn.garbleChunk   = 2;
+    cdn.garbleQueries = 1;
+
+    byte[] uploadDigest = upload();
+
+    assertTrue(Arrays.equals(ciphertext, cdn.stored.toByteArray()));
+    assertTrue(Arrays.equals(digest, uploadDigest));
+    assertEquals(0, cdn.garbleQueries);
+  }
+
+  public void testResumesAcrossCalls() throws IOException {
+    cdn.failChunk = 3;
+
+    try {
+      upload();
+      fail();
+    } catch (NonSuccessfulResponseCodeException e) {
+      // Expected
+    }
+
+    int storedBeforeResume = cdn.stored.size();
+
+    ResumableUploadSpec restored     = JsonUtil.fromJson(JsonUtil.toJson(spec), ResumableUploadSpec.class);
+    byte[]              uploadDigest = socket.uploadResumableAttachment(restored, new ByteArrayInputStream(plaintext), ciphertext.length, null);
+
+    assertEquals(2 * 1024 * 1024, storedBeforeResume);
+    assertTrue(Arrays.equals(ciphertext, cdn.stored.toByteArray()));
+    assertTrue(Arrays.equals(digest, uploadDigest));
+  }
+
+  private byte[] upload() throws IOException {
+    return socket.uploadResumableAttachment(spec, new ByteArrayInputStream(plaintext), ciphertext.length, null);
+  }
+
+  /**
+   * A single resumable upload session: a POST opens it, a PUT with "bytes *&#47;length"
+   * reports what's stored, and PUTs with a byte range append to it.
+   */
+  private static class ResumableCdn extends Dispatcher {
+
+    private final long                  length;
+    private final ByteArrayOutputStream stored = new ByteArrayOutputStream();
+
+    private volatile int partialChunk = -1;
+    private volatile int failChunk    = -1;
+    private volatile int dropChunk    = -1;
+    private volatile int garbleChunk  = -1;
+    private volatile int garbleQueries;
+    private volatile int chunks;
+
+    private ResumableCdn(long length) {
+      this.length = length;
+    }
+
+    @Override
+    public synchronized MockResponse dispatch(RecordedRequest request) {
+      if (request.getMethod().equals("POST")) {
+        assertEquals("start", request.getHeader("x-goog-resumable"));
+        assertEquals("signed", request.getHeader("Authorization"));
+        return new MockResponse().setResponseCode(201).setHeader("Location", "/upload/session");
+      }
+
+      String contentRange = request.getHeader("Content-Range");
+
+      if (contentRange.startsWith("bytes */")) {
+        if (chunks > 0 && garbleQueries > 0) {
+          garbleQueries--;
+          return garbled();
+        }
+
+        return status();
+      }
+
+      if (++chunks == failChunk) {
+        return new MockResponse().setResponseCode(503);
+      }
+
+      if (chunks == dropChunk) {
+        return new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AFTER_REQUEST);
+      }
+
+      if (chunks == garbleChunk) {
+        return garbled();
+      }
+
+      long   start = Long.parseLong(contentRange.substring("bytes ".length(), contentRange.indexOf('-')));
+      byte[] body  = request.getBody().readByteArray();
+
+      assertEquals(stored.size(), start);
+      stored.write(body, 0, chunks == partialChunk ? 1000 : body.length);
+
+      return status();
+    }
+
+    /**
+     * A response OkHttp fails to parse, and so won't retry on its own.
+     */
+    private MockResponse garbled() {
+      return new MockResponse().setStatus("garbled");
+    }
+
+    private MockResponse status() {
+      if (stored.size() == length) return new MockResponse().setResponseCode(200);
+      if (stored.size() == 0)      return new MockResponse().setResponseCode(308);
+
+      return new MockResponse().setResponseCode(308).setHeader("Range", "bytes=0-" + (stored.size() - 1));
+    }
+  }
+}
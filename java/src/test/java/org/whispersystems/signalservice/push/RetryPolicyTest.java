@@ -0,0 +1,167 @@
+package org.whispersystems.signalservice.push;
+
+import junit.framework.TestCase;
+
+import org.whispersystems.libsignal.util.guava.Optional;
+import org.whispersystems.signalservice.api.crypto.UnidentifiedAccess;
+import org.whispersystems.signalservice.api.push.SignalServiceAddress;
+import org.whispersystems.signalservice.api.push.exceptions.CircuitOpenException;
+import org.whispersystems.signalservice.api.push.exceptions.RateLimitException;
+import org.whispersystems.signalservice.api.push.exceptions.ServerErrorException;
+import org.whispersystems.signalservice.internal.push.PushServiceSocket;
+import org.whispersystems.signalservice.internal.push.RetryPolicy;
+
+import java.io.IOException;
+import java.util.UUID;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+public class RetryPolicyTest extends TestCase {
+
+  private MockWebServer     server;
+  private RetryPolicy       policy;
+  private PushServiceSocket socket;
+
+  @Override
+  protected void setUp() throws IOException {
+    server = new MockWebServer();
+    policy = new RetryPolicy(3, 10, 50, 60 * 1000);
+
+    server.start();
+
+    socket = new PushServiceSocket(MockServiceConfiguration.forServer(server, policy),
+                                   MockServiceConfiguration.createCredentials(),
+                                   "test");
+  }
+
+  @Override
+  protected void tearDown() throws IOException {
+    server.shutdown();
+  }
+
+  public void testRetriesServerErrors() throws IOException {
+    server.enqueue(new MockResponse().setResponseCode(503));
+    server.enqueue(new MockResponse().setResponseCode(500));
+    server.enqueue(new MockResponse().setBody("{\"count\":5}"));
+
+    assertEquals(5, socket.getAvailablePreKeys());
+    assertEquals(3, server.getRequestCount());
+    assertEquals(3, policy.getMetrics().getAttempts());
+    assertEquals(2, policy.getMetrics().getRetries());
+  }
+
+  public void testOpensCircuitAfterRepeatedFailures() throws IOException {
+    for (int i = 0; i < 3; i++) {
+      server.enqueue(new MockResponse().setResponseCode(500));
+    }
+
+    try {
+      socket.getAvailablePreKeys();
+      fail();
+    } catch (ServerErrorException e) {
+      assertEquals(3, server.getRequestCount());
+    }
+
+    try {
+      socket.getAvailablePreKeys();
+      fail();
+    } catch (CircuitOpenException e) {
+      assertEquals(3, server.getRequestCount());
+      assertEquals(1, policy.getMetrics().getCircuitRejections());
+    }
+  }
+
+  public void testCoolsDownAfterRateLimit() throws IOException {
+    server.enqueue(new MockResponse().setResponseCode(413));
+    server.enqueue(new MockResponse().setBody("{\"count\":5}"));
+
+    try {
+      socket.getAvailablePreKeys();
+      fail();
+    } catch (RateLimitException e) {
+      assertEquals(1, server.getRequestCount());
+    }
+
+    try {
+      socket.getAvailablePreKeys();
+      fail();
+    } catch (RateLimitException e) {
+      assertEquals(1, server.getRequestCount());
+      assertEquals(1, policy.getMetrics().getRateLimits());
+      assertEquals(1, policy.getMetrics().getCooldownRejections());
+    }
+  }
+
+  public void testDoesNotRetryNonIdempotentRequests() throws IOException {
+    server.enqueue(new MockResponse().setResponseCode(503));
+    server.enqueue(new MockResponse());
+
+    try {
+      socket.removePin();
+      fail();
+    } catch (ServerErrorException e) {
+      assertEquals(1, server.getRequestCount());
+      assertEquals(0, policy.getMetrics().getRetries());
+    }
+  }
+
+  public void testDoesNotRetryPreKeyFetches() throws IOException {
+    server.enqueue(new MockResponse().setResponseCode(503));
+    server.enqueue(new MockResponse().setResponseCode(503));
+
+    SignalServiceAddress address = new SignalServiceAddress(Optional.<UUID>absent(), Optional.of("+14151111111"));
+
+    try {
+      socket.getPreKeys(address, Optional.<UnidentifiedAccess>absent(), 1);
+      fail();
+    } catch (ServerErrorException e) {
+      assertEquals(1, server.getRequestCount());
+    }
+
+    try {
+      socket.getPreKey(address, 2);
+      fail();
+    } catch (ServerErrorException e) {
+      assertEquals(2, server.getRequestCount());
+      assertEquals(0, policy.getMetrics().getRetries());
+    }
+  }
+
+  public void testCoolsDownOnlyRateLimitedRequestClass() throws IOException {
+    server.enqueue(new MockResponse().setResponseCode(413));
+    server.enqueue(new MockResponse());
+
+    try {
+      socket.getAvailablePreKeys();
+      fail();
+    } catch (RateLimitException e) {
+      assertEquals(1, server.getRequestCount());
+    }
+
+    socket.removePin();
+
+    assertEquals(2, server.getRequestCount());
+    assertEquals(0, policy.getMetrics().getCooldownRejections());
+  }
+
+  public void testRequestClasses() {
+    assertEquals("PUT /v1/messages", RetryPolicy.getRequestClass("PUT", "/v1/messages/+14152222222"));
+    assertEquals("PUT /v1/messages", RetryPolicy.getRequestClass("PUT", "/v1/messages/"));
+    assertEquals("GET /v1/accounts/sms/code", RetryPolicy.getRequestClass("GET", "/v1/accounts/sms/code/+14152222222?client=android"));
+    assertEquals("GET /v1/profile", RetryPolicy.getRequestClass("GET", "/v1/profile/" + UUID.randomUUID()));
+    assertEquals("PUT /v1/directory/feedback-v3/ok", RetryPolicy.getRequestClass("PUT", "/v1/directory/feedback-v3/ok"));
+    assertEquals("GET /attachments", RetryPolicy.getRequestClass("GET", "attachments/1234"));
+  }
+
+  public void testBackoffIsBoundedAndJittered() {
+    RetryPolicy policy = new RetryPolicy(5, 100, 1000, 0);
+
+    for (int attempt = 0; attempt < 10; attempt++) {
+      long backoff = policy.getBackoffMillis(attempt);
+
+      assertTrue(backoff >= 0);
+      assertTrue(backoff <= Math.min(1000, 100 << attempt));
+    }
+  }
+}